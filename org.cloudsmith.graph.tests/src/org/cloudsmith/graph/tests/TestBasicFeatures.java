@@ -12,26 +12,57 @@
 package org.cloudsmith.graph.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.cloudsmith.graph.ElementType;
 import org.cloudsmith.graph.ICancel;
 import org.cloudsmith.graph.IGraph;
+import org.cloudsmith.graph.IGraphElement;
 import org.cloudsmith.graph.IGraphProvider;
+import org.cloudsmith.graph.IGraphSink;
 import org.cloudsmith.graph.IRootGraph;
+import org.cloudsmith.graph.IStreamingGraphProvider;
+import org.cloudsmith.graph.QualifiedIdTable;
+import org.cloudsmith.graph.dot.CompactDotIds;
+import org.cloudsmith.graph.dot.DotGraphElementRenderer;
 import org.cloudsmith.graph.dot.DotRenderer;
+import org.cloudsmith.graph.dot.DotWriter;
+import org.cloudsmith.graph.elements.ClusterGraph;
 import org.cloudsmith.graph.elements.Edge;
 import org.cloudsmith.graph.elements.RootGraph;
 import org.cloudsmith.graph.elements.Vertex;
 import org.cloudsmith.graph.graphcss.GraphCSS;
 import org.cloudsmith.graph.graphcss.IFunctionFactory;
+import org.cloudsmith.graph.graphcss.Rule;
+import org.cloudsmith.graph.graphcss.Select;
+import org.cloudsmith.graph.graphcss.StyleSet;
+import org.cloudsmith.graph.graphviz.CompactIdRestoringOutputStream;
 import org.cloudsmith.graph.graphviz.GraphvizFormat;
 import org.cloudsmith.graph.graphviz.GraphvizLayout;
 import org.cloudsmith.graph.graphviz.GraphvizRenderer;
 import org.cloudsmith.graph.graphviz.IGraphviz;
 import org.cloudsmith.graph.style.IStyleFactory;
+import org.cloudsmith.graph.style.StyleType;
+import org.cloudsmith.graph.style.labels.LabelMatrix;
+import org.cloudsmith.graph.style.labels.LabelTable;
+import org.cloudsmith.graph.style.labels.LabelTableBuilder;
 import org.cloudsmith.graph.testgraphs.AbstractTestGraph;
+import org.cloudsmith.graph.testgraphs.SimpleGraph1;
+import org.cloudsmith.graph.testgraphs.SimpleGraph2;
 import org.junit.Test;
 
 import com.google.inject.Inject;
@@ -126,6 +157,276 @@ public class TestBasicFeatures extends AbstractGraphTests {
 			"label=\"a test graph\";\n" + //
 			"}\n";
 
+	/**
+	 * Tests that compact dot text uses short names and id values, and that the graphviz output is restored
+	 * to the real names and values.
+	 */
+	@Test
+	public void testGraph_compactDotText() throws Exception {
+		GraphCSS themeSheet = get(GraphCSS.class);
+		IGraphProvider graphProvider = get(IdentityTestGraph.class);
+		IGraph testGraph = graphProvider.computeGraph();
+		themeSheet.addAll(graphProvider.getRules());
+		StyleSet idStyle = new StyleSet();
+		idStyle.put(get(IStyleFactory.class).id(get(IFunctionFactory.class).idClassReplacer()));
+		themeSheet.addRule(Select.element(ElementType.vertex).withStyle(idStyle));
+
+		DotRenderer dotRenderer = get(DotRenderer.class);
+		ByteArrayOutputStream tmp = new ByteArrayOutputStream();
+		dotRenderer.write(ICancel.NullIndicator, tmp, testGraph, get(GraphCSS.class), themeSheet);
+		String dotText = tmp.toString();
+		tmp.reset();
+		CompactDotIds compactIds = new CompactDotIds();
+		dotRenderer.write(ICancel.NullIndicator, tmp, testGraph, compactIds, get(GraphCSS.class), themeSheet);
+		String compactText = tmp.toString();
+
+		assertTrue("Compact dot text is not smaller", compactText.length() * 2 < dotText.length());
+		assertTrue("Compact dot text lacks short names", compactText.contains("_0 -> _1;"));
+		assertEquals("Wrong original name", "root-a", compactIds.getOriginalName("_0"));
+		assertSame("Wrong element", testGraph.getVertices().iterator().next(), compactIds.getElement("_0"));
+		String idValue = compactIds.getOriginalValue("@0");
+		assertTrue("Wrong original value", dotText.contains("id=\"" + idValue + "\""));
+
+		ByteArrayOutputStream restored = new ByteArrayOutputStream();
+		CompactIdRestoringOutputStream out = new CompactIdRestoringOutputStream(restored, compactIds);
+		out.write(("<!-- _0 -->\n<g id=\"@0\" class=\"node\"><title>_0</title></g>\n" + //
+				"<g id=\"a_@0-label\"><title>_0&#45;&gt;_1</title><a xlink:title=\"_1\"/></g>").getBytes("UTF8"));
+		out.finish();
+		assertEquals("Restored output differs", "<!-- root&#45;a -->\n<g id=\"" + idValue +
+				"\" class=\"node\"><title>root&#45;a</title></g>\n" + "<g id=\"a_" + idValue +
+				"-label\"><title>root&#45;a&#45;&gt;root&#45;b</title><a xlink:title=\"root&#45;b\"/></g>",
+			restored.toString("UTF8"));
+	}
+
+	/**
+	 * Tests that elements that the rules can not tell apart share their computed styles, and that the
+	 * shared styles are dropped when a rule is added.
+	 */
+	@Test
+	public void testGraph_computedStyleSharing() {
+		IStyleFactory styleFactory = get(IStyleFactory.class);
+		GraphCSS gcss = new GraphCSS();
+		gcss.addRule(Select.vertex("A").withStyle(styleFactory.color("green")));
+		gcss.addRule(Select.vertex("A", "v3").withStyle(styleFactory.color("red")));
+		gcss.addRule(Select.between(Select.vertex("A"), Select.vertex("B")).withStyle(styleFactory.color("blue")));
+
+		RootGraph root = new RootGraph("root", "RootGraph", "root");
+		Vertex v1 = new Vertex("v1", "A", "v1");
+		Vertex v2 = new Vertex("v2", "A", "v2");
+		Vertex v3 = new Vertex("v3", "A", "v3");
+		Vertex v4 = new Vertex("v4", "B", "v4");
+		root.addVertex(v1, v2, v3, v4);
+		Edge e1 = new Edge("", v1, v2, "e1");
+		Edge e2 = new Edge("", v1, v4, "e2");
+		root.addEdge(e1, e2);
+		v2.addStyleClass("Untested");
+
+		StyleSet styles = gcss.getComputedStyles(v1, ICancel.NullIndicator);
+		assertSame("Styles not shared", styles, gcss.getComputedStyles(v2, ICancel.NullIndicator));
+		assertEquals("Wrong shared styles", "green", styles.getStyleValue(StyleType.color, v1));
+		assertEquals("Wrong styles for tested id", "red",
+			gcss.getComputedStyles(v3, ICancel.NullIndicator).getStyleValue(StyleType.color, v3));
+		assertTrue("Wrong styles for edge", gcss.getComputedStyles(e1, ICancel.NullIndicator).getStyles().isEmpty());
+		assertEquals("Wrong styles for edge between", "blue",
+			gcss.getComputedStyles(e2, ICancel.NullIndicator).getStyleValue(StyleType.color, e2));
+		assertEquals("Wrong number of shared styles", 1, gcss.getStyleCacheHitCount());
+		assertEquals("Wrong number of computed styles", 4, gcss.getStyleCacheMissCount());
+
+		gcss.addRule(Select.vertex().withStyle(styleFactory.fontSize(8)));
+		assertEquals("Statistics not reset", 0, gcss.getStyleCacheHitCount());
+		assertEquals("Styles not recomputed", 8,
+			gcss.getComputedStyles(v2, ICancel.NullIndicator).getStyleValue(StyleType.fontSize, v2));
+	}
+
+	/**
+	 * Tests that containment and parent rules collected with the filter of the names of the containers are the
+	 * same as those found by testing all rules.
+	 */
+	@Test
+	public void testGraph_containmentMatching() {
+		IStyleFactory styleFactory = get(IStyleFactory.class);
+		List<Rule> rules = new ArrayList<Rule>();
+		rules.add(Select.containment(Select.element(ElementType.cluster, "C")).withStyle(styleFactory.color("gray")));
+		rules.add(Select.containment(Select.element(ElementType.cluster, "D"), Select.graph()).withStyle(
+			styleFactory.color("red")));
+		rules.add(Select.containment(Select.graph(), Select.element(ElementType.cluster, "D")).withStyle(
+			styleFactory.color("blue")));
+		rules.add(Select.and(Select.vertex(), Select.containment(Select.any("Missing"))).withStyle(
+			styleFactory.fontSize(8)));
+		rules.add(Select.not(Select.containment(Select.element("D", "d"))).withStyle(styleFactory.fontSize(10)));
+		rules.add(Select.parent(Select.element(ElementType.cluster, "C")).withStyle(styleFactory.fontSize(12)));
+		GraphCSS gcss = new GraphCSS();
+		gcss.addAll(rules);
+
+		RootGraph root = new RootGraph("root", "RootGraph", "root");
+		ClusterGraph outer = new ClusterGraph("outer", "D", "d");
+		ClusterGraph inner = new ClusterGraph("inner", "C", "c");
+		root.addSubgraph(outer);
+		outer.addSubgraph(inner);
+		Vertex v1 = new Vertex("v1", "A", "v1");
+		Vertex v2 = new Vertex("v2", "A", "v2");
+		Vertex v3 = new Vertex("v3", "A", "v3");
+		root.addVertex(v1);
+		outer.addVertex(v2);
+		inner.addVertex(v3);
+
+		for(IGraphElement element : new IGraphElement[] { root, outer, inner, v1, v2, v3 }) {
+			List<Rule> expected = new ArrayList<Rule>();
+			for(Rule r : rules)
+				if(r.matches(element))
+					expected.add(r);
+			Collections.sort(expected, GraphCSS.RULE_COMPARATOR);
+			assertEquals("Wrong rules for " + element.getId(), expected, gcss.collectRules(element));
+		}
+		assertEquals("Wrong number of rules for nested vertex", 3, gcss.collectRules(v3).size());
+	}
+
+	/**
+	 * Tests that styles are not shared when a rule selects an element instance, as the instance can not be
+	 * told apart from elements with the same names.
+	 */
+	@Test
+	public void testGraph_computedStyleSharingWithInstanceRule() {
+		IStyleFactory styleFactory = get(IStyleFactory.class);
+		RootGraph root = new RootGraph("root", "RootGraph", "root");
+		Vertex v1 = new Vertex("v1", "A", "v1");
+		Vertex v2 = new Vertex("v2", "A", "v2");
+		root.addVertex(v1, v2);
+
+		GraphCSS gcss = new GraphCSS();
+		gcss.addRule(Select.instance(v1).withStyle(styleFactory.color("red")));
+
+		assertEquals("Wrong styles for instance", "red",
+			gcss.getComputedStyles(v1, ICancel.NullIndicator).getStyleValue(StyleType.color, v1));
+		assertTrue("Instance styles shared", gcss.getComputedStyles(v2, ICancel.NullIndicator).getStyles().isEmpty());
+		assertEquals("Styles shared with instance rule", 0, gcss.getStyleCacheHitCount());
+	}
+
+	/**
+	 * Tests that one DotRenderer can render many graphs at the same time, and that each result is the same as
+	 * when the graph is rendered alone.
+	 */
+	@Test
+	public void testGraph_concurrentDotRendering() throws Exception {
+		final DotRenderer dotRenderer = get(DotRenderer.class);
+		assertSame("DotRenderer is shared", dotRenderer, get(DotRenderer.class));
+
+		final List<Class<? extends IGraphProvider>> providers = new ArrayList<Class<? extends IGraphProvider>>();
+		for(int i = 0; i < 50; i++) {
+			providers.add(IdentityTestGraph.class);
+			providers.add(NoIdentityTestGraph.class);
+			providers.add(SimpleGraph1.class);
+			providers.add(SimpleGraph2.class);
+		}
+		List<Callable<String>> renders = new ArrayList<Callable<String>>();
+		for(final Class<? extends IGraphProvider> provider : providers)
+			renders.add(new Callable<String>() {
+				@Override
+				public String call() {
+					GraphCSS themeSheet = get(GraphCSS.class);
+					IGraphProvider graphProvider = get(provider);
+					IGraph testGraph = graphProvider.computeGraph();
+					themeSheet.addAll(graphProvider.getRules());
+
+					ByteArrayOutputStream tmp = new ByteArrayOutputStream();
+					dotRenderer.write(ICancel.NullIndicator, tmp, testGraph, get(GraphCSS.class), themeSheet);
+					return tmp.toString();
+				}
+			});
+		List<String> expected = new ArrayList<String>();
+		for(Callable<String> render : renders)
+			expected.add(render.call());
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> results = executor.invokeAll(renders);
+			for(int i = 0; i < results.size(); i++)
+				assertEquals("Concurrent result differs for " + providers.get(i).getSimpleName(), expected.get(i), results.get(
+					i).get());
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Tests that the dot writer encodes, escapes, and rolls back text.
+	 */
+	@Test
+	public void testGraph_dotWriter() throws Exception {
+		ByteArrayOutputStream tmp = new ByteArrayOutputStream();
+		DotWriter out = new DotWriter(tmp);
+		out.append("a").append(' ').append(-120).append(' ').append(0).append(' ').attribute("label", "\u00e5\u20ac");
+		long mark = out.mark();
+		out.append(" dropped");
+		out.rollback(mark);
+		out.append(' ').appendEscaped("<b>&\n</b>");
+		out.flush();
+		assertEquals(
+			"Written text differs", "a -120 0 label=\"\u00e5\u20ac\" &lt;b&gt;&amp;<BR/>&lt;/b&gt;",
+			tmp.toString("UTF-8"));
+	}
+
+	/**
+	 * Tests that a render fails when the dot text can not be written, rather than leaving truncated output.
+	 */
+	@Test
+	public void testGraph_dotWriteFailure() {
+		GraphCSS themeSheet = get(GraphCSS.class);
+		IGraphProvider graphProvider = get(IdentityTestGraph.class);
+		themeSheet.addAll(graphProvider.getRules());
+		OutputStream closed = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("closed");
+			}
+		};
+		try {
+			get(DotRenderer.class).write(
+				ICancel.NullIndicator, closed, graphProvider.computeGraph(), get(GraphCSS.class), themeSheet);
+			fail("Failed write was not reported");
+		}
+		catch(RuntimeException e) {
+			assertTrue("Cause is the write error", e.getCause() instanceof IOException);
+		}
+	}
+
+	/**
+	 * Tests that frozen style sheets render the same dot text as style sheets that are not frozen, also when the
+	 * compiled styles are reused, and that rules can not be added to a frozen style sheet.
+	 */
+	@Test
+	public void testGraph_frozenStyleSheets() throws Exception {
+		IGraphProvider graphProvider = get(IdentityTestGraph.class);
+		IGraph testGraph = graphProvider.computeGraph();
+		GraphCSS defaultSheet = get(GraphCSS.class);
+		defaultSheet.addRule(Select.element(ElementType.vertex).withStyle(get(IStyleFactory.class).color("red")));
+		GraphCSS themeSheet = get(GraphCSS.class);
+		themeSheet.addAll(graphProvider.getRules());
+
+		DotRenderer dotRenderer = new DotRenderer(get(DotGraphElementRenderer.class));
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		dotRenderer.write(ICancel.NullIndicator, expected, testGraph, defaultSheet, themeSheet);
+		assertTrue("No default node statement", expected.toString().contains("node [\nfontcolor=\"red\"];\n"));
+
+		assertSame("Freeze does not return the style sheet", defaultSheet, defaultSheet.freeze());
+		themeSheet.freeze();
+		for(int i = 0; i < 2; i++) {
+			ByteArrayOutputStream tmp = new ByteArrayOutputStream();
+			dotRenderer.write(ICancel.NullIndicator, tmp, testGraph, defaultSheet, themeSheet);
+			assertEquals("Result with frozen style sheets differs", expected.toString(), tmp.toString());
+		}
+
+		assertTrue("Style sheet not frozen", themeSheet.isFrozen());
+		try {
+			themeSheet.addRule(Select.element(ElementType.vertex).withStyle(get(IStyleFactory.class).color("blue")));
+			fail("Rule added to a frozen style sheet");
+		}
+		catch(IllegalStateException e) {
+			// expected
+		}
+	}
+
 	/**
 	 * Test that output is correct when there are no styles and identities have not
 	 * been set.
@@ -146,6 +447,134 @@ public class TestBasicFeatures extends AbstractGraphTests {
 		assertEquals("Expected result differs", testGraph_Identities_expected, tmp.toString());
 	}
 
+	/**
+	 * Tests that the rules collected through the rule index are the same as those found by testing all rules.
+	 */
+	@Test
+	public void testGraph_indexedRuleMatching() {
+		IStyleFactory styleFactory = get(IStyleFactory.class);
+		List<Rule> rules = new ArrayList<Rule>();
+		rules.add(Select.any().withStyle(styleFactory.color("black")));
+		rules.add(Select.vertex().withStyle(styleFactory.color("blue")));
+		rules.add(Select.vertex("A").withStyle(styleFactory.color("green")));
+		rules.add(Select.element("A", "v2").withStyle(styleFactory.color("red")));
+		rules.add(Select.edge("B").withStyle(styleFactory.color("pink")));
+		rules.add(Select.and(Select.vertex("B"), Select.containment(Select.element(ElementType.cluster, "C"))).withStyle(
+			styleFactory.color("gray")));
+		rules.add(Select.not(Select.vertex("A")).withStyle(styleFactory.fontSize(8)));
+		rules.add(Select.between(Select.vertex("A"), Select.vertex()).withStyle(styleFactory.fontSize(10)));
+		rules.add(new Select.Element(ElementType.CLUSTER_AND_VERTEX).withStyle(styleFactory.fontSize(12)));
+		GraphCSS gcss = new GraphCSS();
+		gcss.addAll(rules);
+
+		RootGraph root = new RootGraph("root", "RootGraph", "root");
+		ClusterGraph cluster = new ClusterGraph("cluster", "C", "c");
+		root.addSubgraph(cluster);
+		Vertex v1 = new Vertex("v1", "A", "v1");
+		Vertex v2 = new Vertex("v2", "A", "v2");
+		Vertex v3 = new Vertex("v3", "B", "v3");
+		root.addVertex(v1);
+		root.addVertex(v2);
+		cluster.addVertex(v3);
+		Edge e1 = new Edge("e1", "B", v1, v3, "e1");
+		root.addEdge(e1);
+		v2.addStyleClass("B");
+
+		for(IGraphElement element : new IGraphElement[] { root, cluster, v1, v2, v3, e1 }) {
+			List<Rule> expected = new ArrayList<Rule>();
+			for(Rule r : rules)
+				if(r.matches(element))
+					expected.add(r);
+			Collections.sort(expected, GraphCSS.RULE_COMPARATOR);
+			assertEquals("Wrong rules for " + element.getId(), expected, gcss.collectRules(element));
+		}
+	}
+
+	/**
+	 * Tests that table labels that are printed from the label cache are the same as when they are rendered,
+	 * and that labels that differ in values or in the context the rules test for are not mixed up.
+	 */
+	@Test
+	public void testGraph_labelFragmentCache() throws Exception {
+		IStyleFactory styleFactory = get(IStyleFactory.class);
+		RootGraph root = new RootGraph("labels", "RootGraph", "root");
+		String[] names = { "x", "x", "y", "x" };
+		Vertex[] vertices = new Vertex[names.length];
+		for(int i = 0; i < names.length; i++) {
+			vertices[i] = new Vertex("", "WithData", "v" + i);
+			vertices[i].getUserData().put("name", names[i]);
+			root.addVertex(vertices[i]);
+		}
+		vertices[3].addStyleClass("Pink");
+
+		LabelTable table = new LabelTableBuilder(styleFactory, get(IFunctionFactory.class)) {
+			@Override
+			public LabelTable build() {
+				return table("DataTable", row("FirstRow", cell("NameCell", labelTemplate(labelData("name")))));
+			}
+		}.build();
+		GraphCSS themeSheet = get(GraphCSS.class);
+		themeSheet.addAll(get(IdentityTestGraph.class).getRules());
+		themeSheet.addRule(Select.vertex("WithData").withStyle(styleFactory.labelFormat(table)));
+		themeSheet.addRule(Select.and(Select.cell(), Select.containment(Select.vertex("Pink"))).withStyle(
+			styleFactory.color("red")));
+
+		ByteArrayOutputStream tmp = new ByteArrayOutputStream();
+		get(DotRenderer.class).write(ICancel.NullIndicator, tmp, root, get(GraphCSS.class), themeSheet);
+		String result = tmp.toString("UTF-8");
+
+		// the labels of equally styled vertices with the same data are the same, but are not mixed up with
+		// the labels of vertices with other data or other styles
+		String[] labels = new String[vertices.length];
+		for(int i = 0; i < vertices.length; i++) {
+			int start = result.indexOf("label=<", result.indexOf("\"root-" + vertices[i].getId() + "\" ["));
+			assertTrue("Label of vertex " + i + " not found", start >= 0);
+			labels[i] = result.substring(start, result.indexOf(">>", start));
+			assertTrue("Wrong value in label " + i, labels[i].contains(">" + names[i] + "<"));
+		}
+		assertEquals("Labels with the same data differ", labels[0], labels[1]);
+		assertFalse("Labels with different data are equal", labels[0].equals(labels[2]));
+		assertFalse("Styled cell in unstyled label", labels[1].contains("red"));
+		assertTrue("Style missing in styled label", labels[3].contains("COLOR=\"red\""));
+	}
+
+	/**
+	 * Tests that compiled label templates evaluate their dynamic parts for each element, and produce the
+	 * ports of matrices.
+	 */
+	@Test
+	public void testGraph_labelTemplatePlans() throws Exception {
+		IStyleFactory styleFactory = get(IStyleFactory.class);
+		LabelTable table = new LabelTableBuilder(styleFactory, get(IFunctionFactory.class)) {
+			@Override
+			public LabelTable build() {
+				return table("DataTable", //
+					row("FirstRow", cell("TitleCell", "title"), cell("NameCell", labelTemplate(labelData("name")))));
+			}
+		}.build();
+		GraphCSS themeSheet = get(GraphCSS.class);
+		themeSheet.addAll(get(IdentityTestGraph.class).getRules());
+		themeSheet.addRule(Select.vertex("WithData").withStyle(styleFactory.labelFormat(table)));
+		themeSheet.addRule(Select.vertex("Matrix").withStyle(styleFactory.labelFormat(new LabelMatrix("M", 1, 3))));
+
+		for(String name : new String[] { "first", "second" }) {
+			RootGraph root = new RootGraph("labels", "RootGraph", "root");
+			Vertex v = new Vertex("", "WithData", "v");
+			v.getUserData().put("name", name);
+			root.addVertex(v);
+			root.addVertex(new Vertex("", "Matrix", "m"));
+
+			ByteArrayOutputStream tmp = new ByteArrayOutputStream();
+			get(DotRenderer.class).write(ICancel.NullIndicator, tmp, root, get(GraphCSS.class), themeSheet);
+			String result = tmp.toString("UTF-8");
+			assertTrue("Literal value missing", result.contains(">title</TD>"));
+			assertTrue("Dynamic value missing", result.contains(">" + name + "</TD>"));
+			assertTrue("Table port missing", result.contains("PORT=\"pt\""));
+			for(int i = 0; i < 3; i++)
+				assertTrue("Cell port missing", result.contains("PORT=\"p" + i + "\""));
+		}
+	}
+
 	/**
 	 * Test that output is correct when there are no styles and identities have not
 	 * been set.
@@ -166,6 +595,63 @@ public class TestBasicFeatures extends AbstractGraphTests {
 		assertEquals("Expected result differs", testGraph_noIdentities_expected, tmp.toString());
 	}
 
+	/**
+	 * Tests that rendering the vertices and edges of a graph in parallel produces the same dot text as
+	 * rendering them one at a time.
+	 */
+	@Test
+	public void testGraph_parallelDotRendering() throws Exception {
+		RootGraph root = new RootGraph("a large graph", "RootGraph", "root");
+		ClusterGraph cluster = new ClusterGraph("a cluster", "", "c1");
+		root.addSubgraph(cluster);
+		Vertex previous = null;
+		for(int i = 0; i < 500; i++) {
+			Vertex v = new Vertex("v" + i, "v", "v" + i);
+			if(i % 3 == 0)
+				cluster.addVertex(v);
+			else
+				root.addVertex(v);
+			if(previous != null)
+				root.addEdge(new Edge(previous, v));
+			previous = v;
+		}
+		GraphCSS themeSheet = get(GraphCSS.class);
+		themeSheet.addAll(get(IdentityTestGraph.class).getRules());
+		StyleSet idStyle = new StyleSet();
+		idStyle.put(get(IStyleFactory.class).id(get(IFunctionFactory.class).idClassReplacer()));
+		themeSheet.addRule(Select.element(ElementType.vertex).withStyle(idStyle));
+
+		ByteArrayOutputStream serial = new ByteArrayOutputStream();
+		get(DotRenderer.class).write(ICancel.NullIndicator, serial, root, get(GraphCSS.class), themeSheet);
+
+		DotRenderer dotRenderer = new DotRenderer(get(DotGraphElementRenderer.class));
+		dotRenderer.setParallelThreshold(10);
+		ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+		dotRenderer.write(ICancel.NullIndicator, parallel, root, get(GraphCSS.class), themeSheet);
+		assertEquals("Parallel result differs", serial.toString("UTF-8"), parallel.toString("UTF-8"));
+	}
+
+	/**
+	 * Tests that the qualified ids of elements are formed from the ids of their context.
+	 */
+	@Test
+	public void testGraph_qualifiedIds() {
+		RootGraph root = new RootGraph("", "", "root");
+		ClusterGraph cluster = new ClusterGraph("", "", "c1");
+		Vertex inner = new Vertex("", "", "v1");
+		Vertex outer = new Vertex("", "", "v2");
+		cluster.addVertex(inner);
+		root.addSubgraph(cluster);
+		root.addVertex(outer);
+
+		QualifiedIdTable ids = new QualifiedIdTable();
+		assertEquals("Wrong root id", "-root", ids.getQualifiedId(root));
+		assertEquals("Wrong vertex id", "root-c1-v1", ids.getQualifiedId(inner));
+		assertEquals("Wrong vertex id", "root-v2", ids.getQualifiedId(outer));
+		assertEquals("Wrong cluster id", "root-c1", ids.getQualifiedId(cluster));
+		assertEquals("Ids differ without table", "root-c1-v1", QualifiedIdTable.qualifiedId(inner));
+	}
+
 	/**
 	 * Tests running graphviz to produce output. The test is performed by producing output in svg format
 	 * (this format is textual) and checks that text is in svg tags, that there are calls to path and polygon
@@ -212,4 +698,100 @@ public class TestBasicFeatures extends AbstractGraphTests {
 		String output = tmp.toString();
 		assertTrue("Should contain _draw_ calls", output.contains("_draw_"));
 	}
+
+	/**
+	 * Tests that attributes that vertices have in common are written once when styles are grouped.
+	 */
+	@Test
+	public void testGraph_styleGrouping() throws Exception {
+		GraphCSS themeSheet = get(GraphCSS.class);
+		IGraphProvider graphProvider = get(IdentityTestGraph.class);
+		IGraph testGraph = graphProvider.computeGraph();
+		themeSheet.addAll(graphProvider.getRules());
+		StyleSet colorStyle = new StyleSet();
+		colorStyle.put(get(IStyleFactory.class).color("red"));
+		themeSheet.addRule(Select.element(ElementType.vertex).withStyle(colorStyle));
+
+		DotRenderer dotRenderer = new DotRenderer(get(DotGraphElementRenderer.class));
+		dotRenderer.setStyleGrouping(true);
+		ByteArrayOutputStream tmp = new ByteArrayOutputStream();
+		dotRenderer.write(ICancel.NullIndicator, tmp, testGraph, get(GraphCSS.class), themeSheet);
+		assertEquals("Grouped result differs", "digraph root {\n" + //
+				"{\n" + "node [\n" + "fontcolor=\"red\"];\n" + //
+				"\"root-a\" [\n" + "label=\"a\"];\n" + //
+				"\"root-b\" [\n" + "label=\"b\"];\n" + //
+				"\"root-c\" [\n" + "label=\"c\"];\n" + //
+				"}\n" + //
+				"\"root-a\" -> \"root-b\";\n" + //
+				"\"root-b\" -> \"root-c\";\n" + //
+				"label=\"a test graph\";\n" + //
+				"}\n", tmp.toString());
+	}
+
+	/**
+	 * Tests that a streamed graph produces the same dot text as the same graph when it is built, and that
+	 * edges can refer to vertices in closed subgraphs.
+	 */
+	@Test
+	public void testGraph_streamingDotRendering() throws Exception {
+		final IGraphProvider graphProvider = get(IdentityTestGraph.class);
+		RootGraph root = new RootGraph("a test graph", "RootGraph", "root");
+		Vertex a = new Vertex("a", "v");
+		Vertex b = new Vertex("b", "v", "b");
+		root.addVertex(a, b);
+		root.addEdge(new Edge(a, b));
+		ClusterGraph cluster = new ClusterGraph("a cluster", "", null);
+		Vertex x = new Vertex("x", "v", "x");
+		Vertex y = new Vertex("y", "v");
+		cluster.addVertex(x, y);
+		cluster.addEdge(new Edge(x, y));
+		root.addSubgraph(cluster);
+
+		GraphCSS themeSheet = get(GraphCSS.class);
+		themeSheet.addAll(graphProvider.getRules());
+		ByteArrayOutputStream built = new ByteArrayOutputStream();
+		get(DotRenderer.class).write(ICancel.NullIndicator, built, root, get(GraphCSS.class), themeSheet);
+
+		final boolean[] crossEdge = new boolean[1];
+		IStreamingGraphProvider streamingProvider = new IStreamingGraphProvider() {
+			@Override
+			public IRootGraph getRootGraph() {
+				return new RootGraph("a test graph", "RootGraph", "root");
+			}
+
+			@Override
+			public Iterable<Rule> getRules() {
+				return graphProvider.getRules();
+			}
+
+			@Override
+			public void produceGraph(IGraphSink sink) {
+				Vertex a = new Vertex("a", "v");
+				Vertex b = new Vertex("b", "v", "b");
+				sink.addVertex(a);
+				sink.addVertex(b);
+				sink.addEdge(new Edge(a, b));
+				sink.openSubgraph(new ClusterGraph("a cluster", "", null));
+				Vertex x = new Vertex("x", "v", "x");
+				sink.addVertex(x);
+				Vertex y = new Vertex("y", "v");
+				sink.addVertex(y);
+				sink.addEdge(new Edge(x, y));
+				sink.closeSubgraph();
+				if(crossEdge[0])
+					sink.addEdge(new Edge(a, x));
+			}
+		};
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		get(DotRenderer.class).write(
+			ICancel.NullIndicator, streamed, streamingProvider, get(GraphCSS.class), themeSheet);
+		assertEquals("Streamed result differs", built.toString("UTF-8"), streamed.toString("UTF-8"));
+
+		crossEdge[0] = true;
+		streamed.reset();
+		get(DotRenderer.class).write(
+			ICancel.NullIndicator, streamed, streamingProvider, get(GraphCSS.class), themeSheet);
+		assertTrue("Edge to closed subgraph is missing", streamed.toString("UTF-8").contains(
+			"\"root-v1\" -> \"root-g1-x\";\n"));
+	}
 }
@@ -11,20 +11,52 @@
  */
 package org.cloudsmith.graph.tests;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import org.cloudsmith.graph.DeadlineCancel;
+import org.cloudsmith.graph.DefaultGraphModule;
 import org.cloudsmith.graph.ICancel;
 import org.cloudsmith.graph.IGraphProvider;
 import org.cloudsmith.graph.IRootGraph;
 import org.cloudsmith.graph.dot.DotRenderer;
 import org.cloudsmith.graph.graphcss.GraphCSS;
 import org.cloudsmith.graph.graphcss.Select;
+import org.cloudsmith.graph.graphviz.DefaultGraphvizOptions;
+import org.cloudsmith.graph.graphviz.Graphviz;
+import org.cloudsmith.graph.graphviz.GraphvizDiskCache;
+import org.cloudsmith.graph.graphviz.GraphvizFormat;
 import org.cloudsmith.graph.graphviz.GraphvizLayout;
+import org.cloudsmith.graph.graphviz.GraphvizLayoutCache;
+import org.cloudsmith.graph.graphviz.GraphvizProcessPool;
+import org.cloudsmith.graph.graphviz.GraphvizRejectedException;
+import org.cloudsmith.graph.graphviz.GraphvizRenderScheduler;
+import org.cloudsmith.graph.graphviz.GraphvizResultCache;
+import org.cloudsmith.graph.graphviz.IAsyncGraphviz;
 import org.cloudsmith.graph.graphviz.IGraphviz;
+import org.cloudsmith.graph.graphviz.IGraphvizConfig;
+import org.cloudsmith.graph.graphviz.IGraphvizOptions;
+import org.cloudsmith.graph.graphviz.PumpExecutor;
 import org.cloudsmith.graph.style.IStyleFactory;
 import org.cloudsmith.graph.style.RankDirection;
 import org.cloudsmith.graph.style.themes.IStyleTheme;
@@ -32,11 +64,26 @@ import org.cloudsmith.graph.testgraphs.SimpleGraph1;
 import org.cloudsmith.graph.testgraphs.SimpleGraph2;
 import org.junit.Test;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+
 /**
  * Tests rendering to PNG. Manual inspection of result is required.
  * 
  */
 public class TestRenderingToPng extends AbstractGraphTests {
+	/**
+	 * Options where graphviz processes are pooled, which is off by default.
+	 */
+	private static class PoolingOptions extends DefaultGraphvizOptions {
+		@Override
+		public int getProcessPoolSize() {
+			return 2;
+		}
+	}
 
 	@Test
 	public void testPNG_abc_abc_vertical_default() throws IOException {
@@ -140,4 +187,434 @@ public class TestRenderingToPng extends AbstractGraphTests {
 			ICancel.NullIndicator, tmp, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet));
 	}
 
+	@Test
+	public void testPNG_asyncRender() throws Exception {
+		Injector injector = createPoolingInjector();
+		IAsyncGraphviz asyncGraphviz = injector.getInstance(IAsyncGraphviz.class);
+		GraphvizProcessPool pool = injector.getInstance(GraphvizProcessPool.class);
+		GraphCSS themeSheet = get(GraphCSS.class);
+
+		IGraphProvider graphProvider = get(SimpleGraph1.class);
+		IRootGraph testGraph = graphProvider.computeGraph();
+		themeSheet.addAll(graphProvider.getRules());
+
+		ListenableFuture<byte[]> png = asyncGraphviz.toPNG(
+			ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet);
+		assertArrayEquals("Async PNG differs", get(Graphviz.class).toPNG(
+			ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet), png.get(
+			10, TimeUnit.SECONDS));
+
+		// graphviz waits for the rest of the graph until the future is canceled
+		ListenableFuture<OutputStream> output = asyncGraphviz.writeGraphvizOutput(
+			ICancel.NullIndicator, new ByteArrayOutputStream(), GraphvizFormat.png, null, GraphvizLayout.dot,
+			new ByteArrayInputStream("digraph root {\n".getBytes()));
+		Thread.sleep(200);
+		assertTrue("Canceled", output.cancel(true));
+		long start = System.currentTimeMillis();
+		while(pool.getRecycleCount() == 0 && System.currentTimeMillis() - start < 5000)
+			Thread.sleep(10);
+		assertEquals("Killed processes", 1, pool.getRecycleCount());
+	}
+
+	@Test
+	public void testPNG_cachedResult() throws IOException {
+		IGraphviz graphviz = get(IGraphviz.class);
+		GraphvizResultCache cache = get(GraphvizResultCache.class);
+		GraphCSS themeSheet = get(GraphCSS.class);
+
+		IGraphProvider graphProvider = get(SimpleGraph1.class);
+		IRootGraph testGraph = graphProvider.computeGraph();
+		themeSheet.addAll(graphProvider.getRules());
+
+		byte[] png = graphviz.toPNG(ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet);
+		assertArrayEquals("Cached PNG differs", png, graphviz.toPNG(
+			ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet));
+		assertEquals("Cache hits", 1, cache.getHitCount());
+		assertEquals("Cache misses", 1, cache.getMissCount());
+
+		// the same graph with different white space, and in another format
+		String dotText = graphviz.getDotText(ICancel.NullIndicator, testGraph, get(GraphCSS.class), themeSheet);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		graphviz.writeGraphvizOutput(
+			ICancel.NullIndicator, output, GraphvizFormat.png, get(IGraphvizConfig.class).getRenderer(),
+			GraphvizLayout.dot, new ByteArrayInputStream(("  " + dotText.replace("\n", "\r\n\t")).getBytes()));
+		assertArrayEquals("Canonicalized dot text", png, output.toByteArray());
+		assertEquals("Cache hits", 2, cache.getHitCount());
+		graphviz.toSVG(ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet);
+		assertEquals("Cache misses", 2, cache.getMissCount());
+		assertEquals("Cached results", 2, cache.getResultCount());
+
+		// a line break ends a comment, the graphs differ
+		graphviz.writeGraphvizOutput(
+			ICancel.NullIndicator, new ByteArrayOutputStream(), GraphvizFormat.png, null, GraphvizLayout.dot,
+			new ByteArrayInputStream("digraph root {\na -> b // x\nc\n}\n".getBytes()));
+		graphviz.writeGraphvizOutput(
+			ICancel.NullIndicator, new ByteArrayOutputStream(), GraphvizFormat.png, null, GraphvizLayout.dot,
+			new ByteArrayInputStream("digraph root {\na -> b // x c\n}\n".getBytes()));
+		assertEquals("Cache misses for comments", 4, cache.getMissCount());
+	}
+
+	@Test
+	public void testPNG_channelOutput() throws IOException {
+		IGraphviz graphviz = get(Graphviz.class);
+		GraphCSS themeSheet = get(GraphCSS.class);
+
+		IGraphProvider graphProvider = get(SimpleGraph1.class);
+		IRootGraph testGraph = graphProvider.computeGraph();
+		themeSheet.addAll(graphProvider.getRules());
+
+		File file = new File(getTestOutputFolder("channel", true), "SimpleGraph1.png");
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			assertTrue("Writing PNG to channel", graphviz.writeGraphvizOutput(
+				ICancel.NullIndicator, output.getChannel(), GraphvizFormat.png, null, GraphvizLayout.dot, testGraph,
+				get(GraphCSS.class), themeSheet));
+		}
+		finally {
+			output.close();
+		}
+		byte[] png = graphviz.toPNG(ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet);
+		byte[] written = new byte[(int) file.length()];
+		DataInputStream input = new DataInputStream(new FileInputStream(file));
+		try {
+			input.readFully(written);
+		}
+		finally {
+			input.close();
+		}
+		assertArrayEquals("PNG written to channel differs", png, written);
+	}
+
+	@Test
+	public void testPNG_deadlineKillsGraphviz() throws IOException {
+		// only a pooled process keeps its input open
+		IGraphviz graphviz = createPoolingInjector().getInstance(Graphviz.class);
+		DeadlineCancel cancel = new DeadlineCancel(10, TimeUnit.SECONDS).withBudget(
+			DeadlineCancel.Phase.LAYOUT, 200, TimeUnit.MILLISECONDS);
+		cancel.enter(DeadlineCancel.Phase.LAYOUT);
+		long start = System.currentTimeMillis();
+		try {
+			// graphviz waits for the rest of the graph
+			graphviz.writeGraphvizOutput(
+				cancel, new ByteArrayOutputStream(), GraphvizFormat.png, null, GraphvizLayout.dot,
+				new ByteArrayInputStream("digraph root {\n".getBytes()));
+			fail("Render of incomplete graph was not canceled");
+		}
+		catch(CancellationException e) {
+			// expected
+		}
+		assertTrue("Canceled in time", System.currentTimeMillis() - start < 5000);
+	}
+
+	@Test
+	public void testPNG_diskCachedResult() throws IOException {
+		final File cacheFolder = getTestOutputFolder("diskcache", true);
+		Module module = new DefaultGraphModule() {
+			@Override
+			protected void bindIGraphvizOptions() {
+				bind(IGraphvizOptions.class).toInstance(new DefaultGraphvizOptions() {
+					@Override
+					public File getDiskCacheDirectory() {
+						return cacheFolder;
+					}
+
+					@Override
+					public long getDiskCacheSize() {
+						return 400;
+					}
+				});
+			}
+		};
+		byte[][] pngs = new byte[10][];
+		Injector injector = Guice.createInjector(module);
+		IGraphviz graphviz = injector.getInstance(IGraphviz.class);
+		for(int i = 0; i < pngs.length; i++) {
+			ByteArrayOutputStream png = new ByteArrayOutputStream();
+			assertTrue("Writing PNG", graphviz.writeGraphvizOutput(
+				ICancel.NullIndicator, png, GraphvizFormat.png, null, GraphvizLayout.dot, new ByteArrayInputStream(
+					("digraph root {\n\"v" + i + "\";\n}\n").getBytes())) != null);
+			pngs[i] = png.toByteArray();
+		}
+		GraphvizDiskCache diskCache = injector.getInstance(GraphvizDiskCache.class);
+		assertTrue("Compacted", diskCache.getCompactionCount() > 0);
+		diskCache.close();
+
+		// a new runtime finds the most recent result on disk
+		injector = Guice.createInjector(module);
+		graphviz = injector.getInstance(IGraphviz.class);
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		graphviz.writeGraphvizOutput(
+			ICancel.NullIndicator, png, GraphvizFormat.png, null, GraphvizLayout.dot, new ByteArrayInputStream(
+				("digraph root {\n\"v9\";\n}\n").getBytes()));
+		assertArrayEquals("Disk cached PNG differs", pngs[9], png.toByteArray());
+		diskCache = injector.getInstance(GraphvizDiskCache.class);
+		assertEquals("Disk cache hits", 1, diskCache.getHitCount());
+		assertEquals("Rendered", 0, injector.getInstance(GraphvizProcessPool.class).getMissCount());
+		diskCache.close();
+	}
+
+	@Test
+	public void testPNG_layoutCache() throws IOException {
+		Injector injector = Guice.createInjector(new DefaultGraphModule() {
+			@Override
+			protected void bindIGraphvizOptions() {
+				bind(IGraphvizOptions.class).toInstance(new DefaultGraphvizOptions() {
+					@Override
+					public long getLayoutCacheSize() {
+						return 1024 * 1024;
+					}
+				});
+			}
+		});
+		// the uncached runner, every render must run graphviz
+		IGraphviz graphviz = injector.getInstance(Graphviz.class);
+		GraphvizLayoutCache layoutCache = injector.getInstance(GraphvizLayoutCache.class);
+		GraphCSS themeSheet = get(GraphCSS.class);
+
+		IGraphProvider graphProvider = get(SimpleGraph1.class);
+		IRootGraph testGraph = graphProvider.computeGraph();
+		themeSheet.addAll(graphProvider.getRules());
+
+		byte[] png = graphviz.toPNG(ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet);
+		assertTrue("Rendered PNG", png != null && png.length > 0);
+		assertTrue("Rendered SVG", graphviz.toSVG(
+			ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet).endsWith("</svg>\n"));
+		assertArrayEquals("PNG of cached layout differs", png, graphviz.toPNG(
+			ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet));
+		assertEquals("Layouts", 1, layoutCache.getMissCount());
+		assertEquals("Reused layouts", 2, layoutCache.getHitCount());
+		assertEquals("Cached layouts", 1, layoutCache.getResultCount());
+	}
+
+	@Test
+	public void testPNG_multipleFormats() throws IOException {
+		Injector injector = createPoolingInjector();
+		IGraphviz graphviz = injector.getInstance(Graphviz.class);
+		GraphvizProcessPool pool = injector.getInstance(GraphvizProcessPool.class);
+		GraphCSS themeSheet = get(GraphCSS.class);
+
+		IGraphProvider graphProvider = get(SimpleGraph1.class);
+		IRootGraph testGraph = graphProvider.computeGraph();
+		themeSheet.addAll(graphProvider.getRules());
+
+		Map<GraphvizFormat, byte[]> outputs = graphviz.toFormats(
+			ICancel.NullIndicator, EnumSet.of(GraphvizFormat.svg, GraphvizFormat.png, GraphvizFormat.cmapx),
+			GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet);
+		assertEquals("Started processes", 1, pool.getMissCount());
+		assertArrayEquals("PNG differs", graphviz.toPNG(
+			ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet),
+			outputs.get(GraphvizFormat.png));
+		assertEquals("SVG differs", graphviz.toSVG(
+			ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet), new String(
+			outputs.get(GraphvizFormat.svg)));
+		assertEquals("Usemap differs", graphviz.getUsemap(
+			ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet), new String(
+			outputs.get(GraphvizFormat.cmapx)));
+
+		// the pooled process renders the formats of the next graph
+		assertEquals("Rerendered formats", 3, graphviz.toFormats(
+			ICancel.NullIndicator, EnumSet.of(GraphvizFormat.svg, GraphvizFormat.png, GraphvizFormat.cmapx),
+			GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet).size());
+		assertEquals("Reused processes", 1, pool.getHitCount());
+	}
+
+	@Test
+	public void testPNG_pipelinedDotGeneration() throws IOException {
+		Injector injector = Guice.createInjector(new DefaultGraphModule() {
+			@Override
+			protected void bindIGraphvizOptions() {
+				bind(IGraphvizOptions.class).toInstance(new DefaultGraphvizOptions() {
+					@Override
+					public boolean isPipelinedDotGeneration() {
+						return true;
+					}
+				});
+			}
+		});
+		IGraphviz pipelined = injector.getInstance(Graphviz.class);
+		IGraphviz graphviz = get(Graphviz.class);
+		GraphCSS themeSheet = get(GraphCSS.class);
+
+		IGraphProvider graphProvider = get(SimpleGraph2.class);
+		IRootGraph testGraph = graphProvider.computeGraph();
+		IStyleTheme theme = get(IStyleTheme.class);
+		themeSheet.addAll(theme.getInstanceRules());
+		themeSheet.addAll(graphProvider.getRules());
+
+		assertArrayEquals("Pipelined PNG differs", graphviz.toPNG(
+			ICancel.NullIndicator, GraphvizLayout.dot, testGraph, theme.getDefaultRules(), themeSheet), pipelined.toPNG(
+			ICancel.NullIndicator, GraphvizLayout.dot, testGraph, theme.getDefaultRules(), themeSheet));
+		try {
+			// the style sheets lack label formats
+			pipelined.toPNG(ICancel.NullIndicator, GraphvizLayout.dot, testGraph, get(GraphCSS.class));
+			fail("Invalid styles were not reported");
+		}
+		catch(IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testPNG_renderScheduling() throws Exception {
+		// only a pooled process keeps its input open, which the blocker needs
+		Injector injector = createPoolingInjector(new PoolingOptions() {
+			@Override
+			public int getMaxConcurrentRenders() {
+				return 1;
+			}
+
+			@Override
+			public int getMaxQueuedRenders() {
+				return 3;
+			}
+
+			@Override
+			public int getMaxRenderThreads() {
+				return 8;
+			}
+		});
+		IAsyncGraphviz asyncGraphviz = injector.getInstance(IAsyncGraphviz.class);
+		GraphvizRenderScheduler scheduler = injector.getInstance(GraphvizRenderScheduler.class);
+
+		// graphviz waits for the rest of the graph, and holds the only render slot until canceled
+		ListenableFuture<OutputStream> blocker = asyncGraphviz.writeGraphvizOutput(
+			ICancel.NullIndicator, new ByteArrayOutputStream(), GraphvizFormat.png, null, GraphvizLayout.dot,
+			new ByteArrayInputStream("digraph root {\n".getBytes()));
+		awaitScheduler(scheduler, 1, 0);
+
+		// two renders of tenant a are queued before one of tenant b
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch rendered = new CountDownLatch(3);
+		String[] tenants = { "a", "a", "b" };
+		List<ListenableFuture<OutputStream>> renders = new ArrayList<ListenableFuture<OutputStream>>();
+		for(int i = 0; i < tenants.length; i++) {
+			final String name = tenants[i] + i;
+			String previous = GraphvizRenderScheduler.setTenant(tenants[i]);
+			try {
+				ListenableFuture<OutputStream> render = asyncGraphviz.writeGraphvizOutput(
+					ICancel.NullIndicator, new ByteArrayOutputStream(), GraphvizFormat.png, null, GraphvizLayout.dot,
+					new ByteArrayInputStream(("digraph root {\n\"" + name + "\";\n}\n").getBytes()));
+				render.addListener(new Runnable() {
+					@Override
+					public void run() {
+						order.add(name);
+						rendered.countDown();
+					}
+				}, MoreExecutors.sameThreadExecutor());
+				renders.add(render);
+			}
+			finally {
+				GraphvizRenderScheduler.setTenant(previous);
+			}
+			awaitScheduler(scheduler, 1, i + 1);
+		}
+		assertEquals("Queued renders of a", 2, scheduler.getQueueLength("a"));
+
+		// the queue is full
+		try {
+			asyncGraphviz.writeGraphvizOutput(
+				ICancel.NullIndicator, new ByteArrayOutputStream(), GraphvizFormat.png, null, GraphvizLayout.dot,
+				new ByteArrayInputStream("digraph root {\n\"rejected\";\n}\n".getBytes())).get(10, TimeUnit.SECONDS);
+			fail("Render was not rejected");
+		}
+		catch(ExecutionException e) {
+			assertTrue("Rejected", e.getCause() instanceof GraphvizRejectedException);
+		}
+		assertEquals("Rejected renders", 1, scheduler.getRejectedCount());
+
+		blocker.cancel(true);
+		for(ListenableFuture<OutputStream> render : renders)
+			assertTrue("Rendered", render.get(10, TimeUnit.SECONDS) != null);
+		assertTrue("Listeners called", rendered.await(10, TimeUnit.SECONDS));
+		// tenant b is served before the second render of tenant a
+		assertEquals("Render order " + order, "a1", order.get(2));
+		assertEquals("Admitted renders", 4, scheduler.getGrantedCount());
+		assertEquals("Running renders", 0, scheduler.getRunningCount());
+	}
+
+	private void awaitScheduler(GraphvizRenderScheduler scheduler, int running, int queued)
+			throws InterruptedException {
+		long start = System.currentTimeMillis();
+		while((scheduler.getRunningCount() != running || scheduler.getQueueLength() != queued) &&
+				System.currentTimeMillis() - start < 5000)
+			Thread.sleep(10);
+		assertEquals("Running renders", running, scheduler.getRunningCount());
+		assertEquals("Queued renders", queued, scheduler.getQueueLength());
+	}
+
+	/**
+	 * Returns an injector where graphviz processes are pooled, which is off by default.
+	 * 
+	 * @return
+	 */
+	private Injector createPoolingInjector() {
+		return createPoolingInjector(new PoolingOptions());
+	}
+
+	/**
+	 * Returns an injector with the given pooling options.
+	 * 
+	 * @param options
+	 * @return
+	 */
+	private Injector createPoolingInjector(final PoolingOptions options) {
+		return Guice.createInjector(new DefaultGraphModule() {
+			@Override
+			protected void bindIGraphvizOptions() {
+				bind(IGraphvizOptions.class).toInstance(options);
+			}
+		});
+	}
+
+	@Test
+	public void testPNG_pooledProcessIsReused() throws Exception {
+		// the uncached runner, every render must run graphviz
+		Injector injector = createPoolingInjector();
+		IGraphviz graphviz = injector.getInstance(Graphviz.class);
+		GraphvizProcessPool pool = injector.getInstance(GraphvizProcessPool.class);
+		GraphCSS themeSheet = get(GraphCSS.class);
+
+		IGraphProvider graphProvider = get(SimpleGraph1.class);
+		IRootGraph testGraph = graphProvider.computeGraph();
+		themeSheet.addAll(graphProvider.getRules());
+
+		byte[] first = null;
+		for(int i = 0; i < 3; i++) {
+			ByteArrayOutputStream png = new ByteArrayOutputStream();
+			assertTrue("Writing PNG", graphviz.writePNG(
+				ICancel.NullIndicator, png, GraphvizLayout.dot, testGraph, get(GraphCSS.class), themeSheet));
+			if(first == null)
+				first = png.toByteArray();
+			else
+				assertArrayEquals("Output of reused process differs", first, png.toByteArray());
+		}
+		assertEquals("Started processes", 1, pool.getMissCount());
+		assertEquals("Reused processes", 2, pool.getHitCount());
+
+		// the error output of the idle process goes to a file, and no pump is kept busy draining it
+		PumpExecutor pumps = injector.getInstance(IGraphvizOptions.class).getPumpExecutor();
+		assertEquals("Queued pumps", 0, pumps.getQueueDepth());
+		long start = System.currentTimeMillis();
+		while(pumps.getActiveCount() > 0 && System.currentTimeMillis() - start < 5000)
+			Thread.sleep(10);
+		assertEquals("Active pumps", 0, pumps.getActiveCount());
+
+		// processes are not pooled after a shutdown
+		pool.shutdown();
+		for(int i = 0; i < 2; i++)
+			assertTrue("Writing PNG after shutdown", graphviz.writePNG(
+				ICancel.NullIndicator, new ByteArrayOutputStream(), GraphvizLayout.dot, testGraph,
+				get(GraphCSS.class), themeSheet));
+		assertEquals("Started processes after shutdown", 3, pool.getMissCount());
+		assertEquals("Reused processes after shutdown", 2, pool.getHitCount());
+	}
+
+	/**
+	 * Tests that graphviz processes are not pooled unless pooling is turned on.
+	 */
+	@Test
+	public void testPNG_processPoolingIsOptIn() {
+		assertEquals("Default pool size", 0, get(IGraphvizOptions.class).getProcessPoolSize());
+	}
+
 }
@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A cancel indicator that cancels when a time budget has been used up. There is a budget for the
+ * entire operation, and optionally a budget for each {@link Phase} of rendering. A phase budget starts
+ * when the phase is entered.
+ * 
+ * Listeners added with {@link #addCancelListener(Runnable)} are called as soon as the indicator is canceled
+ * (i.e. when a budget expires, not when the operation next checks the indicator). The graphviz runner uses
+ * this to terminate the graphviz process.
+ * 
+ * The graphviz runner calls {@link #complete()} when a render finishes, so that the timer does not keep the
+ * indicator (and its listeners) until the deadline. An indicator should be used for one render at a time.
+ * 
+ */
+public class DeadlineCancel implements ICancel {
+	/**
+	 * The phases of rendering a graph.
+	 */
+	public enum Phase {
+		/**
+		 * Producing dot text from the graph and styles.
+		 */
+		DOT,
+
+		/**
+		 * Layout and output by graphviz.
+		 */
+		LAYOUT
+	}
+
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "graph deadline");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Completes the indicator if it is a {@link DeadlineCancel}, and does nothing otherwise.
+	 * 
+	 * @param cancel
+	 * @see #complete()
+	 */
+	public static void complete(ICancel cancel) {
+		if(cancel instanceof DeadlineCancel)
+			((DeadlineCancel) cancel).complete();
+	}
+
+	/**
+	 * Enters the given phase if the cancel indicator is a {@link DeadlineCancel}, and does nothing otherwise.
+	 * 
+	 * @param cancel
+	 * @param phase
+	 */
+	public static void enterPhase(ICancel cancel, Phase phase) {
+		if(cancel instanceof DeadlineCancel)
+			((DeadlineCancel) cancel).enter(phase);
+	}
+
+	private final long deadline;
+
+	private final EnumMap<Phase, Long> phaseBudgets = new EnumMap<Phase, Long>(Phase.class);
+
+	private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+
+	private volatile boolean canceled = false;
+
+	private volatile String reason;
+
+	private Phase phase;
+
+	private ScheduledFuture<?> expiry;
+
+	/**
+	 * Creates an indicator that cancels when the given time has passed.
+	 * 
+	 * @param budget
+	 * @param unit
+	 */
+	public DeadlineCancel(long budget, TimeUnit unit) {
+		deadline = System.nanoTime() + unit.toNanos(budget);
+		schedule(unit.toNanos(budget), "time budget");
+	}
+
+	/**
+	 * Adds a listener that is called when the indicator is canceled. The listener is called immediately if
+	 * the indicator already is canceled. Listeners should return quickly.
+	 * 
+	 * @param listener
+	 */
+	public void addCancelListener(Runnable listener) {
+		listeners.add(listener);
+		if(canceled && listeners.remove(listener))
+			listener.run();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.ICancel#assertContinue()
+	 */
+	@Override
+	public void assertContinue() throws CancellationException {
+		if(canceled)
+			throw new CancellationException(reason);
+	}
+
+	/**
+	 * Cancels the operation now.
+	 */
+	public void cancel() {
+		cancel("canceled");
+	}
+
+	private void cancel(String why) {
+		synchronized(this) {
+			if(canceled)
+				return;
+			reason = why;
+			canceled = true;
+			disarm();
+		}
+		for(Runnable listener : listeners) {
+			if(!listeners.remove(listener))
+				continue;
+			try {
+				listener.run();
+			}
+			catch(RuntimeException e) {
+				Logger log = Logger.getLogger(DeadlineCancel.class);
+				log.error("Cancel listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Stops the timer of the current budget when the operation has finished. The indicator is not canceled,
+	 * and the timer no longer refers to it. Entering a phase starts the timer again (with what is left of the
+	 * overall budget, or the budget of the phase).
+	 */
+	public synchronized void complete() {
+		disarm();
+	}
+
+	/**
+	 * Cancels the expiry task, and removes it from the timer queue (a canceled task is otherwise kept until
+	 * it is due).
+	 */
+	private synchronized void disarm() {
+		if(expiry == null)
+			return;
+		expiry.cancel(false);
+		timer.remove((Runnable) expiry);
+		expiry = null;
+	}
+
+	/**
+	 * Starts the given phase. If the phase has a budget, the indicator cancels when the budget has been
+	 * used up, or when the overall budget expires, whichever comes first.
+	 * 
+	 * @param phase
+	 */
+	public synchronized void enter(Phase phase) {
+		this.phase = phase;
+		if(canceled)
+			return;
+		Long budget = phaseBudgets.get(phase);
+		long remaining = getRemainingNanos();
+		if(budget != null && budget.longValue() < remaining)
+			schedule(budget.longValue(), "time budget for " + phase + " phase");
+		else
+			schedule(remaining, "time budget");
+	}
+
+	/**
+	 * Returns the current phase.
+	 * 
+	 * @return the phase or null if no phase has been entered.
+	 */
+	public synchronized Phase getPhase() {
+		return phase;
+	}
+
+	/**
+	 * Returns the time left of the overall budget.
+	 * 
+	 * @return remaining nanoseconds (negative if the budget has been exceeded)
+	 */
+	public long getRemainingNanos() {
+		return deadline - System.nanoTime();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.ICancel#isCanceled()
+	 */
+	@Override
+	public boolean isCanceled() {
+		return canceled;
+	}
+
+	/**
+	 * Removes a listener added with {@link #addCancelListener(Runnable)}.
+	 * 
+	 * @param listener
+	 */
+	public void removeCancelListener(Runnable listener) {
+		listeners.remove(listener);
+	}
+
+	private synchronized void schedule(long nanos, final String why) {
+		disarm();
+		if(nanos <= 0) {
+			// called with the lock held, but listeners must not be
+			timer.execute(new Runnable() {
+				@Override
+				public void run() {
+					cancel(why + " exceeded");
+				}
+			});
+			return;
+		}
+		expiry = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				cancel(why + " exceeded");
+			}
+		}, nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Sets the budget of a phase.
+	 * 
+	 * @param phase
+	 * @param budget
+	 * @param unit
+	 * @return this indicator
+	 */
+	public synchronized DeadlineCancel withBudget(Phase phase, long budget, TimeUnit unit) {
+		phaseBudgets.put(phase, unit.toNanos(budget));
+		if(phase == this.phase)
+			enter(phase);
+		return this;
+	}
+}
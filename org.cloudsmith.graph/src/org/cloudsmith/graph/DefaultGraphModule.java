@@ -14,10 +14,15 @@ package org.cloudsmith.graph;
 import org.cloudsmith.graph.dot.DotRenderer;
 import org.cloudsmith.graph.graphcss.FunctionFactory;
 import org.cloudsmith.graph.graphcss.IFunctionFactory;
+import org.cloudsmith.graph.graphviz.AsyncGraphviz;
+import org.cloudsmith.graph.graphviz.CachingGraphviz;
 import org.cloudsmith.graph.graphviz.DefaultGraphvizConfig;
+import org.cloudsmith.graph.graphviz.DefaultGraphvizOptions;
 import org.cloudsmith.graph.graphviz.Graphviz;
+import org.cloudsmith.graph.graphviz.IAsyncGraphviz;
 import org.cloudsmith.graph.graphviz.IGraphviz;
 import org.cloudsmith.graph.graphviz.IGraphvizConfig;
+import org.cloudsmith.graph.graphviz.IGraphvizOptions;
 import org.cloudsmith.graph.style.IStyleFactory;
 import org.cloudsmith.graph.style.StyleFactory;
 import org.cloudsmith.graph.style.themes.DefaultStyleTheme;
@@ -61,10 +66,20 @@ public class DefaultGraphModule extends AbstractModule {
 	}
 
 	/**
-	 * Binds implementation of graphviz runner.
+	 * Binds implementation of the asynchronous graphviz runner. The default runs the bound graphviz runner
+	 * on the configured render executor.
+	 */
+	protected void bindIAsyncGraphviz() {
+		bind(IAsyncGraphviz.class).to(AsyncGraphviz.class);
+	}
+
+	/**
+	 * Binds implementation of graphviz runner. The default is a runner that caches results, and
+	 * that delegates to the standard graphviz runner.
 	 */
 	protected void bindIGraphviz() {
-		bind(IGraphviz.class).to(Graphviz.class);
+		bind(IGraphviz.class).to(CachingGraphviz.class);
+		bind(IGraphviz.class).annotatedWith(CachingGraphviz.Delegate.class).to(Graphviz.class);
 	}
 
 	/**
@@ -74,6 +89,13 @@ public class DefaultGraphModule extends AbstractModule {
 		bind(IGraphvizConfig.class).to(DefaultGraphvizConfig.class);
 	}
 
+	/**
+	 * Binds the options for running graphviz (process pooling, caching, admission control, and executors).
+	 */
+	protected void bindIGraphvizOptions() {
+		bind(IGraphvizOptions.class).to(DefaultGraphvizOptions.class);
+	}
+
 	/**
 	 * Binds the standard style (data) factory.
 	 */
@@ -85,6 +107,14 @@ public class DefaultGraphModule extends AbstractModule {
 		bind(IStyleTheme.class).to(DefaultStyleTheme.class);
 	}
 
+	/**
+	 * Binds the number of vertices or edges a graph must have for the DotRenderer to render them in
+	 * parallel. The default is 0, which turns parallel rendering off.
+	 */
+	protected void bindParallelThresholdConstant() {
+		bindConstant().annotatedWith(DotRenderer.ParallelThreshold.class).to(0);
+	}
+
 	/**
 	 * Binds a filter factory for SVG output.
 	 */
@@ -94,6 +124,14 @@ public class DefaultGraphModule extends AbstractModule {
 			TransparentOutputStreamFilterFactory.class).in(Singleton.class);
 	}
 
+	/**
+	 * Binds whether the DotRenderer writes the attributes that elements have in common once per group of
+	 * elements. The default is false.
+	 */
+	protected void bindStyleGroupingConstant() {
+		bindConstant().annotatedWith(DotRenderer.StyleGrouping.class).to(false);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -102,13 +140,17 @@ public class DefaultGraphModule extends AbstractModule {
 	@Override
 	protected void configure() {
 		bindIGraphviz();
+		bindIAsyncGraphviz();
 		bindIGraphvizConfig();
+		bindIGraphvizOptions();
 		bindIFunctionFactory();
 		bindIStyleFactory();
 		bindDotRenderer();
 		bindIStyleTheme();
 		bindSVGOutputFilterProvider();
 		bindEmptyStringConstant();
+		bindParallelThresholdConstant();
+		bindStyleGroupingConstant();
 	}
 
 }
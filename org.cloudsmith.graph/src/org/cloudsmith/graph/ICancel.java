@@ -21,7 +21,7 @@ import java.util.concurrent.CancellationException;
  */
 public interface ICancel {
 	public static class Indicator implements ICancel {
-		private boolean cancel = false;
+		private volatile boolean cancel = false;
 
 		@Override
 		public void assertContinue() throws CancellationException {
@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph;
+
+import org.cloudsmith.graph.elements.ClusterGraph;
+import org.cloudsmith.graph.elements.Edge;
+import org.cloudsmith.graph.elements.SubGraph;
+import org.cloudsmith.graph.elements.Vertex;
+
+/**
+ * Receives the elements of a graph one at a time from an {@link IStreamingGraphProvider}, instead of as a
+ * complete graph. Elements are added to the open graph, which is the root graph until a subgraph is
+ * opened. As when a graph is built, elements without an id are given one from their position in the open
+ * graph.
+ * 
+ * A sink does not keep the vertices and edges it has received, and the provider does not need to keep
+ * them either, except for the vertices that edges added later refer to. The vertices an edge refers to must
+ * have been added before the edge.
+ * 
+ */
+public interface IGraphSink {
+
+	/**
+	 * Adds an edge to the open graph.
+	 * 
+	 * @param edge
+	 */
+	public void addEdge(Edge edge);
+
+	/**
+	 * Adds a vertex to the open graph.
+	 * 
+	 * @param vertex
+	 */
+	public void addVertex(Vertex vertex);
+
+	/**
+	 * Closes the open subgraph, and makes its parent the open graph.
+	 * 
+	 * @throws IllegalStateException
+	 *             if no subgraph is open
+	 */
+	public void closeSubgraph();
+
+	/**
+	 * Adds a cluster to the open graph, and makes it the open graph.
+	 * 
+	 * @param graph
+	 */
+	public void openSubgraph(ClusterGraph graph);
+
+	/**
+	 * Adds a subgraph to the open graph, and makes it the open graph.
+	 * 
+	 * @param graph
+	 */
+	public void openSubgraph(SubGraph graph);
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph;
+
+import org.cloudsmith.graph.graphcss.Rule;
+
+/**
+ * Interface for a provider of a graph that is too large to be built in memory. Instead of computing a
+ * graph, the provider adds the elements of the graph to a {@link IGraphSink}, which renders them as they
+ * arrive (see
+ * {@link org.cloudsmith.graph.dot.DotRenderer#write(ICancel, java.io.OutputStream, IStreamingGraphProvider, org.cloudsmith.graph.graphcss.GraphCSS, org.cloudsmith.graph.graphcss.GraphCSS...)}
+ * ).
+ */
+public interface IStreamingGraphProvider {
+
+	/**
+	 * Returns the root graph that the produced elements are added to. The root graph has the id, label, and
+	 * style classes of the graph, but no content.
+	 * 
+	 * @return
+	 */
+	public IRootGraph getRootGraph();
+
+	/**
+	 * Returns a collection of Rule containing styling rules for the specific graph.
+	 * Never returns null. As the elements are styled when they are produced, the rules must be available
+	 * before {@link #produceGraph(IGraphSink)} is called.
+	 * 
+	 * @return
+	 */
+	public Iterable<Rule> getRules();
+
+	/**
+	 * Adds the content of the root graph to the given sink. All opened subgraphs must be closed when the
+	 * method returns.
+	 * 
+	 * @param sink
+	 */
+	public void produceGraph(IGraphSink sink);
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Computes the qualified ids of graph elements, and remembers them. The qualified id of an element is the
+ * ids of the element's context (starting with the root) and the element, separated by '-', e.g.
+ * "root-g1-v3". An element without context has the qualified id "-" followed by its id.
+ * 
+ * The qualified id of an element is computed once, from the remembered qualified id of its parent, so that
+ * elements with a common context share the work of computing it. A table is meant to be used for one
+ * render, during which the ids and the structure of the graph do not change. A table can be shared by the
+ * threads of a render without locking; threads that compute the same qualified id at the same time compute
+ * the same text, and the first one is kept.
+ * 
+ * The renderer makes its table {@link #setCurrent(QualifiedIdTable) current} for the rendering threads,
+ * so that style functions evaluated during the render (e.g. the id function) can use it through
+ * {@link #qualifiedId(IGraphElement)}.
+ * 
+ */
+public class QualifiedIdTable {
+	private static final ThreadLocal<QualifiedIdTable> current = new ThreadLocal<QualifiedIdTable>();
+
+	/**
+	 * Returns the table that is current for the calling thread.
+	 * 
+	 * @return the table, or null if none is current
+	 */
+	public static QualifiedIdTable getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * Returns the qualified id of the given element, from the current table if there is one.
+	 * 
+	 * @param element
+	 * @return
+	 */
+	public static String qualifiedId(IGraphElement element) {
+		QualifiedIdTable table = current.get();
+		return table == null
+				? new QualifiedIdTable().getQualifiedId(element)
+				: table.getQualifiedId(element);
+	}
+
+	/**
+	 * Makes the given table current for the calling thread. Callers should restore the previous table when
+	 * done, e.g. in a finally block.
+	 * 
+	 * @param table
+	 *            the table, or null for none
+	 * @return the previous table
+	 */
+	public static QualifiedIdTable setCurrent(QualifiedIdTable table) {
+		QualifiedIdTable previous = current.get();
+		if(table == null)
+			current.remove();
+		else
+			current.set(table);
+		return previous;
+	}
+
+	/**
+	 * The ids of the elements' context and the elements, separated by '-'. For the root this is the id of
+	 * the root.
+	 */
+	private final ConcurrentMap<IGraphElement, String> paths = new ConcurrentHashMap<IGraphElement, String>();
+
+	private final boolean graphsOnly;
+
+	public QualifiedIdTable() {
+		this(false);
+	}
+
+	/**
+	 * @param graphsOnly
+	 *            true if only the qualified ids of graphs should be remembered, e.g. when the other elements
+	 *            are streamed and must not be kept
+	 */
+	public QualifiedIdTable(boolean graphsOnly) {
+		this.graphsOnly = graphsOnly;
+	}
+
+	private String getPath(IGraphElement element) {
+		String path = paths.get(element);
+		if(path == null) {
+			IGraphElement parent = element.getParentElement();
+			path = parent == null
+					? element.getId()
+					: getPath(parent) + "-" + element.getId();
+			if(!graphsOnly || element instanceof IGraph) {
+				String existing = paths.putIfAbsent(element, path);
+				if(existing != null)
+					path = existing;
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * Returns the qualified id of the given element.
+	 * 
+	 * @param element
+	 * @return
+	 */
+	public String getQualifiedId(IGraphElement element) {
+		return element.getParentElement() == null
+				? "-" + element.getId()
+				: getPath(element);
+	}
+}
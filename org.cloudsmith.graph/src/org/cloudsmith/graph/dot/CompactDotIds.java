@@ -0,0 +1,288 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.dot;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cloudsmith.graph.IClusterGraph;
+import org.cloudsmith.graph.IGraphElement;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The short names and id values used in place of the real ones when dot text is produced in compact mode
+ * (see {@link DotRenderer#write(org.cloudsmith.graph.ICancel, java.io.OutputStream, org.cloudsmith.graph.IGraph,
+ * CompactDotIds, org.cloudsmith.graph.graphcss.GraphCSS, org.cloudsmith.graph.graphcss.GraphCSS...)}), and the
+ * mapping back to the real names, values and graph elements.
+ * 
+ * Vertices and subgraphs are named "_" followed by a number, and clusters "cluster_" followed by a number
+ * (instead of their quoted qualified ids). The values of id attributes are replaced by "@" followed by a
+ * number (instead of e.g. the base64 encoded id and class produced by the id function). The numbers are
+ * written in base 36.
+ * 
+ * The graphviz output can be restored to what the real names and values would have produced with
+ * {@link #restoreNames(String)} and {@link #restoreValues(String)}, which is done for SVG and cmapx
+ * output by the {@link org.cloudsmith.graph.graphviz.CompactIdRestoringOutputStream}.
+ * 
+ * A table is filled in by one render, and may be read by other threads while that render is running.
+ * 
+ */
+public class CompactDotIds {
+	/**
+	 * Escapes text the way graphviz escapes names and attribute values in SVG and cmapx output.
+	 * 
+	 * @param s
+	 * @return
+	 */
+	public static String xmlEscape(String s) {
+		StringBuilder builder = new StringBuilder(s.length() + 16);
+		int length = s.length();
+		for(int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			switch(c) {
+				case '&':
+					// graphviz leaves entities as they are
+					if(isEntity(s, i + 1))
+						builder.append(c);
+					else
+						builder.append("&amp;");
+					break;
+				case '<':
+					builder.append("&lt;");
+					break;
+				case '>':
+					builder.append("&gt;");
+					break;
+				case '"':
+					builder.append("&quot;");
+					break;
+				case '\'':
+					builder.append("&#39;");
+					break;
+				case '-':
+					builder.append("&#45;");
+					break;
+				case ' ':
+					// a sequence of spaces is kept by escaping all but the first
+					if(i > 0 && s.charAt(i - 1) == ' ')
+						builder.append("&#160;");
+					else
+						builder.append(c);
+					break;
+				default:
+					builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static boolean isEntity(String s, int start) {
+		int i = start;
+		if(i < s.length() && s.charAt(i) == '#')
+			i++;
+		int nameStart = i;
+		while(i < s.length() && Character.isLetterOrDigit(s.charAt(i)))
+			i++;
+		return i > nameStart && i < s.length() && s.charAt(i) == ';';
+	}
+
+	private static boolean isNameChar(char c) {
+		return c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+	}
+
+	private static boolean isNumberChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+	}
+
+	private final Map<IGraphElement, String> names = Maps.newIdentityHashMap();
+
+	private final Map<String, IGraphElement> elements = Maps.newHashMap();
+
+	private final Map<String, String> originalNames = Maps.newHashMap();
+
+	private final List<String> values = Lists.newArrayList();
+
+	/**
+	 * Names that must not be used as short names (e.g. the name of the root graph).
+	 */
+	private final Set<String> reserved = Sets.newHashSet();
+
+	private int nameCount = 0;
+
+	/**
+	 * Returns the short name of a vertex or subgraph, and assigns one if it has none.
+	 * 
+	 * @param element
+	 * @param originalName
+	 *            the name the element has in dot text that is not compact
+	 * @return
+	 */
+	synchronized String compactName(IGraphElement element, String originalName) {
+		String name = names.get(element);
+		if(name == null) {
+			String prefix = element instanceof IClusterGraph
+					? "cluster_"
+					: "_";
+			do {
+				name = prefix + Integer.toString(nameCount++, Character.MAX_RADIX);
+			} while(reserved.contains(name));
+			names.put(element, name);
+			elements.put(name, element);
+			originalNames.put(name, originalName);
+		}
+		return name;
+	}
+
+	/**
+	 * Returns the short replacement for the value of an id attribute. Values containing '\' are not replaced,
+	 * as graphviz expands escape sequences (e.g. \N) in them.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	synchronized String compactValue(String value) {
+		if(value == null || value.indexOf('\\') >= 0)
+			return value;
+		values.add(value);
+		return "@" + Integer.toString(values.size() - 1, Character.MAX_RADIX);
+	}
+
+	/**
+	 * Returns the element that has the given short name.
+	 * 
+	 * @param compactName
+	 * @return the element, or null if no element has the name
+	 */
+	public synchronized IGraphElement getElement(String compactName) {
+		return elements.get(compactName);
+	}
+
+	/**
+	 * Returns the name that the given element has in dot text that is not compact.
+	 * 
+	 * @param element
+	 * @return the name (without quotes), or null if the element has no short name
+	 */
+	public synchronized String getOriginalName(IGraphElement element) {
+		String name = names.get(element);
+		return name == null
+				? null
+				: originalNames.get(name);
+	}
+
+	/**
+	 * Returns the name that the element with the given short name has in dot text that is not compact.
+	 * 
+	 * @param compactName
+	 * @return the name (without quotes), or null if no element has the short name
+	 */
+	public synchronized String getOriginalName(String compactName) {
+		return originalNames.get(compactName);
+	}
+
+	/**
+	 * Returns the value an id attribute had before it was replaced by the given short value.
+	 * 
+	 * @param compactValue
+	 * @return the value, or null if the short value is unknown
+	 */
+	public synchronized String getOriginalValue(String compactValue) {
+		if(compactValue.length() < 2 || compactValue.charAt(0) != '@')
+			return null;
+		int index;
+		try {
+			index = Integer.parseInt(compactValue.substring(1), Character.MAX_RADIX);
+		}
+		catch(NumberFormatException e) {
+			return null;
+		}
+		return index >= 0 && index < values.size()
+				? values.get(index)
+				: null;
+	}
+
+	/**
+	 * Prevents the given name from being used as a short name.
+	 * 
+	 * @param name
+	 */
+	synchronized void reserve(String name) {
+		reserved.add(name);
+	}
+
+	/**
+	 * Replaces the short names in text from graphviz output (e.g. an SVG title or comment) with the
+	 * {@link #xmlEscape(String) escaped} original names. Other text is left as it is.
+	 * 
+	 * @param text
+	 * @return
+	 */
+	public synchronized String restoreNames(String text) {
+		StringBuilder builder = null;
+		int length = text.length();
+		int i = 0;
+		while(i < length) {
+			char c = text.charAt(i);
+			if(!isNameChar(c)) {
+				if(builder != null)
+					builder.append(c);
+				i++;
+				continue;
+			}
+			int start = i;
+			while(i < length && isNameChar(text.charAt(i)))
+				i++;
+			String original = originalNames.get(text.substring(start, i));
+			if(original != null) {
+				if(builder == null)
+					builder = new StringBuilder(length + 64).append(text, 0, start);
+				builder.append(xmlEscape(original));
+			}
+			else if(builder != null)
+				builder.append(text, start, i);
+		}
+		return builder == null
+				? text
+				: builder.toString();
+	}
+
+	/**
+	 * Replaces the short values in the value of an id attribute from graphviz output (which may have been
+	 * prefixed or suffixed by graphviz, e.g. "a_@1") with the {@link #xmlEscape(String) escaped} original
+	 * values.
+	 * 
+	 * @param text
+	 * @return
+	 */
+	public synchronized String restoreValues(String text) {
+		int at = text.indexOf('@');
+		if(at < 0)
+			return text;
+		StringBuilder builder = new StringBuilder(text.length() + 64);
+		int copied = 0;
+		for(; at >= 0; at = text.indexOf('@', at + 1)) {
+			int end = at + 1;
+			while(end < text.length() && isNumberChar(text.charAt(end)))
+				end++;
+			String original = getOriginalValue(text.substring(at, end));
+			if(original != null) {
+				builder.append(text, copied, at).append(xmlEscape(original));
+				copied = end;
+			}
+		}
+		return builder.append(text, copied, text.length()).toString();
+	}
+}
@@ -11,8 +11,8 @@
  */
 package org.cloudsmith.graph.dot;
 
-import java.io.PrintStream;
 import java.util.Collection;
+import java.util.List;
 
 import org.cloudsmith.graph.ElementType;
 import org.cloudsmith.graph.ICancel;
@@ -20,6 +20,7 @@ import org.cloudsmith.graph.IClusterGraph;
 import org.cloudsmith.graph.IEdge;
 import org.cloudsmith.graph.IGraphElement;
 import org.cloudsmith.graph.ILabeledGraphElement;
+import org.cloudsmith.graph.IVertex;
 import org.cloudsmith.graph.graphcss.GraphCSS;
 import org.cloudsmith.graph.graphcss.StyleSet;
 import org.cloudsmith.graph.style.Alignment;
@@ -39,6 +40,7 @@ import org.cloudsmith.graph.style.labels.ILabelTemplate;
 import org.cloudsmith.graph.utils.Counter;
 
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
@@ -59,6 +61,60 @@ public class DotGraphElementRenderer {
 		this.emptyString = emptyString;
 	}
 
+	/**
+	 * Returns the attributes that the styles of an element produce, in the order they are printed by
+	 * {@link #printStyles(ICancel, DotWriter, IGraphElement, GraphCSS)}. An attribute is e.g. color="red", but
+	 * may be several attributes separated by commas when they are produced by one style.
+	 * 
+	 * @param cancel
+	 * @param out
+	 *            the writer the attributes are to be printed on (nothing is printed on it)
+	 * @param element
+	 * @param gcss
+	 * @return
+	 */
+	public List<String> collectAttributes(ICancel cancel, DotWriter out, IGraphElement element, GraphCSS gcss) {
+		List<String> attributes = Lists.newArrayList();
+		long mark = out.mark();
+		printStyles(cancel, out, element, false, gcss.getComputedStyles(element, cancel).getStyles(), gcss, attributes);
+		out.rollback(mark);
+		return attributes;
+	}
+
+	/**
+	 * Returns the label a vertex must have in compact mode when no label is printed for it, as graphviz
+	 * would otherwise label it with its short name.
+	 * 
+	 * @return the real name escaped as a dot string, or null if no default label is needed
+	 */
+	private String compactDefaultLabel(DotWriter out, IGraphElement element) {
+		CompactDotIds compactIds = out.getCompactIds();
+		if(compactIds == null || !(element instanceof IVertex))
+			return null;
+		String name = compactIds.getOriginalName(element);
+		if(name == null)
+			return null;
+		StringBuilder builder = new StringBuilder(name.length() + 8);
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if(c == '"' || c == '\\')
+				builder.append('\\');
+			builder.append(c);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Returns the text of the attributes printed after the given mark, without the separator before them.
+	 */
+	private String attributeText(DotWriter out, long mark) {
+		String text = out.getText(mark);
+		int start = 0;
+		while(start < text.length() && ",; \n".indexOf(text.charAt(start)) >= 0)
+			start++;
+		return text.substring(start);
+	}
+
 	private String emptyString(String x) {
 		if(x == null || x.length() == 0)
 			x = emptyString;
@@ -80,11 +136,18 @@ public class DotGraphElementRenderer {
 	 *            - collected styles for the element
 	 * @param gcss
 	 *            - css for nested label elements
+	 * @param attributes
+	 *            - where the text of each printed attribute is added, or null
 	 */
-	private int printStyles(final ICancel cancel, final PrintStream out, final IGraphElement element,
-			final boolean statementList, final Collection<IStyle<?>> s, final GraphCSS gcss) {
+	private int printStyles(final ICancel cancel, final DotWriter out, final IGraphElement element,
+			final boolean statementList, final Collection<IStyle<?>> s, final GraphCSS gcss,
+			final List<String> attributes) {
+		final String defaultLabel = statementList
+				? null
+				: compactDefaultLabel(out, element);
+
 		// if no styles, output nothing
-		if(s == null || s.size() < 1)
+		if((s == null || s.size() < 1) && defaultLabel == null)
 			return 0;
 		final char sepChar = statementList
 				? ';'
@@ -93,315 +156,335 @@ public class DotGraphElementRenderer {
 		final ElementType elementType = element.getElementType();
 
 		if(!statementList)
-			out.print("[\n");
+			out.append("[\n");
 
 		final Counter o = new Counter(sepChar, '\n');
 
-		for(IStyle<?> style : s) {
-			// If the style is not applicable to the current element - skip it
-			//
-			if(!style.supports(elementType))
-				continue;
-
-			final IStyleVisitor visitor = new StyleVisitor() {
-				@Override
-				public void align(Alignment x) {
-					out.printf("%slabeljust=\"%s\"", o.separator(), x.toString().charAt(0));
-				}
-
-				@Override
-				public void arrowHead(Arrow x) {
-					out.printf("%sarrowhead=\"%s\"", o.separator(), x);
-				}
-
-				@Override
-				public void arrows(Arrow x) {
-					out.printf("%sarrowhead=\"%s\"", o.separator(), x);
-					out.printf(", arrowtail=\"%s\"", x);
-				}
-
-				@Override
-				public void arrowScale(double x) {
-					out.printf("%sarrowsize=\"%s\"", o.separator(), x);
-				}
-
-				@Override
-				public void arrowTail(Arrow x) {
-					out.printf("%sarrowtail=\"%s\"", o.separator(), x);
-				}
-
-				@Override
-				public void backgroundColor(String v) {
-					out.printf("%sbgcolor=\"%s\"", o.separator(), v);
-				}
-
-				@Override
-				public void color(String v) {
-					out.printf("%sfontcolor=\"%s\"", o.separator(), v);
-				}
-
-				@Override
-				public void compound(boolean x) {
-					out.printf("%scompound=\"%s\"", o.separator(), x);
-				}
-
-				@Override
-				public void concentrate(boolean x) {
-					out.printf("%sconcentrate=\"%s\"", o.separator(), x);
-				}
-
-				@Override
-				public void decorate(boolean x) {
-					out.printf("%sdecorate=\"%s\"", o.separator(), x);
-				}
-
-				@Override
-				public void direction(EdgeDirection x) {
-					out.printf("%sdir=\"%s\"", o.separator(), x);
-				}
-
-				@Override
-				public void fillColor(String v) {
-					out.printf("%sfillcolor=\"%s\"", o.separator(), v);
-				}
-
-				@Override
-				public void fontFamily(String x) {
-					out.printf("%sfontname=\"%s\"", o.separator(), x);
-				}
-
-				@Override
-				public void fontSize(int x) {
-					out.printf("%sfontsize=\"%s\"", o.separator(), x);
-				}
-
-				@Override
-				public void fromCluster(IClusterGraph value) {
-					if(!(element instanceof IEdge))
-						throw new IllegalArgumentException("fromCluster can only be applied to an edge");
-					IEdge edge = (IEdge) element;
-					if(!Iterators.contains(edge.getFrom().getContext(), value))
-						throw new IllegalArgumentException("edge fromCluster must have a from-vertex in given cluster");
-					out.printf("%sltail=\"cluster_%s\"", o.separator(), value.getId());
-				}
-
-				@Override
-				public void headPort(String x) {
-					{
-						String tmp = x;
-						if(tmp == null || tmp.length() < 1) {
-							o.decrement(); // nothing printed
-						}
-						out.printf("%sheadport=\"%s\"", o.separator(), tmp);
-					}
-				}
-
-				@Override
-				public void href(String x) {
-					if(x != null && x.length() > 0)
-						out.printf("%sURL=\"%s\"", o.separator(), x);
-					else
+		final Counter labels = new Counter();
+
+		// the visitor does not depend on the style, and is shared by all styles
+		final IStyleVisitor visitor = new StyleVisitor() {
+			@Override
+			public void align(Alignment x) {
+				out.append(o.separator()).attribute("labeljust", x.toString().charAt(0));
+			}
+
+			@Override
+			public void arrowHead(Arrow x) {
+				out.append(o.separator()).attribute("arrowhead", x);
+			}
+
+			@Override
+			public void arrows(Arrow x) {
+				out.append(o.separator()).attribute("arrowhead", x);
+				out.append(", ").attribute("arrowtail", x);
+			}
+
+			@Override
+			public void arrowScale(double x) {
+				out.append(o.separator()).attribute("arrowsize", x);
+			}
+
+			@Override
+			public void arrowTail(Arrow x) {
+				out.append(o.separator()).attribute("arrowtail", x);
+			}
+
+			@Override
+			public void backgroundColor(String v) {
+				out.append(o.separator()).attribute("bgcolor", v);
+			}
+
+			@Override
+			public void color(String v) {
+				out.append(o.separator()).attribute("fontcolor", v);
+			}
+
+			@Override
+			public void compound(boolean x) {
+				out.append(o.separator()).attribute("compound", x);
+			}
+
+			@Override
+			public void concentrate(boolean x) {
+				out.append(o.separator()).attribute("concentrate", x);
+			}
+
+			@Override
+			public void decorate(boolean x) {
+				out.append(o.separator()).attribute("decorate", x);
+			}
+
+			@Override
+			public void direction(EdgeDirection x) {
+				out.append(o.separator()).attribute("dir", x);
+			}
+
+			@Override
+			public void fillColor(String v) {
+				out.append(o.separator()).attribute("fillcolor", v);
+			}
+
+			@Override
+			public void fontFamily(String x) {
+				out.append(o.separator()).attribute("fontname", x);
+			}
+
+			@Override
+			public void fontSize(int x) {
+				out.append(o.separator()).attribute("fontsize", x);
+			}
+
+			@Override
+			public void fromCluster(IClusterGraph value) {
+				if(!(element instanceof IEdge))
+					throw new IllegalArgumentException("fromCluster can only be applied to an edge");
+				IEdge edge = (IEdge) element;
+				if(!Iterators.contains(edge.getFrom().getContext(), value))
+					throw new IllegalArgumentException("edge fromCluster must have a from-vertex in given cluster");
+				out.append(o.separator()).append("ltail=\"cluster_").append(value.getId()).append('"');
+			}
+
+			@Override
+			public void headPort(String x) {
+				{
+					String tmp = x;
+					if(tmp == null || tmp.length() < 1) {
 						o.decrement(); // nothing printed
-				}
-
-				@Override
-				public void id(String value) {
-					out.printf("%sid=\"%s\"", o.separator(), value);
-				}
-
-				@Override
-				public void labelFormat(ILabelTemplate x) {
-					// labels are tricky - if there is no label format nothing is printed,
-					// if the label format EL evaluated rendered to false, nothing is printed
-					//
-					{
-						ILabelTemplate tmp = x;
-						if(tmp != null) {
-							// print the label, and if nothing printed, adjust the comma count
-							if(!labelRenderer.print(
-								out, (ILabeledGraphElement) element, tmp, o.isSeparatorNeeded(), sepChar, gcss, cancel))
-								o.decrement(); // nothing printed
-						}
-						else
-							o.decrement(); // no format, nothing was printed
 					}
-				}
-
-				@Override
-				public void lineBrush(LineBrush brush) {
-					out.printf("%sstyle=\"", o.separator());
-					{
-						// LineBrush brush = ((Styles.EdgeBrush) style).getValue();
-						out.printf("%s, ", brush.getLineType());
-						out.printf("setlinewidth(%s)", brush.getLineWidth());
-						out.print("\"");
+					out.append(o.separator()).attribute("headport", tmp);
+				}
+			}
+
+			@Override
+			public void href(String x) {
+				if(x != null && x.length() > 0)
+					out.append(o.separator()).attribute("URL", x);
+				else
+					o.decrement(); // nothing printed
+			}
+
+			@Override
+			public void id(String value) {
+				CompactDotIds compactIds = out.getCompactIds();
+				out.append(o.separator()).attribute("id", compactIds == null
+						? value
+						: compactIds.compactValue(value));
+			}
+
+			@Override
+			public void labelFormat(ILabelTemplate x) {
+				// labels are tricky - if there is no label format nothing is printed,
+				// if the label format EL evaluated rendered to false, nothing is printed
+				//
+				{
+					ILabelTemplate tmp = x;
+					if(tmp != null) {
+						// print the label, and if nothing printed, adjust the comma count
+						if(labelRenderer.print(
+							out, (ILabeledGraphElement) element, tmp, o.isSeparatorNeeded(), sepChar, gcss, cancel))
+							labels.increment();
+						else
+							o.decrement(); // nothing printed
 					}
-				}
-
-				@Override
-				public void lineColor(String x) { // i.e. border color
-					out.printf("%scolor=\"%s\"", o.separator(), x);
-				}
-
-				@Override
-				public void mclimit(double value) {
-					out.printf("%smclimit=\"%s\"", o.separator(), value);
-				}
-
-				@Override
-				public void rankDirection(RankDirection x) {
-					// only applies to graph, and only if it is the root
-					//
-					if(element.getParentElement() == null)
-						out.printf("%srankdir=\"%s\"", o.separator(), x);
 					else
+						o.decrement(); // no format, nothing was printed
+				}
+			}
+
+			@Override
+			public void lineBrush(LineBrush brush) {
+				out.append(o.separator()).append("style=\"");
+				{
+					// LineBrush brush = ((Styles.EdgeBrush) style).getValue();
+					out.append(brush.getLineType()).append(", ");
+					out.append("setlinewidth(").append(brush.getLineWidth()).append(')');
+					out.append('"');
+				}
+			}
+
+			@Override
+			public void lineColor(String x) { // i.e. border color
+				out.append(o.separator()).attribute("color", x);
+			}
+
+			@Override
+			public void mclimit(double value) {
+				out.append(o.separator()).attribute("mclimit", value);
+			}
+
+			@Override
+			public void rankDirection(RankDirection x) {
+				// only applies to graph, and only if it is the root
+				//
+				if(element.getParentElement() == null)
+					out.append(o.separator()).attribute("rankdir", x);
+				else
+					o.decrement(); // nothing printed
+			}
+
+			@Override
+			public void rankSeparation(double x) {
+				// only applies to graph, and only if it is the root
+				//
+				if(element.getParentElement() == null)
+					out.append(o.separator()).attribute("ranksep", x);
+				else
+					o.decrement(); // nothing printed
+			}
+
+			@Override
+			public void remincross(boolean value) {
+				out.append(o.separator()).attribute("remincross", value);
+			}
+
+			@Override
+			public void routing(EdgeRouting x) {
+				out.append(o.separator()).attribute("splines", x);
+			}
+
+			@Override
+			public void shape(NodeShape x) {
+				if(elementType == ElementType.graph) {
+					System.err.println("Weird - shape call for Graph");
+				}
+				out.append(o.separator()).attribute("shape", x);
+			}
+
+			@Override
+			public void shapeBrush(ShapeBrush brush) {
+				// only graphs of cluster type can have style set
+				if(elementType == ElementType.cluster) {
+					o.decrement();
+				}
+				else {
+					out.append(o.separator()).append("style=\"");
+					// ShapeBrush brush = ((Styles.NodeBrush) style).getValue();
+					out.append(brush.getLineType()).append(", ");
+					out.append("setlinewidth(").append(brush.getLineWidth()).append(')');
+					if(brush.isFilled())
+						out.append(", filled");
+					if(brush.isRounded())
+						out.append(", rounded");
+					// close the style=" "
+					out.append('"');
+				}
+			}
+
+			@Override
+			public void tailPort(String x) {
+				{
+					String tmp = x;
+					if(tmp == null || tmp.length() < 1) {
 						o.decrement(); // nothing printed
-				}
-
-				@Override
-				public void rankSeparation(double x) {
-					// only applies to graph, and only if it is the root
-					//
-					if(element.getParentElement() == null)
-						out.printf("%sranksep=\"%s\"", o.separator(), x);
-					else
-						o.decrement(); // nothing printed
-				}
-
-				@Override
-				public void remincross(boolean value) {
-					out.printf("%sremincross=\"%s\"", o.separator(), value);
-				}
-
-				@Override
-				public void routing(EdgeRouting x) {
-					out.printf("%ssplines=\"%s\"", o.separator(), x);
-				}
-
-				@Override
-				public void shape(NodeShape x) {
-					if(elementType == ElementType.graph) {
-						System.err.println("Weird - shape call for Graph");
 					}
-					out.printf("%sshape=\"%s\"", o.separator(), x);
-				}
-
-				@Override
-				public void shapeBrush(ShapeBrush brush) {
-					// only graphs of cluster type can have style set
-					if(elementType == ElementType.cluster) {
-						o.decrement();
-					}
-					else {
-						out.printf("%sstyle=\"", o.separator());
-						// ShapeBrush brush = ((Styles.NodeBrush) style).getValue();
-						out.printf("%s, ", brush.getLineType());
-						out.printf("setlinewidth(%s)", brush.getLineWidth());
-						if(brush.isFilled())
-							out.print(", filled");
-						if(brush.isRounded())
-							out.print(", rounded");
-						// close the style=" "
-						out.print("\"");
-					}
-				}
-
-				@Override
-				public void tailPort(String x) {
-					{
-						String tmp = x;
-						if(tmp == null || tmp.length() < 1) {
-							o.decrement(); // nothing printed
-						}
-						out.printf("%stailport=\"%s\"", o.separator(), tmp);
-					}
-				}
-
-				@Override
-				public void toCluster(IClusterGraph value) {
-					if(!(element instanceof IEdge))
-						throw new IllegalArgumentException("toCluster can only be applied to an edge");
-					IEdge edge = (IEdge) element;
-					if(!Iterators.contains(edge.getTo().getContext(), value))
-						throw new IllegalArgumentException("edge toCluster must have a to-vertex in given cluster");
-
-					out.printf("%slhead=\"cluster_%s\"", o.separator(), value.getId());
-
-				}
-
-				@Override
-				public void tooltip(String x) {
-					out.printf("%stooltip=\"%s\"", o.separator(), emptyString(x));
-				}
-
-				@Override
-				public void tooltipForHead(String x) {
-					out.printf("%sheadtooltip=\"%s\"", o.separator(), emptyString(x));
-				}
-
-				@Override
-				public void tooltipForLabel(String x) {
-					out.printf("%slabeltooltip=\"%s\"", o.separator(), emptyString(x));
-				}
-
-				@Override
-				public void tooltipForTail(String x) {
-					out.printf("%stailtooltip=\"%s\"", o.separator(), emptyString(x));
-				}
-
-				@Override
-				public void unsupported(StyleType style) {
-					throw new IllegalArgumentException("Style:" + style + ", is not applicable to " +
-							"element of class: " + element.getClass());
-				}
-
-				@Override
-				public void verticalAlign(VerticalAlignment x) {
-					// The VerticalAlignment uses "c" for center when applied to lables, it is
-					// "middle" otherwise.
-					char c = x.toString().charAt(0);
-					if(c == 'm')
-						c = 'c';
-
-					out.printf("%slabelloc=\"%s\"", o.separator(), c);
-				}
-
-				@Override
-				public void weight(double value) {
-					out.printf("%sweight=\"%s\"", o.separator(), value);
-				}
-
-			};
-			style.visit(element, visitor);
+					out.append(o.separator()).attribute("tailport", tmp);
+				}
+			}
+
+			@Override
+			public void toCluster(IClusterGraph value) {
+				if(!(element instanceof IEdge))
+					throw new IllegalArgumentException("toCluster can only be applied to an edge");
+				IEdge edge = (IEdge) element;
+				if(!Iterators.contains(edge.getTo().getContext(), value))
+					throw new IllegalArgumentException("edge toCluster must have a to-vertex in given cluster");
+
+				out.append(o.separator()).append("lhead=\"cluster_").append(value.getId()).append('"');
+
+			}
+
+			@Override
+			public void tooltip(String x) {
+				out.append(o.separator()).attribute("tooltip", emptyString(x));
+			}
+
+			@Override
+			public void tooltipForHead(String x) {
+				out.append(o.separator()).attribute("headtooltip", emptyString(x));
+			}
+
+			@Override
+			public void tooltipForLabel(String x) {
+				out.append(o.separator()).attribute("labeltooltip", emptyString(x));
+			}
+
+			@Override
+			public void tooltipForTail(String x) {
+				out.append(o.separator()).attribute("tailtooltip", emptyString(x));
+			}
+
+			@Override
+			public void unsupported(StyleType style) {
+				throw new IllegalArgumentException("Style:" + style + ", is not applicable to " +
+						"element of class: " + element.getClass());
+			}
+
+			@Override
+			public void verticalAlign(VerticalAlignment x) {
+				// The VerticalAlignment uses "c" for center when applied to lables, it is
+				// "middle" otherwise.
+				char c = x.toString().charAt(0);
+				if(c == 'm')
+					c = 'c';
+
+				out.append(o.separator()).attribute("labelloc", c);
+			}
+
+			@Override
+			public void weight(double value) {
+				out.append(o.separator()).attribute("weight", value);
+			}
+
+		};
+		if(s != null)
+			for(IStyle<?> style : s) {
+				// If the style is not applicable to the current element - skip it
+				//
+				if(!style.supports(elementType))
+					continue;
+				long mark = out.mark();
+				int count = o.value();
+				style.visit(element, visitor);
+				o.increment();
+				if(attributes != null && o.value() > count)
+					attributes.add(attributeText(out, mark));
+			}
+		if(defaultLabel != null && labels.value() == 0) {
+			long mark = out.mark();
+			out.append(o.separator()).attribute("label", defaultLabel);
 			o.increment();
+			if(attributes != null)
+				attributes.add(attributeText(out, mark));
 		}
 		// close
 		if(!statementList)
-			out.print("]");
+			out.append(']');
 		else
-			out.print(";");
+			out.append(';');
 		return o.value();
 	}
 
-	private int printStyles(ICancel cancel, PrintStream out, IGraphElement element, Collection<IStyle<?>> s,
+	private int printStyles(ICancel cancel, DotWriter out, IGraphElement element, Collection<IStyle<?>> s,
 			GraphCSS gcss) {
-		return printStyles(cancel, out, element, false, s, gcss);
+		return printStyles(cancel, out, element, false, s, gcss, null);
 	}
 
-	public int printStyles(ICancel cancel, PrintStream out, IGraphElement element, GraphCSS gcss) {
-		return printStyles(cancel, out, element, gcss.collectStyles(element, cancel).getStyles(), gcss);
+	public int printStyles(ICancel cancel, DotWriter out, IGraphElement element, GraphCSS gcss) {
+		return printStyles(cancel, out, element, gcss.getComputedStyles(element, cancel).getStyles(), gcss);
 	}
 
-	public int printStyles(ICancel cancel, PrintStream out, IGraphElement element, StyleSet styleMap, GraphCSS gcss) {
+	public int printStyles(ICancel cancel, DotWriter out, IGraphElement element, StyleSet styleMap, GraphCSS gcss) {
 		return printStyles(cancel, out, element, styleMap.getStyles(), gcss);
 	}
 
-	public int printStyleStatements(ICancel cancel, PrintStream out, IGraphElement element, Collection<IStyle<?>> s,
+	public int printStyleStatements(ICancel cancel, DotWriter out, IGraphElement element, Collection<IStyle<?>> s,
 			GraphCSS gcss) {
-		return printStyles(cancel, out, element, true, s, gcss);
+		return printStyles(cancel, out, element, true, s, gcss, null);
 	}
 
-	public int printStyleStatements(ICancel cancel, PrintStream out, IGraphElement element, GraphCSS gcss) {
-		return printStyles(cancel, out, element, true, gcss.collectStyles(element, cancel).getStyles(), gcss);
+	public int printStyleStatements(ICancel cancel, DotWriter out, IGraphElement element, GraphCSS gcss) {
+		return printStyles(
+			cancel, out, element, true, gcss.getComputedStyles(element, cancel).getStyles(), gcss, null);
 	}
 }
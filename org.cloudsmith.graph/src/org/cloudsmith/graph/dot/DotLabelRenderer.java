@@ -12,10 +12,10 @@
 
 package org.cloudsmith.graph.dot;
 
-import java.io.ByteArrayOutputStream;
-import java.io.PrintStream;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import org.cloudsmith.graph.ICancel;
 import org.cloudsmith.graph.IGraphElement;
@@ -27,31 +27,32 @@ import org.cloudsmith.graph.elements.GraphCell;
 import org.cloudsmith.graph.elements.GraphRow;
 import org.cloudsmith.graph.elements.GraphTable;
 import org.cloudsmith.graph.graphcss.GraphCSS;
-import org.cloudsmith.graph.graphcss.StyleSet;
 import org.cloudsmith.graph.style.Alignment;
 import org.cloudsmith.graph.style.IStyle;
 import org.cloudsmith.graph.style.IStyleFactory;
 import org.cloudsmith.graph.style.IStyleVisitor;
-import org.cloudsmith.graph.style.Span;
-import org.cloudsmith.graph.style.StyleFactory;
 import org.cloudsmith.graph.style.StyleType;
 import org.cloudsmith.graph.style.StyleVisitor;
 import org.cloudsmith.graph.style.VerticalAlignment;
 import org.cloudsmith.graph.style.labels.DynamicLabelTemplate;
 import org.cloudsmith.graph.style.labels.ILabelTemplate;
-import org.cloudsmith.graph.style.labels.LabelCell;
 import org.cloudsmith.graph.style.labels.LabelMatrix;
-import org.cloudsmith.graph.style.labels.LabelRow;
 import org.cloudsmith.graph.style.labels.LabelStringTemplate;
 import org.cloudsmith.graph.style.labels.LabelTable;
 import org.cloudsmith.graph.utils.Counter;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 /**
  * Renders dot labels.
  * 
+ * Table and matrix templates are compiled once (see {@link LabelTablePlan} and {@link LabelMatrixPlan}), so
+ * that only their dynamic parts are evaluated for each element. The text of table labels that are rendered
+ * the same way for many elements is cached per set of style rules (see {@link LabelFragmentCache}).
+ * 
  */
 @Singleton
 public class DotLabelRenderer {
@@ -61,18 +62,38 @@ public class DotLabelRenderer {
 
 	private final String emptyString;
 
+	/**
+	 * The label caches of the style rules that are (or have recently been) used.
+	 */
+	private final ConcurrentMap<GraphCSS, LabelFragmentCache> fragmentCaches = new MapMaker().weakKeys().makeMap();
+
+	/**
+	 * The compiled label templates that are (or have recently been) used.
+	 */
+	private final ConcurrentMap<ILabelTemplate, Object> plans = new MapMaker().weakKeys().makeMap();
+
 	@Inject
 	public DotLabelRenderer(@DotRenderer.EmptyString String emptyString) {
 		this.emptyString = emptyString;
 	}
 
-	private GraphTable createTable(ILabeledGraphElement theGraphElement, LabelTable templateTable, ICancel cancel) {
+	/**
+	 * Creates the label graph of a compiled table template for an element. If a cache key is given, the
+	 * dynamic style classes and values of the label graph are added to it (the plan stands for the rest).
+	 */
+	private GraphTable createTable(ILabeledGraphElement theGraphElement, LabelTable templateTable,
+			LabelTablePlan plan, List<Object> key, ICancel cancel) {
 		// Context methodContext = Contexts.getMethodContext();
 		// methodContext.set("element", m_ge);
 
 		// create the GraphTable using a styleClass that is possibly set using
 		// EL
-		Set<String> tmp = templateTable.getStyleClasses(theGraphElement);
+		Set<String> tmp = plan.styleClasses;
+		if(tmp == null) {
+			tmp = templateTable.getStyleClasses(theGraphElement);
+			if(key != null)
+				key.add(tmp);
+		}
 
 		GraphTable gt = new GraphTable(tmp);
 
@@ -80,64 +101,75 @@ public class DotLabelRenderer {
 		gt.setParentElement(theGraphElement);
 
 		// For all rows in the template, create a GraphRow
-		for(LabelRow r : templateTable.getRows()) {
+		for(LabelTablePlan.Row r : plan.rows) {
 			cancel.assertContinue();
 
-			tmp = r.getStyleClasses(theGraphElement);
-			GraphRow gr = r.isSeparator()
+			tmp = r.styleClasses;
+			if(tmp == null) {
+				tmp = r.row.getStyleClasses(theGraphElement);
+				if(key != null)
+					key.add(tmp);
+			}
+			GraphRow gr = r.row.isSeparator()
 					? new GraphRow.SeparatorRow()
 					: new GraphRow(tmp);
 			gt.addRow(gr);
 
 			// for all cells in the template, create a GraphCell
-			for(LabelCell c : r.getCells()) {
-				tmp = c.getStyleClass(theGraphElement);
-				ILabelTemplate template = c.getValue(theGraphElement);
-				if(template == null)
-					template = new LabelStringTemplate("");
-
-				// resolve dynamic template to depth 100
-				for(int i = 0; template instanceof DynamicLabelTemplate; i++) {
-					if(i > 100)
-						throw new IllegalArgumentException("Dynamic Templates nested too deep > 100");
-					template = ((DynamicLabelTemplate) template).getTemplate(theGraphElement);
+			for(LabelTablePlan.Cell c : r.cells) {
+				tmp = c.styleClasses;
+				if(tmp == null) {
+					tmp = c.cell.getStyleClass(theGraphElement);
+					if(key != null)
+						key.add(tmp);
 				}
 
 				GraphCell gc = null;
-				if(c.isSeparator()) {
+				if(c.cell.isSeparator()) {
 					gc = new GraphCell.SeparatorCell();
 				}
-				else if(template instanceof LabelStringTemplate) {
-					String val = ((LabelStringTemplate) template).getTemplateString(theGraphElement);
-					val = (val == null)
-							? ""
-							: val;
-
-					gc = new GraphCell(val, tmp);
+				else if(c.text != null) {
+					gc = new GraphCell(c.text, tmp);
 				}
-				else if(template instanceof LabelTable) {
+				else if(c.table != null) {
 					gc = new GraphCell("", tmp);
-					gc.setTableContent(createTable(theGraphElement, (LabelTable) template, cancel));
+					gc.setTableContent(createTable(theGraphElement, c.table, c.tablePlan, key, cancel));
+				}
+				else {
+					ILabelTemplate template = c.cell.getValue(theGraphElement);
+					if(template == null)
+						template = new LabelStringTemplate("");
+
+					// resolve dynamic template to depth 100
+					for(int i = 0; template instanceof DynamicLabelTemplate; i++) {
+						if(i > 100)
+							throw new IllegalArgumentException("Dynamic Templates nested too deep > 100");
+						template = ((DynamicLabelTemplate) template).getTemplate(theGraphElement);
+					}
+					if(template instanceof LabelStringTemplate) {
+						String val = ((LabelStringTemplate) template).getTemplateString(theGraphElement);
+						val = (val == null)
+								? ""
+								: val;
+
+						gc = new GraphCell(val, tmp);
+						if(key != null)
+							key.add(val);
+					}
+					else if(template instanceof LabelTable) {
+						LabelTablePlan tablePlan = getPlan((LabelTable) template);
+						if(key != null)
+							key.add(tablePlan);
+						gc = new GraphCell("", tmp);
+						gc.setTableContent(createTable(theGraphElement, (LabelTable) template, tablePlan, key, cancel));
+					}
 				}
 				// TODO: MUST BE ABLE TO PICK UP INSTANCE STYLES FOR LABEL CELL
 
-				// If the labelCell has instance styles, make sure they are included
-				StyleSet instanceSet = c.getStyles();
-				StyleSet styleMap = new StyleSet();
-				styleMap.add(instanceSet);
-
-				// If the label cell has a span that is not 1x1, set that as instance style
-				// of the rendered IGraphCell.
-				Span span = c.getSpan();
-				if(span != null && span != Span.SPAN_1x1) {
-					if(span.getRowspan() != 1)
-						styleMap.put(new StyleFactory.RowSpan(span.getRowspan()));
-					if(span.getColspan() != 1)
-						styleMap.put(new StyleFactory.ColSpan(span.getColspan()));
-				}
-				// If there were any instance styles - apply them
-				if(styleMap.getStyles().size() > 0)
-					gc.setStyles(styleMap);
+				// If the labelCell has instance styles or a span that is not 1x1, they were compiled
+				// into the plan - apply them
+				if(c.styles != null)
+					gc.setStyles(c.styles);
 				gr.addCell(gc);
 			}
 		}
@@ -150,41 +182,60 @@ public class DotLabelRenderer {
 		return x;
 	}
 
-	/**
-	 * Escapes characters that are unsafe in a dot table label.
-	 * 
-	 * @param s
-	 * @return
-	 */
-	private String escapeUnsafe(String s) {
-		s = s.replace("&", "&amp;");
-		s = s.replace("<", "&lt;");
-		s = s.replace(">", "&gt;");
-		s = s.replace("\n", "<BR/>");
-		return s;
+	private LabelFragmentCache getFragmentCache(GraphCSS gcss) {
+		LabelFragmentCache cache = fragmentCaches.get(gcss);
+		if(cache == null) {
+			LabelFragmentCache created = new LabelFragmentCache(gcss);
+			cache = fragmentCaches.putIfAbsent(gcss, created);
+			if(cache == null)
+				cache = created;
+		}
+		return cache;
+	}
+
+	private LabelMatrixPlan getPlan(LabelMatrix matrix) {
+		Object plan = plans.get(matrix);
+		if(plan == null) {
+			Object created = new LabelMatrixPlan(matrix, styles);
+			plan = plans.putIfAbsent(matrix, created);
+			if(plan == null)
+				plan = created;
+		}
+		return (LabelMatrixPlan) plan;
+	}
+
+	private LabelTablePlan getPlan(LabelTable table) {
+		Object plan = plans.get(table);
+		if(plan == null) {
+			Object created = new LabelTablePlan(table);
+			plan = plans.putIfAbsent(table, created);
+			if(plan == null)
+				plan = created;
+		}
+		return (LabelTablePlan) plan;
 	}
 
 	/**
 	 * 
 	 * @param ge
 	 * @param labelnode
+	 * @param functions
+	 *            incremented for each style that is a function of the element, may be null
 	 * @return a vector of three strings - the parsed element attributes, attributes for font, and attribute for rendered.
 	 */
 	private String[] parseGraphTableAttributes(final ILabeledGraphElement ge, final IGraphElement labelnode,
-			GraphCSS styleRules, ICancel cancel) {
+			GraphCSS styleRules, Counter functions, ICancel cancel) {
 		final String[] result = new String[3];
 		// in case there are no attributes to set
 		result[0] = "";
 		result[1] = "";
 		result[2] = "true";
 
-		final ByteArrayOutputStream elementText = new ByteArrayOutputStream();
-		final ByteArrayOutputStream fontText = new ByteArrayOutputStream();
-		final PrintStream elementStream = new PrintStream(elementText);
-		final PrintStream fontStream = new PrintStream(fontText);
+		final StringBuilder elementText = new StringBuilder();
+		final StringBuilder fontText = new StringBuilder();
 
 		// get the styling for the gt
-		Collection<IStyle<?>> s = styleRules.collectStyles(labelnode, cancel).getStyles();
+		Collection<IStyle<?>> s = styleRules.getComputedStyles(labelnode, cancel).getStyles();
 		if(s == null || s.size() < 1)
 			return result; // no attributes to set
 
@@ -194,17 +245,17 @@ public class DotLabelRenderer {
 		IStyleVisitor visitor = new StyleVisitor() {
 			@Override
 			public void align(Alignment x) {
-				elementStream.printf(" ALIGN=\"%s\"", x);
+				elementText.append(" ALIGN=\"").append(x).append('"');
 			}
 
 			@Override
 			public void backgroundColor(String x) {
-				elementStream.printf(" BGCOLOR=\"%s\"", x);
+				elementText.append(" BGCOLOR=\"").append(x).append('"');
 			}
 
 			@Override
 			public void borderWidth(int x) {
-				elementStream.printf(" BORDER=\"%s\"", x);
+				elementText.append(" BORDER=\"").append(x).append('"');
 			}
 
 			@Override
@@ -212,7 +263,7 @@ public class DotLabelRenderer {
 				if(!(labelnode instanceof ITable))
 					throw new IllegalArgumentException("cellBorderWidth is not a supported style attribute of a - " +
 							labelnode.getClass() + ". Use borderWidth on a cell.");
-				elementStream.printf(" CELLBORDER=\"%s\"", x);
+				elementText.append(" CELLBORDER=\"").append(x).append('"');
 			}
 
 			@Override
@@ -220,18 +271,18 @@ public class DotLabelRenderer {
 				if(!(labelnode instanceof ITable || labelnode instanceof ITableCell))
 					throw new IllegalArgumentException("cellPadding is not a supported style attribute of a " +
 							labelnode.getClass());
-				elementStream.printf(" CELLPADDING=\"%s\"", x);
+				elementText.append(" CELLPADDING=\"").append(x).append('"');
 			}
 
 			@Override
 			public void cellSpacing(int x) {
-				elementStream.printf(" CELLSPACING=\"%s\"", x);
+				elementText.append(" CELLSPACING=\"").append(x).append('"');
 			}
 
 			@Override
 			public void color(String x) {
 				count.decrement(); // don't count as element's attribute
-				fontStream.printf(" COLOR=\"%s\"", x);
+				fontText.append(" COLOR=\"").append(x).append('"');
 			}
 
 			@Override
@@ -239,24 +290,24 @@ public class DotLabelRenderer {
 				if(!(labelnode instanceof ITableCell))
 					throw new IllegalArgumentException("colSpan is not a supported style attribute of a " +
 							labelnode.getClass());
-				elementStream.printf(" COLSPAN=\"%s\"", x);
+				elementText.append(" COLSPAN=\"").append(x).append('"');
 			}
 
 			@Override
 			public void fixedSize(boolean x) {
-				elementStream.printf(" FIXEDSIZE=\"%s\"", x);
+				elementText.append(" FIXEDSIZE=\"").append(x).append('"');
 			}
 
 			@Override
 			public void fontFamily(String x) {
 				count.decrement(); // don't count as element's attribute
-				fontStream.printf(" FACE=\"%s\"", x);
+				fontText.append(" FACE=\"").append(x).append('"');
 			}
 
 			@Override
 			public void fontSize(int x) {
 				count.decrement(); // don't count as element's attribute
-				fontStream.printf(" POINT-SIZE=\"%d\"", x);
+				fontText.append(" POINT-SIZE=\"").append(x).append('"');
 				fontCount.increment();
 			}
 
@@ -271,7 +322,7 @@ public class DotLabelRenderer {
 			 */
 			@Override
 			public void height(double x) {
-				elementStream.printf(" HEIGHT=\"%s\"", Math.round(x));
+				elementText.append(" HEIGHT=\"").append(Math.round(x)).append('"');
 			}
 
 			@Override
@@ -279,12 +330,12 @@ public class DotLabelRenderer {
 				if(x == null || x.length() < 1)
 					count.decrement();
 				else
-					elementStream.printf(" HREF=\"%s\"", x);
+					elementText.append(" HREF=\"").append(x).append('"');
 			}
 
 			@Override
 			public void port(String x) {
-				elementStream.printf(" PORT=\"%s\"", x);
+				elementText.append(" PORT=\"").append(x).append('"');
 			}
 
 			@Override
@@ -298,17 +349,17 @@ public class DotLabelRenderer {
 				if(!(labelnode instanceof ITableCell))
 					throw new IllegalArgumentException("rowSpan is not a supported style attribute of a " +
 							labelnode.getClass());
-				elementStream.printf(" ROWSPAN=\"%s\"", x);
+				elementText.append(" ROWSPAN=\"").append(x).append('"');
 			}
 
 			@Override
 			public void target(String x) {
-				elementStream.printf(" TARGET=\"%s\"", x);
+				elementText.append(" TARGET=\"").append(x).append('"');
 			}
 
 			@Override
 			public void tooltip(String x) {
-				elementStream.printf(" TOOLTIP=\"%s\"", emptyString(x));
+				elementText.append(" TOOLTIP=\"").append(emptyString(x)).append('"');
 			}
 
 			@Override
@@ -319,7 +370,7 @@ public class DotLabelRenderer {
 
 			@Override
 			public void verticalAlign(VerticalAlignment x) {
-				elementStream.printf(" VALIGN=\"%s\"", x);
+				elementText.append(" VALIGN=\"").append(x).append('"');
 			}
 
 			/**
@@ -327,11 +378,13 @@ public class DotLabelRenderer {
 			 */
 			@Override
 			public void width(double x) {
-				elementStream.printf(" WIDTH=\"%s\"", Math.round(x));
+				elementText.append(" WIDTH=\"").append(Math.round(x)).append('"');
 			}
 		};
 
 		for(IStyle<?> style : s) {
+			if(functions != null && style.isFunction())
+				functions.increment();
 			style.visit(ge, visitor);
 			count.increment();
 			cancel.assertContinue();
@@ -353,7 +406,7 @@ public class DotLabelRenderer {
 	 *            , if true a comma is printed before the label.
 	 * @return
 	 */
-	public boolean print(PrintStream out, ILabeledGraphElement theGraphElement, ILabelTemplate labelTemplate,
+	public boolean print(DotWriter out, ILabeledGraphElement theGraphElement, ILabelTemplate labelTemplate,
 			boolean printComma, char sepChar, GraphCSS gcss, ICancel cancel) {
 		// resolve dynamic template to depth 100
 		for(int i = 0; labelTemplate instanceof DynamicLabelTemplate; i++) {
@@ -372,12 +425,13 @@ public class DotLabelRenderer {
 
 	}
 
-	private void printGraphCell(PrintStream out, ILabeledGraphElement ge, ITableCell gc, GraphCSS gcss, ICancel cancel) {
+	private void printGraphCell(DotWriter out, ILabeledGraphElement ge, ITableCell gc, GraphCSS gcss,
+			Counter functions, ICancel cancel) {
 		if(gc.isSeparator()) {
-			out.print("<VR/>");
+			out.append("<VR/>");
 			return;
 		}
-		String[] p = parseGraphTableAttributes(ge, gc, gcss, cancel);
+		String[] p = parseGraphTableAttributes(ge, gc, gcss, functions, cancel);
 		// if "rendered" == false, do not output anything
 		if(p[2].toLowerCase().equals("false"))
 			return;
@@ -388,36 +442,37 @@ public class DotLabelRenderer {
 		// if there are font attributes - output that around the text in the cell
 		// (unless text is empty string = graphviz error).
 		boolean withFontData = gt == null && p[1] != null && p[1].length() > 0 && cellText.length() > 0;
-		out.printf("<TD %s>", p[0]);
+		out.append("<TD ").append(p[0]).append('>');
 		if(withFontData)
-			out.printf("<FONT %s>", p[1]);
+			out.append("<FONT ").append(p[1]).append('>');
 
 		// the value has already been interpolated when the GraphCell was set up
 		// so just output the table or a string here.
 		if(gt != null)
-			printGraphTable(out, ge, gt, gcss, cancel);
+			printGraphTable(out, ge, gt, gcss, functions, cancel);
 		else
-			out.print(escapeUnsafe(cellText));
+			out.appendEscaped(cellText);
 		if(withFontData)
-			out.print("</FONT>");
-		out.print("</TD>");
+			out.append("</FONT>");
+		out.append("</TD>");
 	}
 
-	private void printGraphRow(PrintStream out, ILabeledGraphElement ge, ITableRow gr, GraphCSS gcss, ICancel cancel) {
+	private void printGraphRow(DotWriter out, ILabeledGraphElement ge, ITableRow gr, GraphCSS gcss,
+			Counter functions, ICancel cancel) {
 		if(gr.isSeparator()) {
-			out.print("<HR/>");
+			out.append("<HR/>");
 			return;
 		}
 
-		out.print("<TR>");
+		out.append("<TR>");
 		for(ITableCell gc : gr.getCells())
-			printGraphCell(out, ge, gc, gcss, cancel);
-		out.print("</TR>");
+			printGraphCell(out, ge, gc, gcss, functions, cancel);
+		out.append("</TR>");
 	}
 
-	private boolean printGraphTable(PrintStream out, ILabeledGraphElement theGraphElement, ITable gt, GraphCSS gcss,
-			ICancel cancel) {
-		String[] p = parseGraphTableAttributes(theGraphElement, gt, gcss, cancel);
+	private boolean printGraphTable(DotWriter out, ILabeledGraphElement theGraphElement, ITable gt, GraphCSS gcss,
+			Counter functions, ICancel cancel) {
+		String[] p = parseGraphTableAttributes(theGraphElement, gt, gcss, functions, cancel);
 		// if "rendered" == false, do not output anything
 		if(p[2].toLowerCase().equals("false"))
 			return false;
@@ -427,76 +482,78 @@ public class DotLabelRenderer {
 		boolean withFontData = p[1] != null && p[1].length() > 0;
 		// out.print("<");
 		if(withFontData)
-			out.printf("<FONT %s>", p[1]);
-		out.printf("<TABLE %s>", p[0]);
+			out.append("<FONT ").append(p[1]).append('>');
+		out.append("<TABLE ").append(p[0]).append('>');
 		for(ITableRow r : gt.getRows())
-			printGraphRow(out, theGraphElement, r, gcss, cancel);
-		out.print("</TABLE>");
+			printGraphRow(out, theGraphElement, r, gcss, functions, cancel);
+		out.append("</TABLE>");
 		if(withFontData)
-			out.print("</FONT>");
+			out.append("</FONT>");
 		// out.print(">");
 		return true;
 	}
 
-	private boolean printMatrix(PrintStream out, ILabeledGraphElement theGraphElement, LabelMatrix templateMatrix,
+	private boolean printMatrix(DotWriter out, ILabeledGraphElement theGraphElement, LabelMatrix templateMatrix,
 			boolean printComma, char sepChar, GraphCSS gcss, ICancel cancel) {
+		LabelMatrixPlan plan = getPlan(templateMatrix);
 
 		// create the GraphTable using a styleClass that is possibly set using
 		// EL
-		String tmp = templateMatrix.getStyleClass(theGraphElement);
+		String tmp = plan.tableClass != null
+				? plan.tableClass
+				: templateMatrix.getStyleClass(theGraphElement);
 
 		GraphTable gt = new GraphTable(tmp);
 
 		// set parent so containment selection for styles work
 		gt.setParentElement(theGraphElement);
 		// set a port "pt" on the table itself so it can be pointed to
-		gt.setStyles(styles.port("pt"));
+		gt.setStyles(plan.tableStyles);
 
 		// For all rows in the template, create a GraphRow
 		for(int r = 0; r < templateMatrix.getRows(); r++) {
-			tmp = templateMatrix.getRowStyleClass(theGraphElement);
+			tmp = plan.rowClass != null
+					? plan.rowClass
+					: templateMatrix.getRowStyleClass(theGraphElement);
 			GraphRow gr = new GraphRow(tmp);
 			gt.addRow(gr);
 			// for all cells in the template, create a GraphCell
 			for(int c = 0; c < templateMatrix.getColumns(); c++) {
-				tmp = templateMatrix.getCellStyleClass(theGraphElement);
-				String val = templateMatrix.getValue(r, c);
-				GraphCell gc = new GraphCell(val, tmp);
+				tmp = plan.cellClass != null
+						? plan.cellClass
+						: templateMatrix.getCellStyleClass(theGraphElement);
+				GraphCell gc = new GraphCell(plan.values[r][c], tmp);
 				gr.addCell(gc);
-
-				StyleSet styleMap = new StyleSet();
-				styleMap.put(styles.port("p" + templateMatrix.getValue(r, c)));
-				gc.setStyles(styleMap);
-
+				gc.setStyles(plan.cellStyles[r][c]);
 			}
 		}
 		// Now armed with the label graph - we need to visit those nodes, get the styling of them, and provide
 		// output!
 		//
-		String[] p = parseGraphTableAttributes(theGraphElement, gt, gcss, cancel);
+		String[] p = parseGraphTableAttributes(theGraphElement, gt, gcss, null, cancel);
 		// if "rendered" == false, do not output anything
 		if(p[2].toLowerCase().equals("false"))
 			return false;
 
-		out.printf("%slabel=", printComma
-				? sepChar + " "
-				: "");
+		if(printComma)
+			out.append(sepChar).append(' ');
+		out.append("label=");
 
-		return printGraphTable(out, theGraphElement, gt, gcss, cancel);
+		return printGraphTable(out, theGraphElement, gt, gcss, null, cancel);
 	}
 
-	private boolean printStringLabel(PrintStream out, ILabeledGraphElement theGraphElement, String simpleTemplate,
+	private boolean printStringLabel(DotWriter out, ILabeledGraphElement theGraphElement, String simpleTemplate,
 			boolean printComma, char sepChar) {
 		String tmp = simpleTemplate; // already interpolated
 
 		// if there is a result output that as the label without any styling.
 		if(tmp != null && tmp.length() < 1)
 			return false;
-		out.printf("%slabel=\"", printComma
-				? sepChar + " "
-				: "");
-		out.print(tmp); // use print to preserve /n
-		out.print("\"");
+		if(printComma)
+			out.append(sepChar).append(' ');
+		out.append("label=\"");
+		out.append(tmp); // appended as is to preserve /n
+		out.append('"');
 		return true;
 	}
 
@@ -512,25 +569,58 @@ public class DotLabelRenderer {
 	 * @param cancel
 	 * @return
 	 */
-	private boolean printTable(PrintStream out, ILabeledGraphElement theGraphElement, LabelTable templateTable,
+	private boolean printTable(DotWriter out, ILabeledGraphElement theGraphElement, LabelTable templateTable,
 			boolean printComma, char sepChar, GraphCSS gcss, ICancel cancel) {
-		GraphTable gt = createTable(theGraphElement, templateTable, cancel);
+		// the label is looked up in the cache on what the styles of the label graph depend on
+		LabelTablePlan plan = getPlan(templateTable);
+		LabelFragmentCache cache = getFragmentCache(gcss);
+		List<Object> key = null;
+		if(cache.isEnabled()) {
+			key = Lists.newArrayList();
+			cache.addContext(key, theGraphElement);
+			key.add(plan);
+		}
+		GraphTable gt = createTable(theGraphElement, templateTable, plan, key, cancel);
+		if(key != null) {
+			byte[] fragment = cache.get(key);
+			if(fragment == LabelFragmentCache.NOT_RENDERED)
+				return false;
+			if(fragment == LabelFragmentCache.NOT_CACHEABLE)
+				key = null;
+			else if(fragment != null) {
+				if(printComma)
+					out.append(sepChar).append(' ');
+				out.append("label=").append(fragment, 0, fragment.length);
+				return true;
+			}
+		}
 
 		// Now armed with the label graph - we need to visit those nodes, get the styling of them, and provide
 		// output!
 		//
-		String[] p = parseGraphTableAttributes(theGraphElement, gt, gcss, cancel);
+		Counter functions = new Counter();
+		String[] p = parseGraphTableAttributes(theGraphElement, gt, gcss, functions, cancel);
 		// if "rendered" == false, do not output anything
-		if(p[2].toLowerCase().equals("false"))
+		if(p[2].toLowerCase().equals("false")) {
+			if(key != null)
+				cache.put(key, functions.value() == 0
+						? LabelFragmentCache.NOT_RENDERED
+						: LabelFragmentCache.NOT_CACHEABLE);
 			return false;
+		}
 
-		out.printf("%slabel=", printComma
-				? sepChar + " "
-				: "");
-
-		out.print("<");
-		boolean result = printGraphTable(out, theGraphElement, gt, gcss, cancel);
-		out.print(">");
+		if(printComma)
+			out.append(sepChar).append(' ');
+		out.append("label=");
+
+		long mark = out.mark();
+		out.append('<');
+		boolean result = printGraphTable(out, theGraphElement, gt, gcss, functions, cancel);
+		out.append('>');
+		if(key != null)
+			cache.put(key, functions.value() == 0
+					? out.getBytes(mark)
+					: LabelFragmentCache.NOT_CACHEABLE);
 		return result;
 	}
 
@@ -13,34 +13,79 @@ package org.cloudsmith.graph.dot;
 
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
-import java.io.PrintStream;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.cloudsmith.graph.ICancel;
 import org.cloudsmith.graph.IClusterGraph;
 import org.cloudsmith.graph.IEdge;
 import org.cloudsmith.graph.IGraph;
 import org.cloudsmith.graph.IGraphElement;
+import org.cloudsmith.graph.IGraphSink;
 import org.cloudsmith.graph.IRootGraph;
+import org.cloudsmith.graph.IStreamingGraphProvider;
 import org.cloudsmith.graph.IVertex;
+import org.cloudsmith.graph.QualifiedIdTable;
+import org.cloudsmith.graph.elements.ClusterGraph;
 import org.cloudsmith.graph.elements.Edge;
+import org.cloudsmith.graph.elements.GraphElement;
 import org.cloudsmith.graph.elements.RootGraph;
+import org.cloudsmith.graph.elements.SubGraph;
 import org.cloudsmith.graph.elements.Vertex;
 import org.cloudsmith.graph.graphcss.GraphCSS;
 import org.cloudsmith.graph.graphcss.StyleSet;
-import org.cloudsmith.graph.style.StyleFactory;
 import org.cloudsmith.graph.style.StyleType;
 
-import com.google.common.collect.Iterators;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.inject.BindingAnnotation;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 
 /**
  * Produces dot output from a Graph instance.
+ * 
+ * The renderer keeps no state between calls to {@link #write(ICancel, OutputStream, IGraph, GraphCSS, GraphCSS...)}
+ * (the state of a write is kept in a {@link RenderContext}), and one instance can serve concurrent writes.
+ * 
+ * In compact mode (see {@link #write(ICancel, OutputStream, IGraph, CompactDotIds, GraphCSS, GraphCSS...)}),
+ * vertices and subgraphs are referenced by short names instead of their quoted qualified ids, and id
+ * attribute values are shortened. This makes the dot text much smaller for graphviz to read and parse.
+ * 
+ * The vertices and edges of a large graph can be rendered in parallel (see {@link #setParallelThreshold(int)}).
+ * The text of each chunk of elements is produced by a separate task, and the texts are written in the order
+ * of the elements, so that the dot text is the same as when the elements are rendered one at a time.
+ * 
+ * A graph that is too large to be built in memory can be streamed to the renderer by an
+ * {@link IStreamingGraphProvider} (see {@link #write(ICancel, OutputStream, IStreamingGraphProvider, GraphCSS, GraphCSS...)}).
+ * Each element is rendered when it is added, and is not kept after that.
+ * 
+ * With style grouping (see {@link #setStyleGrouping(boolean)}), the attributes that vertices (or edges) of a
+ * graph have in common are written once, as defaults in an anonymous subgraph that holds the elements.
+ * 
+ * When the default rules and the style sheets are {@link GraphCSS#freeze() frozen}, the rules merged from
+ * them and the default styles are computed once, and are shared by the renders that use the same rules
+ * (along with the styles and labels cached for the merged rules).
  */
+@Singleton
 public class DotRenderer {
 
 	/**
@@ -52,104 +97,498 @@ public class DotRenderer {
 	public @interface EmptyString {
 	}
 
-	private PrintStream out;
+	/**
+	 * Annotation to use for the number of vertices or edges a graph must have for them to be rendered in
+	 * parallel (0 to never render in parallel).
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ ElementType.FIELD, ElementType.PARAMETER })
+	@BindingAnnotation
+	public @interface ParallelThreshold {
+	}
+
+	/**
+	 * Annotation to use for whether common attributes of vertices and edges should be written once per group
+	 * of elements.
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ ElementType.FIELD, ElementType.PARAMETER })
+	@BindingAnnotation
+	public @interface StyleGrouping {
+	}
+
+	/**
+	 * The style rules of a render, merged from the default rules and the style sheets, and the default styles
+	 * computed from them. When all the given rules are frozen, the compiled styles are frozen too, and are
+	 * shared by the renders that use the same rules (see {@link DotRenderer#compileStyles}).
+	 */
+	private static class CompiledStyles {
+		private final GraphCSS theGCSS;
+
+		private final GraphCSS defaultGCSS;
+
+		private final IRootGraph graphPrototype;
+
+		private final Vertex vertexPrototype;
+
+		private final Edge edgePrototype;
+
+		private final StyleSet defaultGraphStyles;
+
+		private final StyleSet defaultNodeStyles;
+
+		private final StyleSet defaultEdgeStyles;
+
+		/**
+		 * The default graph, node and edge statements as they are written when the dot text is not compact, or
+		 * null if they have not been written yet (they are only kept for frozen rules).
+		 */
+		private volatile byte[] defaultStatements;
+
+		/**
+		 * The defaultRules are the rules that are used to set dot (static) defaults per ElementType.
+		 * These rules can not contain EL statements, nor any styles that needs to be set per instance.
+		 * 
+		 * The styleRules are the rules that are added to an instance rule set. Lowest priority first.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             for invalid input
+		 */
+		CompiledStyles(ICancel cancel, GraphCSS defaultGCSS, GraphCSS... styleRules) {
+			if(defaultGCSS == null)
+				throw new IllegalArgumentException("default style rules is null");
+
+			graphPrototype = new RootGraph("", "", "prototype");
+			vertexPrototype = new Vertex("", "", "prototype");
+			edgePrototype = new Edge(vertexPrototype, vertexPrototype, "prototype");
+
+			theGCSS = new GraphCSS();
+			for(GraphCSS gcss : styleRules)
+				theGCSS.addAll(gcss);
+
+			this.defaultGCSS = defaultGCSS;
+
+			defaultGraphStyles = defaultGCSS.collectStyles(graphPrototype, cancel);
+			defaultNodeStyles = defaultGCSS.collectStyles(vertexPrototype, cancel);
+			defaultEdgeStyles = defaultGCSS.collectStyles(edgePrototype, cancel);
+
+			// assert that label formats are available - look up label formats in the instance rules.
+			//
+			if(theGCSS.collectStyles(graphPrototype, cancel).getStyleValue(StyleType.labelFormat, graphPrototype) == null)
+				throw new IllegalArgumentException("Default graph label format is null");
+			if(theGCSS.collectStyles(vertexPrototype, cancel).getStyleValue(StyleType.labelFormat, vertexPrototype) == null)
+				throw new IllegalArgumentException("Default graph label format is null");
+			if(theGCSS.collectStyles(edgePrototype, cancel).getStyleValue(StyleType.labelFormat, edgePrototype) == null)
+				throw new IllegalArgumentException("Default graph label format is null");
+
+			if(defaultGCSS.isFrozen() && DotRenderer.isFrozen(styleRules))
+				theGCSS.freeze();
+		}
+
+		boolean isFrozen() {
+			return theGCSS.isFrozen();
+		}
+	}
+
+	/**
+	 * The state of one call to {@link DotRenderer#write(ICancel, OutputStream, IGraph, GraphCSS, GraphCSS...)}.
+	 */
+	private static class RenderContext {
+		private final DotWriter out;
+
+		private final CompactDotIds compactIds;
+
+		/**
+		 * True if the elements are streamed, in which case only graphs are remembered.
+		 */
+		private final boolean streaming;
+
+		private final GraphCSS theGCSS;
+
+		private final GraphCSS defaultGCSS;
+
+		private final IRootGraph graphPrototype;
+
+		private final Vertex vertexPrototype;
+
+		private final Edge edgePrototype;
+
+		private final StyleSet defaultGraphStyles;
+
+		private final StyleSet defaultNodeStyles;
+
+		private final StyleSet defaultEdgeStyles;
+
+		private final QualifiedIdTable ids;
+
+		/**
+		 * The formatted references of the vertices and graphs that have been referenced.
+		 */
+		private final Map<IGraphElement, String> references = Maps.newIdentityHashMap();
+
+		private final CompiledStyles styles;
+
+		RenderContext(DotWriter out, boolean streaming, CompiledStyles styles) {
+			this.out = out;
+			this.compactIds = out.getCompactIds();
+			this.streaming = streaming;
+			this.ids = new QualifiedIdTable(streaming);
+			this.styles = styles;
+
+			this.graphPrototype = styles.graphPrototype;
+			this.vertexPrototype = styles.vertexPrototype;
+			this.edgePrototype = styles.edgePrototype;
+			this.theGCSS = styles.theGCSS;
+			this.defaultGCSS = styles.defaultGCSS;
+			this.defaultGraphStyles = styles.defaultGraphStyles;
+			this.defaultNodeStyles = styles.defaultNodeStyles;
+			this.defaultEdgeStyles = styles.defaultEdgeStyles;
+		}
+
+		/**
+		 * A context for rendering a chunk of elements of the given context to another writer. The style rules
+		 * and qualified ids are shared with the given context.
+		 */
+		RenderContext(RenderContext ctx, DotWriter out) {
+			this.out = out;
+			this.compactIds = ctx.compactIds;
+			this.streaming = ctx.streaming;
+			this.ids = ctx.ids;
+			this.styles = ctx.styles;
+			this.graphPrototype = ctx.graphPrototype;
+			this.vertexPrototype = ctx.vertexPrototype;
+			this.edgePrototype = ctx.edgePrototype;
+			this.theGCSS = ctx.theGCSS;
+			this.defaultGCSS = ctx.defaultGCSS;
+			this.defaultGraphStyles = ctx.defaultGraphStyles;
+			this.defaultNodeStyles = ctx.defaultNodeStyles;
+			this.defaultEdgeStyles = ctx.defaultEdgeStyles;
+		}
+	}
+
+	/**
+	 * Renders the elements added by a streaming graph provider as they are added.
+	 */
+	private class GraphSink implements IGraphSink {
+		/**
+		 * A graph that is open, and the number of elements of each kind that have been added to it.
+		 */
+		private class OpenGraph {
+			private final IGraph graph;
+
+			private int vertices;
+
+			private int edges;
+
+			private int subgraphs;
+
+			OpenGraph(IGraph graph) {
+				this.graph = graph;
+			}
+		}
+
+		private final RenderContext ctx;
+
+		private final ICancel cancel;
+
+		private final List<OpenGraph> open = Lists.newArrayList();
+
+		GraphSink(RenderContext ctx, IRootGraph root, ICancel cancel) {
+			this.ctx = ctx;
+			this.cancel = cancel;
+			open.add(new OpenGraph(root));
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.cloudsmith.graph.IGraphSink#addEdge(org.cloudsmith.graph.elements.Edge)
+		 */
+		@Override
+		public void addEdge(Edge edge) {
+			cancel.assertContinue();
+			OpenGraph parent = getOpenGraph();
+			add(edge, "e", ++parent.edges);
+			printEdge(ctx, edge, cancel);
+		}
 
-	private GraphCSS theGCSS;
+		/**
+		 * Adds an element to the open graph, with an id from its position if it has none (as when a graph is
+		 * built).
+		 */
+		private void add(GraphElement element, String idPrefix, int position) {
+			if(element.getId() == null)
+				element.setId(idPrefix + position);
+			element.setParentElement(getOpenGraph().graph);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.cloudsmith.graph.IGraphSink#addVertex(org.cloudsmith.graph.elements.Vertex)
+		 */
+		@Override
+		public void addVertex(Vertex vertex) {
+			cancel.assertContinue();
+			OpenGraph parent = getOpenGraph();
+			add(vertex, "v", ++parent.vertices);
+			printVertex(ctx, vertex, cancel);
+		}
+
+		/**
+		 * Prints the styles of the root graph. All subgraphs must have been closed.
+		 */
+		void close() {
+			if(open.size() != 1)
+				throw new IllegalStateException("A subgraph is still open");
+			printGraphStyles(ctx, getOpenGraph().graph, cancel);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.cloudsmith.graph.IGraphSink#closeSubgraph()
+		 */
+		@Override
+		public void closeSubgraph() {
+			if(open.size() == 1)
+				throw new IllegalStateException("No subgraph is open");
+			cancel.assertContinue();
+			printGraphStyles(ctx, open.remove(open.size() - 1).graph, cancel);
+			ctx.out.append("}\n");
+			ctx.out.commit();
+		}
+
+		private OpenGraph getOpenGraph() {
+			return open.get(open.size() - 1);
+		}
 
-	StyleFactory.LabelFormat defaultNodeLabelFormat;
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.cloudsmith.graph.IGraphSink#openSubgraph(org.cloudsmith.graph.elements.ClusterGraph)
+		 */
+		@Override
+		public void openSubgraph(ClusterGraph graph) {
+			openSubgraph((GraphElement) graph);
+		}
 
-	StyleFactory.LabelFormat defaultEdgeLabelFormat;
+		private void openSubgraph(GraphElement graph) {
+			cancel.assertContinue();
+			OpenGraph parent = getOpenGraph();
+			add(graph, "g", ++parent.subgraphs);
+			ctx.out.append(formatReference(ctx, graph)).append(" {\n");
+			open.add(new OpenGraph((IGraph) graph));
+		}
 
-	StyleFactory.LabelFormat defaultGraphLabelFormat;
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.cloudsmith.graph.IGraphSink#openSubgraph(org.cloudsmith.graph.elements.SubGraph)
+		 */
+		@Override
+		public void openSubgraph(SubGraph graph) {
+			openSubgraph((GraphElement) graph);
+		}
+	}
 
-	private StyleSet defaultGraphStyles;
+	/**
+	 * The smallest number of elements rendered by one task when rendering in parallel.
+	 */
+	private static final int MIN_CHUNK_SIZE = 64;
 
-	private StyleSet defaultNodeStyles;
+	/**
+	 * The largest number of compiled styles that are kept for frozen rules.
+	 */
+	private static final int MAX_COMPILED_STYLES = 16;
 
-	private StyleSet defaultEdgeStyles;
+	private static boolean isFrozen(GraphCSS... styleRules) {
+		for(GraphCSS gcss : styleRules)
+			if(!gcss.isFrozen())
+				return false;
+		return true;
+	}
 
-	private IRootGraph graphPrototype;
+	private final DotGraphElementRenderer elementRenderer;
 
-	private Vertex vertexPrototype;
+	private volatile int parallelThreshold = 0;
 
-	private Edge edgePrototype;
+	private volatile boolean styleGrouping = false;
 
-	private DotGraphElementRenderer elementRenderer;
+	/**
+	 * Runs the tasks of parallel renders, created when first needed.
+	 */
+	private ExecutorService executor;
 
-	private GraphCSS defaultGCSS;
+	/**
+	 * The compiled styles of frozen rules, by the default rules followed by the style sheets.
+	 */
+	private final Cache<List<GraphCSS>, CompiledStyles> compiledStyles = CacheBuilder.newBuilder().maximumSize(
+		MAX_COMPILED_STYLES).build();
 
 	@Inject
 	public DotRenderer(DotGraphElementRenderer elementRenderer) {
 		this.elementRenderer = elementRenderer;
 	}
 
-	private String formatReference(IGraphElement element) {
-		IGraphElement[] parents = Iterators.toArray(element.getContext(), IGraphElement.class);
-		int plength = (parents == null)
-				? 0
-				: parents.length;
-		StringBuffer buf = new StringBuffer(10 + 5 * plength);
+	/**
+	 * Returns the merged rules and default styles of a render. If all the rules are frozen, the same compiled
+	 * styles are returned for the same rules.
+	 */
+	/**
+	 * Fails the render if the dot text could not be written to the stream (e.g. as the stream was closed
+	 * by a canceled consumer, in which case the render is reported as canceled).
+	 * 
+	 * @param out
+	 * @param cancel
+	 */
+	private void checkWritten(DotWriter out, ICancel cancel) {
+		if(!out.checkError())
+			return;
+		cancel.assertContinue();
+		throw new RuntimeException("Could not write dot text", out.getError());
+	}
 
-		// the vertex can be an instance of IGraph in which case it should be handled as
-		// a subgraph, and the name is different if the subgraph is a cluster
-		if(element instanceof IGraph) {
-			// all references to subgraphs must start with the keyword subgraph
-			buf.append("subgraph ");
+	private CompiledStyles compileStyles(ICancel cancel, GraphCSS defaultCSS, GraphCSS... styleSheets) {
+		if(defaultCSS == null || !defaultCSS.isFrozen() || !isFrozen(styleSheets))
+			return new CompiledStyles(cancel, defaultCSS, styleSheets);
+
+		List<GraphCSS> key = Lists.newArrayListWithCapacity(styleSheets.length + 1);
+		key.add(defaultCSS);
+		for(GraphCSS gcss : styleSheets)
+			key.add(gcss);
+		CompiledStyles result = compiledStyles.getIfPresent(key);
+		if(result == null) {
+			result = new CompiledStyles(cancel, defaultCSS, styleSheets);
+			compiledStyles.put(key, result);
 		}
-		// enclose the constructed names in quotes
-		buf.append("\"");
+		return result;
+	}
+
+	/**
+	 * Returns the name of a vertex or graph as it is used in the dot text.
+	 */
+	private String formatName(RenderContext ctx, IGraphElement element) {
+		String id = ctx.ids.getQualifiedId(element);
+		StringBuilder buf = new StringBuilder(id.length() + 10);
 
 		if(element instanceof IClusterGraph) {
 			// if the graph is a cluster it's name must be prefixed with 'cluster'
 			// ad a '_' to make it easier to read.
 			buf.append("cluster_");
 		}
-		// add each parents id separated by - start with root (last in array)
-		if(parents != null)
-			for(int i = parents.length - 1; i >= 0; i--)
-				buf.append((i == (plength - 1)
-						? ""
-						: "-") + parents[i].getId());
-		buf.append("-");
-		buf.append(element.getId());
-		// close the "
-		buf.append("\"");
+		buf.append(id);
+		if(ctx.compactIds != null)
+			return ctx.compactIds.compactName(element, buf.toString());
+
+		// enclose the constructed names in quotes
+		buf.insert(0, '"');
+		buf.append('"');
 		return buf.toString();
 	}
 
-	private void printDefaultEdgeStyling(ICancel cancel) {
-		ByteArrayOutputStream tmp = new ByteArrayOutputStream();
-		PrintStream tmpOut = new PrintStream(tmp);
+	/**
+	 * Returns the reference to a vertex or graph, as the quoted qualified id (with the prefix "cluster_" for
+	 * clusters), or as the short name in compact mode, preceded by the keyword subgraph for graphs. A
+	 * reference is computed once per write (except for streamed vertices, which are not remembered).
+	 */
+	private String formatReference(RenderContext ctx, IGraphElement element) {
+		String reference = ctx.references.get(element);
+		if(reference != null)
+			return reference;
+		String name = formatName(ctx, element);
 
-		tmpOut.print("edge ");
-		int numStyles = elementRenderer.printStyles(cancel, tmpOut, edgePrototype, defaultEdgeStyles, defaultGCSS);
-		tmpOut.print(";\n");
-		if(numStyles > 0)
-			out.print(tmp.toString());
+		// the vertex can be an instance of IGraph in which case it should be handled as
+		// a subgraph
+		if(element instanceof IGraph) {
+			// all references to subgraphs must start with the keyword subgraph
+			name = "subgraph " + name;
+		}
+		if(!ctx.streaming || element instanceof IGraph)
+			ctx.references.put(element, name);
+		return name;
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if(executor == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(
+				threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "dot render " + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
 	}
 
-	private void printDefaultGraphStyling(ICancel cancel) {
-		ByteArrayOutputStream tmp = new ByteArrayOutputStream();
-		PrintStream tmpOut = new PrintStream(tmp);
+	/**
+	 * Returns the statement of a vertex or edge without its attributes.
+	 */
+	private String formatStatement(RenderContext ctx, IGraphElement element) {
+		if(element instanceof IEdge) {
+			IEdge edge = (IEdge) element;
+			return formatReference(ctx, edge.getFrom()) + " -> " + formatReference(ctx, edge.getTo());
+		}
+		String reference = formatReference(ctx, element);
+		if(reference == null || reference.length() == 0)
+			throw new IllegalStateException("A vertext produced empty identity");
+		return reference + " ";
+	}
 
-		tmpOut.print("graph ");
-		int numStyles = elementRenderer.printStyles(cancel, tmpOut, graphPrototype, defaultGraphStyles, defaultGCSS);
-		tmpOut.print(";\n");
+	/**
+	 * Returns the number of vertices or edges a graph must have for them to be rendered in parallel.
+	 * 
+	 * @return the threshold, or 0 if elements are never rendered in parallel
+	 */
+	public int getParallelThreshold() {
+		return parallelThreshold;
+	}
 
-		if(numStyles > 0)
-			out.print(tmp.toString());
+	/**
+	 * Returns true if the attributes that elements have in common are written once per group of elements.
+	 * 
+	 * @return
+	 */
+	public boolean isStyleGrouping() {
+		return styleGrouping;
 	}
 
-	private void printDefaultNodeStyling(ICancel cancel) {
-		ByteArrayOutputStream tmp = new ByteArrayOutputStream();
-		PrintStream tmpOut = new PrintStream(tmp);
+	private void printDefaultEdgeStyling(RenderContext ctx, ICancel cancel) {
+		long mark = ctx.out.mark();
+		ctx.out.append("edge ");
+		int numStyles = elementRenderer.printStyles(
+			cancel, ctx.out, ctx.edgePrototype, ctx.defaultEdgeStyles, ctx.defaultGCSS);
+		ctx.out.append(";\n");
+		if(numStyles <= 0)
+			ctx.out.rollback(mark);
+	}
 
-		tmpOut.print("node ");
-		int numStyles = elementRenderer.printStyles(cancel, tmpOut, vertexPrototype, defaultNodeStyles, defaultGCSS);
-		tmpOut.print(";\n");
+	private void printDefaultGraphStyling(RenderContext ctx, ICancel cancel) {
+		long mark = ctx.out.mark();
+		ctx.out.append("graph ");
+		int numStyles = elementRenderer.printStyles(
+			cancel, ctx.out, ctx.graphPrototype, ctx.defaultGraphStyles, ctx.defaultGCSS);
+		ctx.out.append(";\n");
+		if(numStyles <= 0)
+			ctx.out.rollback(mark);
+	}
 
-		if(numStyles > 0)
-			out.print(tmp.toString());
+	private void printDefaultNodeStyling(RenderContext ctx, ICancel cancel) {
+		long mark = ctx.out.mark();
+		ctx.out.append("node ");
+		int numStyles = elementRenderer.printStyles(
+			cancel, ctx.out, ctx.vertexPrototype, ctx.defaultNodeStyles, ctx.defaultGCSS);
+		ctx.out.append(";\n");
+		if(numStyles <= 0)
+			ctx.out.rollback(mark);
 	}
 
 	/**
@@ -157,19 +596,200 @@ public class DotRenderer {
 	 * 
 	 * @param edge
 	 */
-	private void printEdge(IEdge edge, ICancel cancel) {
+	private void printEdge(RenderContext ctx, IEdge edge, ICancel cancel) {
 		// produce edges that link to the "north" port, but use default (from center) linking
 		// from the source node (this looks best).
 		//
-		out.printf("%s -> %s", formatReference(edge.getFrom()), formatReference(edge.getTo()));
+		ctx.out.append(formatReference(ctx, edge.getFrom())).append(" -> ").append(formatReference(ctx, edge.getTo()));
+
+		long mark = ctx.out.mark();
+		int numStyles = elementRenderer.printStyles(cancel, ctx.out, edge, ctx.theGCSS);
+		if(numStyles <= 0)
+			ctx.out.rollback(mark);
+		ctx.out.append(";\n");
+		ctx.out.commit();
+	}
 
-		ByteArrayOutputStream tmp = new ByteArrayOutputStream();
-		PrintStream tmpOut = new PrintStream(tmp);
+	private void printElement(RenderContext ctx, IGraphElement element, ICancel cancel) {
+		if(element instanceof IEdge)
+			printEdge(ctx, (IEdge) element, cancel);
+		else
+			printVertex(ctx, (IVertex) element, cancel);
+	}
 
-		int numStyles = elementRenderer.printStyles(cancel, tmpOut, edge, theGCSS);
-		if(numStyles > 0)
-			out.print(tmp.toString());
-		out.print(";\n");
+	/**
+	 * Prints a statement with the given attributes.
+	 */
+	private void printElementAttributes(RenderContext ctx, String statement, List<String> attributes) {
+		ctx.out.append(statement);
+		if(!attributes.isEmpty()) {
+			ctx.out.append("[\n");
+			for(int i = 0; i < attributes.size(); i++) {
+				if(i > 0)
+					ctx.out.append(",\n");
+				ctx.out.append(attributes.get(i));
+			}
+			ctx.out.append(']');
+		}
+		ctx.out.append(";\n");
+		ctx.out.commit();
+	}
+
+	/**
+	 * Prints the given vertices or edges, in parallel if there are enough of them (and the dot text is not
+	 * compact, as short names and values are assigned in the order they are used).
+	 */
+	private void printElements(RenderContext ctx, Iterable<? extends IGraphElement> elements, ICancel cancel) {
+		if(styleGrouping) {
+			printElementsGrouped(ctx, elements, cancel);
+			return;
+		}
+		int threshold = parallelThreshold;
+		if(threshold > 0 && ctx.compactIds == null) {
+			List<IGraphElement> list = Lists.<IGraphElement> newArrayList(elements);
+			if(list.size() >= threshold && list.size() > 1) {
+				printElementsInParallel(ctx, list, cancel);
+				return;
+			}
+			elements = list;
+		}
+		for(IGraphElement element : elements) {
+			cancel.assertContinue();
+			printElement(ctx, element, cancel);
+		}
+	}
+
+	/**
+	 * Prints the given vertices or edges in groups of elements that have the same attributes in common (an
+	 * attribute is common if another element has it too). The common attributes of a group are printed once, as
+	 * node or edge defaults in an anonymous subgraph that holds the statements of the group, and each statement
+	 * only has the rest of the element's attributes. Groups are printed in the order of their first element.
+	 * 
+	 * A vertex that has been referenced before it is printed (by an edge) already exists when its statement
+	 * is read by graphviz, and does not get defaults. Such vertices are printed with all their attributes.
+	 */
+	private void printElementsGrouped(RenderContext ctx, Iterable<? extends IGraphElement> elements, ICancel cancel) {
+		List<String> statements = Lists.newArrayList();
+		List<List<String>> attributeLists = Lists.newArrayList();
+		List<Boolean> groupable = Lists.newArrayList();
+		Map<String, Integer> counts = Maps.newHashMap();
+		boolean edges = false;
+		for(IGraphElement element : elements) {
+			cancel.assertContinue();
+			edges = element instanceof IEdge;
+			boolean defaultsApply = edges || !ctx.references.containsKey(element);
+			statements.add(formatStatement(ctx, element));
+			List<String> attributes = elementRenderer.collectAttributes(cancel, ctx.out, element, ctx.theGCSS);
+			attributeLists.add(attributes);
+			groupable.add(defaultsApply);
+			if(defaultsApply)
+				for(String attribute : Sets.newHashSet(attributes)) {
+					Integer count = counts.get(attribute);
+					counts.put(attribute, count == null
+							? 1
+							: count + 1);
+				}
+		}
+
+		// group the elements on their common attributes, in the order of the first element of a group
+		Map<List<String>, List<Integer>> groups = Maps.newLinkedHashMap();
+		for(int i = 0; i < statements.size(); i++) {
+			List<String> common = Lists.newArrayList();
+			if(groupable.get(i))
+				for(String attribute : attributeLists.get(i))
+					if(counts.get(attribute) > 1)
+						common.add(attribute);
+			List<Integer> group = groups.get(common);
+			if(group == null)
+				groups.put(common, group = Lists.newArrayList());
+			group.add(i);
+		}
+
+		Map<Integer, List<String>> groupStarts = Maps.newHashMap();
+		for(Map.Entry<List<String>, List<Integer>> entry : groups.entrySet())
+			if(!entry.getKey().isEmpty() && entry.getValue().size() > 1)
+				groupStarts.put(entry.getValue().get(0), entry.getKey());
+
+		Set<Integer> printed = Sets.newHashSet();
+		for(int i = 0; i < statements.size(); i++) {
+			if(printed.contains(i))
+				continue;
+			List<String> common = groupStarts.get(i);
+			if(common == null) {
+				printElementAttributes(ctx, statements.get(i), attributeLists.get(i));
+				printed.add(i);
+				continue;
+			}
+			ctx.out.append("{\n");
+			printElementAttributes(ctx, edges
+					? "edge "
+					: "node ", common);
+			for(int member : groups.get(common)) {
+				List<String> rest = Lists.newArrayList(attributeLists.get(member));
+				rest.removeAll(common);
+				printElementAttributes(ctx, statements.get(member), rest);
+				printed.add(member);
+			}
+			ctx.out.append("}\n");
+		}
+	}
+
+	/**
+	 * Renders chunks of the given elements in parallel, each to a separate buffer, and writes the buffers in
+	 * order.
+	 */
+	private void printElementsInParallel(final RenderContext ctx, List<IGraphElement> elements,
+			final ICancel cancel) {
+		ExecutorService executor = getExecutor();
+		int chunkSize = Math.max(MIN_CHUNK_SIZE, elements.size() / (4 * Runtime.getRuntime().availableProcessors()));
+		List<Future<byte[]>> fragments = Lists.newArrayList();
+		try {
+			for(int start = 0; start < elements.size(); start += chunkSize) {
+				final List<IGraphElement> chunk = elements.subList(start, Math.min(start + chunkSize, elements.size()));
+				fragments.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() {
+						ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+						RenderContext chunkCtx = new RenderContext(ctx, new DotWriter(buffer, ctx.compactIds));
+						QualifiedIdTable previousIds = QualifiedIdTable.setCurrent(ctx.ids);
+						try {
+							for(IGraphElement element : chunk) {
+								cancel.assertContinue();
+								printElement(chunkCtx, element, cancel);
+							}
+						}
+						finally {
+							QualifiedIdTable.setCurrent(previousIds);
+						}
+						chunkCtx.out.flush();
+						return buffer.toByteArray();
+					}
+				}));
+			}
+			for(Future<byte[]> fragment : fragments) {
+				byte[] text = fragment.get();
+				ctx.out.append(text, 0, text.length);
+				ctx.out.commit();
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while rendering dot text");
+		}
+		catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if(cause instanceof Error)
+				throw (Error) cause;
+			else
+				throw new RuntimeException(cause);
+		}
+		finally {
+			// stops the remaining tasks after a failure (completed tasks are not affected)
+			for(Future<byte[]> fragment : fragments)
+				fragment.cancel(true);
+		}
 	}
 
 	/**
@@ -179,13 +799,13 @@ public class DotRenderer {
 	 * 
 	 * @param graph
 	 */
-	private void printGraph(IGraph graph, ICancel cancel) {
-		out.printf("%s {\n", formatReference(graph));
-		printGraphBody(graph, cancel);
-		out.print("}\n");
+	private void printGraph(RenderContext ctx, IGraph graph, ICancel cancel) {
+		ctx.out.append(formatReference(ctx, graph)).append(" {\n");
+		printGraphBody(ctx, graph, cancel);
+		ctx.out.append("}\n");
 	}
 
-	private void printGraphBody(IGraph graph, ICancel cancel) {
+	private void printGraphBody(RenderContext ctx, IGraph graph, ICancel cancel) {
 
 		// print the root graph's attributes
 
@@ -197,91 +817,98 @@ public class DotRenderer {
 		//
 
 		// Print all the vertices
-		for(IVertex v : graph.getVertices()) {
-			cancel.assertContinue();
-			printVertex(v, cancel);
-		}
+		printElements(ctx, graph.getVertices(), cancel);
 		// and all the edges
-		for(IEdge e : graph.getEdges()) {
-			cancel.assertContinue();
-			printEdge(e, cancel);
-		}
+		printElements(ctx, graph.getEdges(), cancel);
 
 		// Print all the subgraphs first so they do not inherit settings intended for the root
 		// graph. All inherited styles should have been set as defaults per element type.
 		for(IGraph g : graph.getSubgraphs()) {
 			cancel.assertContinue();
-			printGraph(g, cancel);
+			printGraph(ctx, g, cancel);
 		}
 
-		ByteArrayOutputStream tmp = new ByteArrayOutputStream();
-		PrintStream tmpOut = new PrintStream(tmp);
+		printGraphStyles(ctx, graph, cancel);
+	}
 
-		int numStyles = elementRenderer.printStyleStatements(cancel, tmpOut, graph, theGCSS);
-		if(numStyles > 0) {
-			out.print(tmp.toString());
-			out.print("\n");
-		}
+	private void printGraphStyles(RenderContext ctx, IGraph graph, ICancel cancel) {
+		long mark = ctx.out.mark();
+		int numStyles = elementRenderer.printStyleStatements(cancel, ctx.out, graph, ctx.theGCSS);
+		if(numStyles > 0)
+			ctx.out.append('\n');
+		else
+			ctx.out.rollback(mark);
+	}
 
+	/**
+	 * Prints the start of the root graph, and the default styling for graph, node and edge.
+	 */
+	private void printRootGraphStart(RenderContext ctx, IGraph graph, ICancel cancel) {
+		// a directed graph (this is the root graph).
+		ctx.out.append("digraph ").append(graph.getId()).append(" {\n");
+
+		// print the default styling for graph, node and edge, which is only done once for frozen rules
+		// (unless the dot text is compact, where id values depend on the render)
+		boolean keep = ctx.styles.isFrozen() && ctx.compactIds == null;
+		byte[] defaultStatements = ctx.styles.defaultStatements;
+		if(keep && defaultStatements != null) {
+			ctx.out.append(defaultStatements, 0, defaultStatements.length);
+			return;
+		}
+		long mark = ctx.out.mark();
+		printDefaultGraphStyling(ctx, cancel);
+		printDefaultNodeStyling(ctx, cancel);
+		printDefaultEdgeStyling(ctx, cancel);
+		if(keep)
+			ctx.styles.defaultStatements = ctx.out.getBytes(mark);
 	}
 
-	private void printVertex(IVertex vertex, ICancel cancel) {
+	private void printVertex(RenderContext ctx, IVertex vertex, ICancel cancel) {
 		// get the full name as it is used in references
-		String reference = formatReference(vertex);
+		String reference = formatReference(ctx, vertex);
 		if(reference == null || reference.length() == 0)
 			throw new IllegalStateException("A vertext produced empty identity");
-		out.printf("%s ", formatReference(vertex));
-
-		ByteArrayOutputStream tmp = new ByteArrayOutputStream();
-		PrintStream tmpOut = new PrintStream(tmp);
-
-		int numStyles = elementRenderer.printStyles(cancel, tmpOut, vertex, theGCSS);
-		if(numStyles > 0) {
-			tmpOut.flush();
-			out.print(tmp.toString());
-		}
-		out.print(";\n");
+		ctx.out.append(reference).append(' ');
+
+		long mark = ctx.out.mark();
+		int numStyles = elementRenderer.printStyles(cancel, ctx.out, vertex, ctx.theGCSS);
+		if(numStyles <= 0)
+			ctx.out.rollback(mark);
+		ctx.out.append(";\n");
+		ctx.out.commit();
 	}
 
 	/**
-	 * The defaultRules are the rules that are used to set dot (static) defaults per ElementType.
-	 * These rules can not contain EL statements, nor any styles that needs to be set per instance.
+	 * Sets the number of vertices or edges a graph must have for them to be rendered in parallel. Parallel
+	 * rendering pays off for graphs with thousands of elements, and when style rules or label templates are
+	 * expensive to evaluate. Style functions must be thread-safe when elements are rendered in parallel.
 	 * 
-	 * The styleRules are the rules that are added to an instance rule set. Lowest priority first.
-	 * 
-	 * @throws IllegalArgumentException
-	 *             for invalid input
+	 * @param threshold
+	 *            the threshold, or 0 to never render in parallel (the default)
 	 */
-	private void processGCSS(ICancel cancel, GraphCSS defaultGCSS, GraphCSS... styleRules) {
-		if(defaultGCSS == null)
-			throw new IllegalArgumentException("default style rules is null");
-
-		theGCSS = new GraphCSS();
-		for(GraphCSS gcss : styleRules)
-			theGCSS.addAll(gcss);
-
-		this.defaultGCSS = defaultGCSS;
-		graphPrototype = new RootGraph("", "", "prototype");
-		vertexPrototype = new Vertex("", "", "prototype");
-		edgePrototype = new Edge(vertexPrototype, vertexPrototype, "prototype");
-
-		defaultGraphStyles = defaultGCSS.collectStyles(graphPrototype, cancel);
-		defaultNodeStyles = defaultGCSS.collectStyles(vertexPrototype, cancel);
-		defaultEdgeStyles = defaultGCSS.collectStyles(edgePrototype, cancel);
-
-		// assert that label formats are available - look up label formats in the instance rules.
-		//
-		if(theGCSS.collectStyles(graphPrototype, cancel).getStyleValue(StyleType.labelFormat, graphPrototype) == null)
-			throw new IllegalArgumentException("Default graph label format is null");
-		if(theGCSS.collectStyles(vertexPrototype, cancel).getStyleValue(StyleType.labelFormat, vertexPrototype) == null)
-			throw new IllegalArgumentException("Default graph label format is null");
-		if(theGCSS.collectStyles(edgePrototype, cancel).getStyleValue(StyleType.labelFormat, edgePrototype) == null)
-			throw new IllegalArgumentException("Default graph label format is null");
+	@Inject(optional = true)
+	public void setParallelThreshold(@ParallelThreshold int threshold) {
+		if(threshold < 0)
+			throw new IllegalArgumentException("threshold is negative");
+		this.parallelThreshold = threshold;
+	}
 
+	/**
+	 * Sets whether the attributes that vertices (or edges) of a graph have in common should be written once
+	 * per group of elements that have them, instead of once per element. This makes the dot text of graphs
+	 * where many elements have the same styles much smaller, but changes the order of the elements in the
+	 * dot text (which may change the layout). Elements are not rendered in parallel when styles are grouped.
+	 * 
+	 * @param grouping
+	 *            true to group styles, false to write all attributes of each element (the default)
+	 */
+	@Inject(optional = true)
+	public void setStyleGrouping(@StyleGrouping boolean grouping) {
+		this.styleGrouping = grouping;
 	}
 
 	/**
-	 * Produces output in Dot notation on the given stream. The defaultCSS should contain
+	 * Produces output in Dot notation on the given stream (encoded as UTF-8). The defaultCSS should contain
 	 * static rules per element. No reference to style class, instance id, or use of EL is allowed in
 	 * this style set. The styleCheets is one or more instance style sheets in increasing order of
 	 * importance. Note that as a minimum the style must contain label format styles for the three
@@ -299,29 +926,96 @@ public class DotRenderer {
 	 *            - use case specific stylesheets.
 	 */
 	public void write(ICancel cancel, OutputStream stream, IGraph graph, GraphCSS defaultCSS, GraphCSS... styleSheets) {
+		write(cancel, stream, graph, null, defaultCSS, styleSheets);
+	}
+
+	/**
+	 * Produces output in Dot notation on the given stream, from the elements that the given provider adds
+	 * to a sink. The elements are rendered when they are added, and are not kept by the renderer, so the
+	 * memory used does not grow with the number of vertices and edges (only with the number of subgraphs).
+	 * The style rules of the provider are not included, and should be added to a style sheet as when a
+	 * computed graph is rendered.
+	 * 
+	 * @param cancel
+	 * @param stream
+	 * @param provider
+	 *            the provider of the graph
+	 * @param defaultCSS
+	 * @param styleSheets
+	 * @see #write(ICancel, OutputStream, IGraph, GraphCSS, GraphCSS...)
+	 */
+	public void write(ICancel cancel, OutputStream stream, IStreamingGraphProvider provider, GraphCSS defaultCSS,
+			GraphCSS... styleSheets) {
 		if(stream == null)
 			throw new IllegalArgumentException("stream is null");
-		if(!(stream instanceof PrintStream))
-			out = new PrintStream(stream, true);
-		else
-			out = (PrintStream) stream;
+		IRootGraph graph = provider.getRootGraph();
+		DotWriter out = new DotWriter(stream);
+		RenderContext ctx = new RenderContext(out, true, compileStyles(cancel, defaultCSS, styleSheets));
 
-		processGCSS(cancel, defaultCSS, styleSheets);
+		QualifiedIdTable previousIds = QualifiedIdTable.setCurrent(ctx.ids);
+		try {
+			printRootGraphStart(ctx, graph, cancel);
 
-		// a directed graph (this is the root graph).
-		out.printf("digraph %s {\n", graph.getId());
+			GraphSink sink = new GraphSink(ctx, graph, cancel);
+			provider.produceGraph(sink);
+			sink.close();
+
+			out.append("}\n");
+			out.flush();
+			checkWritten(out, cancel);
+		}
+		finally {
+			QualifiedIdTable.setCurrent(previousIds);
+		}
+	}
 
-		// print the default styling for graph, node and edge
-		printDefaultGraphStyling(cancel);
-		printDefaultNodeStyling(cancel);
-		printDefaultEdgeStyling(cancel);
+	/**
+	 * Produces output in Dot notation on the given stream, in compact mode if compactIds is given. In
+	 * compact mode, the short names and values used are recorded in compactIds, which is needed to restore
+	 * the names and values in the graphviz output (see
+	 * {@link org.cloudsmith.graph.graphviz.CompactIdRestoringOutputStream}).
+	 * 
+	 * The id values are only restored in SVG and cmapx output, and names in other text produced by graphviz
+	 * (e.g. by using \N in a tooltip) are not restored. Compact mode should therefore only be used for SVG,
+	 * cmapx, and image output.
+	 * 
+	 * @param cancel
+	 * @param stream
+	 * @param graph
+	 * @param compactIds
+	 *            an empty table that is filled in with the short names and values, or null to produce
+	 *            dot text that is not compact
+	 * @param defaultCSS
+	 * @param styleSheets
+	 * @see #write(ICancel, OutputStream, IGraph, GraphCSS, GraphCSS...)
+	 */
+	public void write(ICancel cancel, OutputStream stream, IGraph graph, CompactDotIds compactIds,
+			GraphCSS defaultCSS, GraphCSS... styleSheets) {
+		if(stream == null)
+			throw new IllegalArgumentException("stream is null");
+		DotWriter out = new DotWriter(stream, compactIds);
+		if(compactIds != null)
+			compactIds.reserve(graph.getId());
+
+		RenderContext ctx = new RenderContext(out, false, compileStyles(cancel, defaultCSS, styleSheets));
 
-		// print the graph
-		printGraphBody(graph, cancel);
+		// let the style functions share the qualified ids computed for the references
+		QualifiedIdTable previousIds = QualifiedIdTable.setCurrent(ctx.ids);
+		try {
+			printRootGraphStart(ctx, graph, cancel);
 
-		// printGraph(graph);
+			// print the graph
+			printGraphBody(ctx, graph, cancel);
 
-		// close
-		out.printf("}\n");
+			// printGraph(graph);
+
+			// close
+			out.append("}\n");
+			out.flush();
+			checkWritten(out, cancel);
+		}
+		finally {
+			QualifiedIdTable.setCurrent(previousIds);
+		}
 	}
 }
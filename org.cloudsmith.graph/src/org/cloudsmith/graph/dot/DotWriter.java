@@ -0,0 +1,376 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.dot;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes dot text as UTF-8 to an output stream. The text is encoded directly into a growable buffer, and
+ * is written to the stream in large chunks when {@link #commit()} is called between statements, and when
+ * the writer is {@link #flush() flushed}.
+ * 
+ * Text that has not been committed can be taken back with {@link #rollback(long)}, which is used to drop
+ * the text of an element when it turns out that nothing needs to be written for it.
+ * 
+ * When dot text is produced in compact mode, the writer holds the {@link CompactDotIds} that names and
+ * values are shortened with.
+ * 
+ * Like a {@link java.io.PrintStream}, the writer does not throw IOException. Errors are instead reported by
+ * {@link #checkError()} and {@link #getError()}, and no more output is written after an error. The
+ * {@link DotRenderer} checks for errors when the dot text is complete, and fails the render if there was
+ * one.
+ * 
+ */
+public class DotWriter {
+	/**
+	 * The amount of buffered text that is written to the stream on {@link #commit()}.
+	 */
+	private static final int COMMIT_SIZE = 8 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final OutputStream stream;
+
+	private final CompactDotIds compactIds;
+
+	private byte[] buffer = new byte[2 * COMMIT_SIZE];
+
+	private int count = 0;
+
+	/**
+	 * The number of bytes written to the stream.
+	 */
+	private long written = 0;
+
+	/**
+	 * The first error writing to the stream.
+	 */
+	private IOException error = null;
+
+	public DotWriter(OutputStream stream) {
+		this(stream, null);
+	}
+
+	/**
+	 * @param stream
+	 * @param compactIds
+	 *            the short names and values to use, or null if the dot text should not be compact
+	 */
+	public DotWriter(OutputStream stream, CompactDotIds compactIds) {
+		if(stream == null)
+			throw new IllegalArgumentException("stream is null");
+		this.stream = stream;
+		this.compactIds = compactIds;
+	}
+
+	/**
+	 * Appends a character.
+	 * 
+	 * @param c
+	 * @return this writer
+	 */
+	public DotWriter append(char c) {
+		if(c < 0x80) {
+			ensureCapacity(1);
+			buffer[count++] = (byte) c;
+		}
+		else
+			encode(String.valueOf(c), 0, 1);
+		return this;
+	}
+
+	/**
+	 * Appends text that is already encoded as UTF-8 (e.g. text produced by another writer).
+	 * 
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return this writer
+	 */
+	public DotWriter append(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, buffer, count, length);
+		count += length;
+		return this;
+	}
+
+	/**
+	 * Appends the decimal representation of an integer.
+	 * 
+	 * @param value
+	 * @return this writer
+	 */
+	public DotWriter append(int value) {
+		if(value == Integer.MIN_VALUE)
+			return append(String.valueOf(value));
+		ensureCapacity(11);
+		if(value < 0) {
+			buffer[count++] = '-';
+			value = -value;
+		}
+		int end = count;
+		for(int v = value; v >= 10; v /= 10)
+			end++;
+		count = end + 1;
+		do {
+			buffer[end--] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while(value != 0);
+		return this;
+	}
+
+	/**
+	 * Appends the string value of an object (as {@link String#valueOf(Object)}).
+	 * 
+	 * @param value
+	 * @return this writer
+	 */
+	public DotWriter append(Object value) {
+		return append(String.valueOf(value));
+	}
+
+	/**
+	 * Appends a string.
+	 * 
+	 * @param s
+	 *            the string, "null" is appended if null
+	 * @return this writer
+	 */
+	public DotWriter append(String s) {
+		if(s == null)
+			s = "null";
+		return append(s, 0, s.length());
+	}
+
+	/**
+	 * Appends the characters from start (inclusive) to end (exclusive) of a string.
+	 */
+	private DotWriter append(String s, int start, int end) {
+		ensureCapacity(end - start);
+		for(int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if(c >= 0x80) {
+				encode(s, i, end);
+				break;
+			}
+			buffer[count++] = (byte) c;
+		}
+		return this;
+	}
+
+	/**
+	 * Appends text that is unsafe in a dot HTML label, with &amp;, &lt;, and &gt; escaped, and new lines
+	 * replaced with line breaks.
+	 * 
+	 * @param s
+	 * @return this writer
+	 */
+	public DotWriter appendEscaped(String s) {
+		int length = s.length();
+		int start = 0;
+		for(int i = 0; i < length; i++) {
+			String replacement;
+			switch(s.charAt(i)) {
+				case '&':
+					replacement = "&amp;";
+					break;
+				case '<':
+					replacement = "&lt;";
+					break;
+				case '>':
+					replacement = "&gt;";
+					break;
+				case '\n':
+					replacement = "<BR/>";
+					break;
+				default:
+					continue;
+			}
+			append(s, start, i);
+			append(replacement);
+			start = i + 1;
+		}
+		return append(s, start, length);
+	}
+
+	/**
+	 * Appends a dot attribute on the form name="value".
+	 * 
+	 * @param name
+	 * @param value
+	 * @return this writer
+	 */
+	public DotWriter attribute(String name, Object value) {
+		return append(name).append('=').append('"').append(value).append('"');
+	}
+
+	/**
+	 * Returns true if writing to the stream has failed.
+	 * 
+	 * @return
+	 */
+	public boolean checkError() {
+		return error != null;
+	}
+
+	/**
+	 * Writes the buffered text to the stream if there is enough of it to make a write worthwhile. Text
+	 * written before the call can not be rolled back after it.
+	 */
+	public void commit() {
+		if(count >= COMMIT_SIZE)
+			writeBuffer();
+	}
+
+	/**
+	 * Encodes the characters from start (inclusive) to end (exclusive) of a string as UTF-8.
+	 */
+	private void encode(String s, int start, int end) {
+		ensureCapacity(3 * (end - start));
+		for(int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if(c < 0x80)
+				buffer[count++] = (byte) c;
+			else if(c < 0x800) {
+				buffer[count++] = (byte) (0xC0 | c >> 6);
+				buffer[count++] = (byte) (0x80 | c & 0x3F);
+			}
+			else if(Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buffer[count++] = (byte) (0xF0 | cp >> 18);
+				buffer[count++] = (byte) (0x80 | cp >> 12 & 0x3F);
+				buffer[count++] = (byte) (0x80 | cp >> 6 & 0x3F);
+				buffer[count++] = (byte) (0x80 | cp & 0x3F);
+			}
+			else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+				buffer[count++] = '?';
+			else {
+				buffer[count++] = (byte) (0xE0 | c >> 12);
+				buffer[count++] = (byte) (0x80 | c >> 6 & 0x3F);
+				buffer[count++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+	}
+
+	private void ensureCapacity(int needed) {
+		if(count + needed > buffer.length) {
+			byte[] larger = new byte[Math.max(buffer.length * 2, count + needed)];
+			System.arraycopy(buffer, 0, larger, 0, count);
+			buffer = larger;
+		}
+	}
+
+	private void failed(IOException e) {
+		if(e instanceof InterruptedIOException)
+			Thread.currentThread().interrupt();
+		if(error == null)
+			error = e;
+	}
+
+	/**
+	 * Writes all buffered text to the stream, and flushes the stream.
+	 */
+	public void flush() {
+		writeBuffer();
+		if(error == null)
+			try {
+				stream.flush();
+			}
+			catch(IOException e) {
+				failed(e);
+			}
+	}
+
+	/**
+	 * Returns the short names and values to use in compact mode.
+	 * 
+	 * @return the short names and values, or null if the dot text is not compact
+	 */
+	public CompactDotIds getCompactIds() {
+		return compactIds;
+	}
+
+	/**
+	 * Returns the first error writing to the stream.
+	 * 
+	 * @return the error, or null if writing has not failed
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Returns the UTF-8 encoded text appended after the given mark. The text must not have been committed.
+	 * 
+	 * @param mark
+	 *            a position obtained from {@link #mark()}
+	 * @return
+	 */
+	public byte[] getBytes(long mark) {
+		if(mark < written)
+			throw new IllegalStateException("The text after the mark has been committed");
+		int start = (int) (mark - written);
+		byte[] bytes = new byte[count - start];
+		System.arraycopy(buffer, start, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * Returns the text appended after the given mark. The text must not have been committed.
+	 * 
+	 * @param mark
+	 *            a position obtained from {@link #mark()}
+	 * @return
+	 */
+	public String getText(long mark) {
+		if(mark < written)
+			throw new IllegalStateException("The text after the mark has been committed");
+		int start = (int) (mark - written);
+		return new String(buffer, start, count - start, UTF8);
+	}
+
+	/**
+	 * Returns the current position in the buffered text, to use with {@link #rollback(long)}.
+	 * 
+	 * @return
+	 */
+	public long mark() {
+		return written + count;
+	}
+
+	/**
+	 * Removes the text appended after the given mark. The text must not have been committed.
+	 * 
+	 * @param mark
+	 *            a position obtained from {@link #mark()}
+	 */
+	public void rollback(long mark) {
+		if(mark < written)
+			throw new IllegalStateException("The text after the mark has been committed");
+		count = (int) (mark - written);
+	}
+
+	private void writeBuffer() {
+		if(count > 0 && error == null)
+			try {
+				stream.write(buffer, 0, count);
+			}
+			catch(IOException e) {
+				failed(e);
+			}
+		written += count;
+		count = 0;
+	}
+}
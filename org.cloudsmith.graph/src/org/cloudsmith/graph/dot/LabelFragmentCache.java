@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.dot;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cloudsmith.graph.IGraphElement;
+import org.cloudsmith.graph.graphcss.ContextKeyBuilder;
+import org.cloudsmith.graph.graphcss.GraphCSS;
+
+/**
+ * The rendered text of table labels, for one set of style rules. A table label is rendered the same way for
+ * all elements that have the same label template with the same style classes and values in its tables, rows
+ * and cells, and whose contexts only differ in style classes and ids that the rules do not test for. Such a
+ * label is rendered once, and is then printed from the cache without resolving its styles.
+ * 
+ * Labels that get styles that are functions of the element are not cached. No labels are cached if the
+ * rules test more than the type, style classes, ids, and context of elements.
+ * 
+ * The rules must not be changed while they are used (the {@link DotRenderer} creates the rules of each
+ * render). A cache can be used by several threads.
+ * 
+ */
+class LabelFragmentCache {
+	/**
+	 * Marks a label that is not rendered (its table has the style rendered=false).
+	 */
+	static final byte[] NOT_RENDERED = new byte[0];
+
+	/**
+	 * Marks a label that can not be cached, as its styles are functions of the element.
+	 */
+	static final byte[] NOT_CACHEABLE = new byte[0];
+
+	/**
+	 * The largest number of labels that are cached.
+	 */
+	private static final int MAX_FRAGMENTS = 10000;
+
+	private final ContextKeyBuilder keyBuilder;
+
+	private final ConcurrentMap<List<Object>, byte[]> fragments = new ConcurrentHashMap<List<Object>, byte[]>();
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	LabelFragmentCache(GraphCSS gcss) {
+		keyBuilder = new ContextKeyBuilder(gcss);
+	}
+
+	/**
+	 * Adds what the rules test for in the given element and its context to a key.
+	 * 
+	 * @param key
+	 * @param element
+	 * @see ContextKeyBuilder#addContext(List, IGraphElement)
+	 */
+	void addContext(List<Object> key, IGraphElement element) {
+		keyBuilder.addContext(key, element);
+	}
+
+	/**
+	 * Returns the UTF-8 encoded text of the label with the given key.
+	 * 
+	 * @param key
+	 * @return the text, {@link #NOT_RENDERED}, {@link #NOT_CACHEABLE}, or null if the label is not in the cache
+	 */
+	byte[] get(List<Object> key) {
+		return fragments.get(key);
+	}
+
+	/**
+	 * Returns true if labels can be cached for the rules.
+	 * 
+	 * @return
+	 */
+	boolean isEnabled() {
+		return keyBuilder.isEnabled();
+	}
+
+	/**
+	 * Adds the text of a label to the cache, unless the cache is full.
+	 * 
+	 * @param key
+	 * @param fragment
+	 *            the UTF-8 encoded text, {@link #NOT_RENDERED}, or {@link #NOT_CACHEABLE}
+	 */
+	void put(List<Object> key, byte[] fragment) {
+		if(size.get() < MAX_FRAGMENTS && fragments.putIfAbsent(key, fragment) == null)
+			size.incrementAndGet();
+	}
+}
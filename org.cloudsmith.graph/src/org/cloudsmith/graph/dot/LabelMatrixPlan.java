@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.dot;
+
+import org.cloudsmith.graph.graphcss.StyleSet;
+import org.cloudsmith.graph.style.IStyleFactory;
+import org.cloudsmith.graph.style.labels.LabelMatrix;
+
+/**
+ * A {@link LabelMatrix} compiled for rendering. The values and port styles of the cells are computed once,
+ * as are the style classes if they are the same for all elements.
+ * 
+ * A plan is immutable, and can be used by several threads.
+ * 
+ */
+class LabelMatrixPlan {
+	/**
+	 * The style classes of the table, rows and cells, or null if they are dynamic.
+	 */
+	final String tableClass;
+
+	final String rowClass;
+
+	final String cellClass;
+
+	/**
+	 * The port style of the table.
+	 */
+	final StyleSet tableStyles;
+
+	/**
+	 * The values and port styles of the cells, by row and column.
+	 */
+	final String[][] values;
+
+	final StyleSet[][] cellStyles;
+
+	/**
+	 * Compiles a matrix. The plan does not refer to the matrix, so that it can be kept in a map with weak
+	 * references to the matrices.
+	 * 
+	 * @param matrix
+	 * @param styles
+	 */
+	LabelMatrixPlan(LabelMatrix matrix, IStyleFactory styles) {
+		boolean literal = matrix.hasLiteralStyleClass();
+		tableClass = literal
+				? matrix.getStyleClass(null)
+				: null;
+		rowClass = literal
+				? matrix.getRowStyleClass(null)
+				: null;
+		cellClass = literal
+				? matrix.getCellStyleClass(null)
+				: null;
+
+		// a port "pt" on the table itself so it can be pointed to
+		tableStyles = StyleSet.withImmutableStyles(styles.port("pt"));
+
+		int rows = matrix.getRows();
+		int columns = matrix.getColumns();
+		values = new String[rows][columns];
+		cellStyles = new StyleSet[rows][columns];
+		for(int r = 0; r < rows; r++)
+			for(int c = 0; c < columns; c++) {
+				values[r][c] = matrix.getValue(r, c);
+				cellStyles[r][c] = StyleSet.withImmutableStyles(styles.port("p" + values[r][c]));
+			}
+	}
+}
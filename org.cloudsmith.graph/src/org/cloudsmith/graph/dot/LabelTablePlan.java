@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.dot;
+
+import java.util.Set;
+
+import org.cloudsmith.graph.graphcss.StyleSet;
+import org.cloudsmith.graph.style.Span;
+import org.cloudsmith.graph.style.StyleFactory;
+import org.cloudsmith.graph.style.labels.ILabelTemplate;
+import org.cloudsmith.graph.style.labels.LabelCell;
+import org.cloudsmith.graph.style.labels.LabelRow;
+import org.cloudsmith.graph.style.labels.LabelStringTemplate;
+import org.cloudsmith.graph.style.labels.LabelTable;
+
+/**
+ * A {@link LabelTable} compiled for rendering. The parts of the template that are the same for all
+ * elements (literal style classes, literal values and nested tables, and the instance styles and spans of
+ * cells) are resolved once, and only the remaining dynamic parts are evaluated when the label graph of an
+ * element is created.
+ * 
+ * A plan is immutable, and can be used by several threads.
+ * 
+ */
+class LabelTablePlan {
+	/**
+	 * A compiled cell.
+	 */
+	static class Cell {
+		final LabelCell cell;
+
+		/**
+		 * The style classes, or null if they are dynamic.
+		 */
+		final Set<String> styleClasses;
+
+		/**
+		 * The text of a literal string value, or null if the value is not a literal string.
+		 */
+		final String text;
+
+		/**
+		 * A literal table value and its plan, or null if the value is not a literal table.
+		 */
+		final LabelTable table;
+
+		final LabelTablePlan tablePlan;
+
+		/**
+		 * The instance styles (including the span) of the cell, or null if there are none.
+		 */
+		final StyleSet styles;
+
+		Cell(LabelCell cell) {
+			this.cell = cell;
+			this.styleClasses = cell.hasLiteralStyleClass()
+					? cell.getStyleClass(null)
+					: null;
+
+			String text = null;
+			LabelTable table = null;
+			if(!cell.isSeparator() && cell.hasLiteralValue()) {
+				ILabelTemplate template = cell.getValue(null);
+				if(template == null)
+					text = "";
+				else if(template instanceof LabelStringTemplate && ((LabelStringTemplate) template).isLiteral()) {
+					text = ((LabelStringTemplate) template).getTemplateString(null);
+					if(text == null)
+						text = "";
+				}
+				else if(template instanceof LabelTable)
+					table = (LabelTable) template;
+			}
+			this.text = text;
+			this.table = table;
+			this.tablePlan = table == null
+					? null
+					: new LabelTablePlan(table);
+
+			// If the labelCell has instance styles, make sure they are included
+			StyleSet styleMap = new StyleSet();
+			styleMap.add(cell.getStyles());
+
+			// If the label cell has a span that is not 1x1, set that as instance style
+			// of the rendered IGraphCell.
+			Span span = cell.getSpan();
+			if(span != null && span != Span.SPAN_1x1) {
+				if(span.getRowspan() != 1)
+					styleMap.put(new StyleFactory.RowSpan(span.getRowspan()));
+				if(span.getColspan() != 1)
+					styleMap.put(new StyleFactory.ColSpan(span.getColspan()));
+			}
+			this.styles = styleMap.getStyles().size() > 0
+					? new StyleSet.ImmutableStyleSet(styleMap)
+					: null;
+		}
+
+		/**
+		 * Returns true if the value must be evaluated for each element.
+		 * 
+		 * @return
+		 */
+		boolean isDynamicValue() {
+			return text == null && table == null && !cell.isSeparator();
+		}
+	}
+
+	/**
+	 * A compiled row.
+	 */
+	static class Row {
+		final LabelRow row;
+
+		/**
+		 * The style classes, or null if they are dynamic.
+		 */
+		final Set<String> styleClasses;
+
+		final Cell[] cells;
+
+		Row(LabelRow row) {
+			this.row = row;
+			this.styleClasses = row.hasLiteralStyleClasses()
+					? row.getStyleClasses(null)
+					: null;
+			LabelCell[] labelCells = row.getCells();
+			cells = new Cell[labelCells.length];
+			for(int i = 0; i < labelCells.length; i++)
+				cells[i] = new Cell(labelCells[i]);
+		}
+	}
+
+	/**
+	 * The style classes, or null if they are dynamic.
+	 */
+	final Set<String> styleClasses;
+
+	final Row[] rows;
+
+	/**
+	 * Compiles a table. The plan does not refer to the table, so that it can be kept in a map with weak
+	 * references to the tables.
+	 * 
+	 * @param table
+	 */
+	LabelTablePlan(LabelTable table) {
+		this.styleClasses = table.hasLiteralStyleClasses()
+				? table.getStyleClasses(null)
+				: null;
+		LabelRow[] labelRows = table.getRows();
+		rows = new Row[labelRows.length];
+		for(int i = 0; i < labelRows.length; i++)
+			rows[i] = new Row(labelRows[i]);
+	}
+}
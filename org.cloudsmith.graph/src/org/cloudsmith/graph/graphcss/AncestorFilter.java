@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphcss;
+
+import org.cloudsmith.graph.ElementType;
+import org.cloudsmith.graph.IGraphElement;
+
+/**
+ * A Bloom filter of names - element types, style classes and ids - used to reject containment and parent
+ * selectors without walking the containers of an element. The filter of the containers of an element holds
+ * the names of all the containers, and the filter required by a selector holds the names that the containers
+ * must have for the selector to match. If the required names are not all in the filter of the containers, the
+ * selector can not match the element.
+ * 
+ * A filter may report that names are present when they are not, but never that present names are missing.
+ * A filter is not changed once it has been created, and can be used by several threads.
+ * 
+ */
+class AncestorFilter {
+	private static final int TYPE = 0x1b873593;
+
+	private static final int STYLE_CLASS = 0xcc9e2d51;
+
+	private static final int ID = 0xe6546b64;
+
+	/**
+	 * Returns the filter of the names of the containers of the given element.
+	 * 
+	 * @param element
+	 * @return
+	 */
+	static AncestorFilter of(IGraphElement element) {
+		AncestorFilter result = new AncestorFilter();
+		IGraphElement container = element.getParentElement();
+		while(container != null) {
+			result.add(TYPE, container.getElementType().ordinal());
+			for(String styleClass : container.getStyleClasses())
+				result.add(STYLE_CLASS, styleClass.hashCode());
+			if(container.getId() != null)
+				result.add(ID, container.getId().hashCode());
+			container = container.getParentElement();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the filter of the names that the containers of an element must have for the given selectors
+	 * to match containers of the element. The names are those of the subjects of the selectors (see
+	 * {@link Select.Selector#getSubject()}).
+	 * 
+	 * @param selectors
+	 * @return the filter, or null if the selectors do not require any names
+	 */
+	static AncestorFilter requiredBy(Select.Selector... selectors) {
+		AncestorFilter result = new AncestorFilter();
+		for(Select.Selector s : selectors) {
+			Select.Element subject = s.getSubject();
+			if(subject == null)
+				continue;
+			if(subject.getTypes().size() == 1) {
+				ElementType type = subject.getTypes().iterator().next();
+				result.add(TYPE, type.ordinal());
+			}
+			for(String styleClass : subject.getStyleClasses())
+				result.add(STYLE_CLASS, styleClass.hashCode());
+			if(subject.getId().length() > 0)
+				result.add(ID, subject.getId().hashCode());
+		}
+		return result.low == 0 && result.high == 0
+				? null
+				: result;
+	}
+
+	/**
+	 * Returns the filter of the names required by both given filters.
+	 * 
+	 * @param a
+	 *            may be null
+	 * @param b
+	 *            may be null
+	 * @return the union, or null if both filters are null
+	 */
+	static AncestorFilter union(AncestorFilter a, AncestorFilter b) {
+		if(a == null)
+			return b;
+		if(b == null)
+			return a;
+		AncestorFilter result = new AncestorFilter();
+		result.low = a.low | b.low;
+		result.high = a.high | b.high;
+		return result;
+	}
+
+	/**
+	 * The 128 bits of the filter.
+	 */
+	private long low;
+
+	private long high;
+
+	private AncestorFilter() {
+	}
+
+	/**
+	 * Sets the two bits of a name of the given kind.
+	 */
+	private void add(int kind, int hash) {
+		int h = hash ^ kind;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		set(h & 127);
+		set(h >>> 25);
+	}
+
+	/**
+	 * Returns false if some of the names in the given filter are not in this filter.
+	 * 
+	 * @param names
+	 * @return
+	 */
+	boolean mayContainAll(AncestorFilter names) {
+		return (low & names.low) == names.low && (high & names.high) == names.high;
+	}
+
+	private void set(int bit) {
+		if(bit < 64)
+			low |= 1L << bit;
+		else
+			high |= 1L << (bit - 64);
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphcss;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cloudsmith.graph.IEdge;
+import org.cloudsmith.graph.IGraphElement;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The styles computed by the rules of a {@link GraphCSS}, shared by elements that the rules can not tell
+ * apart. The rules give the same styles to elements of the same type whose contexts (and, for edges, the
+ * contexts of their source and target vertices) only differ in style classes and ids that the rules do not
+ * test for. The styles of such elements are computed once, and the same immutable {@link StyleSet} is
+ * returned for all of them.
+ * 
+ * Elements with instance styles do not share styles. No styles are shared if the rules test more than the
+ * type, style classes, ids, and context of elements (e.g. the identity of an element).
+ * 
+ * A cache belongs to one version of the rules, and is dropped by the {@link GraphCSS} when a rule is added.
+ * A cache can be used by several threads.
+ * 
+ */
+class ComputedStyleCache {
+	/**
+	 * The largest number of style sets that are cached.
+	 */
+	private static final int MAX_ENTRIES = 10000;
+
+	private final ContextKeyBuilder keyBuilder;
+
+	private final ConcurrentMap<List<Object>, StyleSet> styles = new ConcurrentHashMap<List<Object>, StyleSet>();
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	ComputedStyleCache(GraphCSS gcss) {
+		keyBuilder = new ContextKeyBuilder(gcss);
+	}
+
+	/**
+	 * Returns the shared styles with the given key.
+	 * 
+	 * @param key
+	 *            a key obtained from {@link #getKey(IGraphElement)}
+	 * @return the styles, or null if they have not been computed
+	 */
+	StyleSet get(List<Object> key) {
+		StyleSet result = styles.get(key);
+		if(result == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return result;
+	}
+
+	long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the key of the styles of the given element.
+	 * 
+	 * @param element
+	 * @return the key, or null if the element does not share its styles
+	 */
+	List<Object> getKey(IGraphElement element) {
+		if(!keyBuilder.isEnabled() || element.getStyles() != null)
+			return null;
+		List<Object> key = Lists.newArrayList();
+		keyBuilder.addContext(key, element);
+		if(element instanceof IEdge) {
+			// edges can be selected on what they are between
+			IEdge edge = (IEdge) element;
+			key.add(null);
+			keyBuilder.addContext(key, edge.getFrom());
+			key.add(null);
+			keyBuilder.addContext(key, edge.getTo());
+		}
+		return key;
+	}
+
+	long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Adds the styles with the given key, unless the cache is full.
+	 * 
+	 * @param key
+	 * @param computed
+	 * @return the styles to use, which may have been added by another thread
+	 */
+	StyleSet put(List<Object> key, StyleSet computed) {
+		StyleSet shared = new StyleSet.ImmutableStyleSet(computed);
+		if(size.get() >= MAX_ENTRIES)
+			return shared;
+		StyleSet existing = styles.putIfAbsent(key, shared);
+		if(existing != null)
+			return existing;
+		size.incrementAndGet();
+		return shared;
+	}
+}
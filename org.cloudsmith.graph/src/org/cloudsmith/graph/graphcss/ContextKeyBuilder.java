@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphcss;
+
+import java.util.List;
+import java.util.Set;
+
+import org.cloudsmith.graph.IGraphElement;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Builds cache keys of what the rules of a {@link GraphCSS} test for in an element and its context: the
+ * element types, and the style classes and ids that some rule tests for. Elements with equal keys can not be
+ * told apart by the rules.
+ * 
+ * Keys can only be built if the rules test nothing else (see {@link #isEnabled()}).
+ * 
+ */
+public class ContextKeyBuilder {
+	private final boolean enabled;
+
+	private final Set<String> testedClasses = Sets.newHashSet();
+
+	private final Set<String> testedIds = Sets.newHashSet();
+
+	/**
+	 * Creates a builder for the current rules of the given style sheet. The rules must not be changed while
+	 * the builder is used.
+	 * 
+	 * @param gcss
+	 */
+	public ContextKeyBuilder(GraphCSS gcss) {
+		enabled = gcss.collectTestedNames(testedClasses, testedIds);
+	}
+
+	/**
+	 * Adds what the rules test for in the given element and its context to a key.
+	 * 
+	 * @param key
+	 * @param element
+	 */
+	public void addContext(List<Object> key, IGraphElement element) {
+		for(IGraphElement e = element; e != null; e = e.getParentElement()) {
+			key.add(e.getElementType());
+			if(testedClasses.isEmpty())
+				key.add(null);
+			else {
+				Set<String> classes = Sets.newHashSet();
+				for(String styleClass : e.getStyleClasses())
+					if(testedClasses.contains(styleClass))
+						classes.add(styleClass);
+				key.add(classes);
+			}
+			key.add(testedIds.contains(e.getId())
+					? e.getId()
+					: null);
+		}
+	}
+
+	/**
+	 * Returns true if the rules test nothing but the type, style classes, ids, and context of elements.
+	 * 
+	 * @return
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+}
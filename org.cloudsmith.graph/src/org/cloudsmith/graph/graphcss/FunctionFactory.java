@@ -18,13 +18,13 @@ import java.util.Set;
 
 import org.cloudsmith.graph.IGraphElement;
 import org.cloudsmith.graph.ILabeledGraphElement;
+import org.cloudsmith.graph.QualifiedIdTable;
 import org.cloudsmith.graph.style.labels.ILabelTemplate;
 import org.cloudsmith.graph.style.labels.LabelStringTemplate;
 import org.cloudsmith.graph.style.labels.LabelTable;
 import org.cloudsmith.graph.utils.Base64;
 
 import com.google.common.base.Function;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Sets;
 import com.google.inject.Singleton;
 
@@ -116,20 +116,8 @@ public class FunctionFactory implements IFunctionFactory {
 		}
 
 		private String computeID(IGraphElement element) {
-			IGraphElement[] parents = Iterators.toArray(element.getContext(), IGraphElement.class);
-			int plength = (parents == null)
-					? 0
-					: parents.length;
-			StringBuilder buf = new StringBuilder(10 + 5 * plength);
-			// add each parents id separated by - start with root (last in array)
-			if(parents != null)
-				for(int i = parents.length - 1; i >= 0; i--)
-					buf.append((i == (plength - 1)
-							? ""
-							: "-") + parents[i].getId());
-			buf.append("-");
-			buf.append(element.getId());
-			return buf.toString();
+			// shares the qualified ids computed by the renderer when called during a render
+			return QualifiedIdTable.qualifiedId(element);
 		}
 	}
 
@@ -172,7 +160,7 @@ public class FunctionFactory implements IFunctionFactory {
 		}
 	}
 
-	private static class LiteralLabelTemplate implements Function<IGraphElement, ILabelTemplate> {
+	private static class LiteralLabelTemplate implements ILiteralFunction<ILabelTemplate> {
 		final private ILabelTemplate value;
 
 		public LiteralLabelTemplate(String value) {
@@ -189,7 +177,7 @@ public class FunctionFactory implements IFunctionFactory {
 		}
 	}
 
-	private static class LiteralString implements Function<IGraphElement, String> {
+	private static class LiteralString implements ILiteralFunction<String> {
 
 		private String value;
 
@@ -208,7 +196,7 @@ public class FunctionFactory implements IFunctionFactory {
 		}
 	}
 
-	private static class LiteralStringSet implements Function<IGraphElement, Set<String>> {
+	private static class LiteralStringSet implements ILiteralFunction<Set<String>> {
 
 		private Set<String> value;
 
@@ -13,9 +13,9 @@ package org.cloudsmith.graph.graphcss;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
 import org.cloudsmith.graph.ICancel;
 import org.cloudsmith.graph.IGraphElement;
@@ -23,10 +23,28 @@ import org.cloudsmith.graph.IGraphElement;
 /**
  * A Graph CSS consists of a set of {@link Rule} describing the styling of an {@link IGraph}.
  * 
+ * A Graph CSS can be {@link #freeze() frozen} when all rules have been added. A frozen Graph CSS can not be
+ * changed, and can be shared by several threads (and renders).
+ * 
  */
 public class GraphCSS {
 	ArrayList<Rule> cssRules;
 
+	/**
+	 * The index of the rules, or null if it has not been built since the rules changed.
+	 */
+	private volatile RuleIndex ruleIndex;
+
+	/**
+	 * The styles shared by elements, or null if they have not been computed since the rules changed.
+	 */
+	private volatile ComputedStyleCache styleCache;
+
+	/**
+	 * True if no more rules can be added.
+	 */
+	private volatile boolean frozen;
+
 	/**
 	 * Comparator that compares specificity of two rules, and if specificity is equal, the rule with
 	 * lower index is considered to be 'before'.
@@ -42,8 +60,8 @@ public class GraphCSS {
 
 			// if they are equal - they should be ordered on their index in the ruleset
 			// the one with the lower index
-			r1s = r1.getGraphCSS().indexOf(r1);
-			r2s = r2.getGraphCSS().indexOf(r2);
+			r1s = r1.getIndex();
+			r2s = r2.getIndex();
 			if(r1s < r2s)
 				return -1;
 			if(r1s > r2s)
@@ -79,8 +97,12 @@ public class GraphCSS {
 	 * The added rule ruleSet property is set to this ruleSet.
 	 * 
 	 * @param rule
+	 * @throws IllegalStateException
+	 *             if this rule set is frozen
 	 */
 	public void addRule(Rule rule) {
+		if(frozen)
+			throw new IllegalStateException("The rule set is frozen");
 		if(rule == Rule.NULL_RULE)
 			return;
 
@@ -88,7 +110,10 @@ public class GraphCSS {
 				? (Rule) rule.clone()
 				: rule;
 		rule.setGraphCSS(this);
+		rule.setIndex(cssRules.size());
 		cssRules.add(rule);
+		ruleIndex = null;
+		styleCache = null;
 	}
 
 	/**
@@ -134,18 +159,22 @@ public class GraphCSS {
 	 * Collects an (ordered) list of rules in order of specificity (lowest first).
 	 * If two rules have the same specificity, the one added first to the rule set will have a lower index.
 	 * 
+	 * Only the rules that the {@link RuleIndex index} of the rules finds for the element are tested. The index
+	 * is built when rules are first collected after the rules have changed, and keeps the rules in this
+	 * order, so that the matching rules are found in order.
+	 * 
 	 * @return
 	 */
 	public List<Rule> collectRules(IGraphElement element) {
-		ArrayList<Rule> matches = new ArrayList<Rule>(cssRules.size() / 2); // guessing on size
+		RuleIndex index = ruleIndex;
+		if(index == null)
+			ruleIndex = index = new RuleIndex(cssRules);
 
-		// if element has a style map, add a (matched) rule for it
+		List<Rule> matches = index.collectMatches(element);
+
+		// if element has a style map, add a (matched) rule for it - it is the most specific
 		if(element.getStyles() != null)
 			matches.add(new Rule(new Select.Instance(element), element.getStyles()));
-		for(Rule r : cssRules)
-			if(r.matches(element))
-				matches.add(r);
-		Collections.sort(matches, RULE_COMPARATOR);
 		return matches;
 	}
 
@@ -165,7 +194,105 @@ public class GraphCSS {
 		return result;
 	}
 
+	/**
+	 * Adds the style classes and ids that the rules test elements for to the given sets. Elements (with
+	 * contexts) that differ only in other style classes and ids get the same styles from the rules, unless
+	 * the styles are functions of the elements.
+	 * 
+	 * @param styleClasses
+	 * @param ids
+	 * @return false if some rule tests more than the type, style classes, ids, and context of elements (e.g.
+	 *         the identity of an element in the context)
+	 */
+	public boolean collectTestedNames(Set<String> styleClasses, Set<String> ids) {
+		boolean result = true;
+		for(Rule r : cssRules)
+			if(!r.collectTestedNames(styleClasses, ids))
+				result = false;
+		return result;
+	}
+
+	/**
+	 * Makes this rule set immutable. The index of the rules and the cache of computed styles are built at once,
+	 * and are kept as long as the rule set is used. Adding rules to a frozen rule set throws an
+	 * {@link IllegalStateException}.
+	 * 
+	 * Renderers reuse what they compute from frozen rule sets (see
+	 * {@link org.cloudsmith.graph.dot.DotRenderer}), so a rule set that is used for many renders should be
+	 * frozen. The styles of the rules must not be changed once the rule set is frozen.
+	 * 
+	 * @return this rule set
+	 */
+	public GraphCSS freeze() {
+		if(!frozen) {
+			ruleIndex = new RuleIndex(cssRules);
+			styleCache = new ComputedStyleCache(this);
+			frozen = true;
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the styles applicable to the element, like {@link #collectStyles(IGraphElement, ICancel)}. The
+	 * styles are computed once for all elements that the rules can not tell apart (see
+	 * {@link ComputedStyleCache}), and the returned set may be shared with other elements. It is immutable.
+	 * 
+	 * The shared styles are dropped when a rule is added (the styles of a rule must not be changed once it has
+	 * been added).
+	 * 
+	 * @param element
+	 * @param cancel
+	 * @return
+	 */
+	public StyleSet getComputedStyles(IGraphElement element, ICancel cancel) {
+		ComputedStyleCache cache = getStyleCache();
+		List<Object> key = cache.getKey(element);
+		if(key == null)
+			return new StyleSet.ImmutableStyleSet(collectStyles(element, cancel));
+		StyleSet result = cache.get(key);
+		return result != null
+				? result
+				: cache.put(key, collectStyles(element, cancel));
+	}
+
+	private ComputedStyleCache getStyleCache() {
+		ComputedStyleCache cache = styleCache;
+		if(cache == null)
+			styleCache = cache = new ComputedStyleCache(this);
+		return cache;
+	}
+
+	/**
+	 * Returns the number of times that {@link #getComputedStyles(IGraphElement, ICancel)} has returned shared
+	 * styles since the rules last changed.
+	 * 
+	 * @return
+	 */
+	public long getStyleCacheHitCount() {
+		return getStyleCache().getHitCount();
+	}
+
+	/**
+	 * Returns the number of times that {@link #getComputedStyles(IGraphElement, ICancel)} has computed styles
+	 * that can be shared since the rules last changed.
+	 * 
+	 * @return
+	 */
+	public long getStyleCacheMissCount() {
+		return getStyleCache().getMissCount();
+	}
+
 	public int indexOf(Rule rule) {
 		return cssRules.indexOf(rule);
 	}
+
+	/**
+	 * Returns true if this rule set has been frozen.
+	 * 
+	 * @see #freeze()
+	 * @return
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
 }
@@ -0,0 +1,24 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphcss;
+
+import org.cloudsmith.graph.IGraphElement;
+
+import com.google.common.base.Function;
+
+/**
+ * Marker interface for functions that produce the same value for all graph elements (and for null). Label
+ * templates built from such functions can be compiled once instead of being evaluated for each element.
+ * 
+ */
+public interface ILiteralFunction<T> extends Function<IGraphElement, T> {
+}
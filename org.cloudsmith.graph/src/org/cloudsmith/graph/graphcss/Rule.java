@@ -11,6 +11,8 @@
  */
 package org.cloudsmith.graph.graphcss;
 
+import java.util.Set;
+
 import org.cloudsmith.graph.IGraphElement;
 import org.cloudsmith.graph.style.IStyle;
 
@@ -46,6 +48,11 @@ public final class Rule implements Cloneable {
 	 */
 	private GraphCSS graphCSS;
 
+	/**
+	 * The position of this rule in its GCSS.
+	 */
+	private int index;
+
 	/**
 	 * Create a Rule with an empty style set.
 	 * 
@@ -110,6 +117,18 @@ public final class Rule implements Cloneable {
 		return result;
 	}
 
+	/**
+	 * Adds the style classes and ids that the selector of the rule tests elements for to the given sets.
+	 * 
+	 * @param styleClasses
+	 * @param ids
+	 * @return false if the selector tests more than the type, style classes, ids, and context of elements
+	 * @see Select.Selector#collectTestedNames(Set, Set, boolean)
+	 */
+	public boolean collectTestedNames(Set<String> styleClasses, Set<String> ids) {
+		return selector.collectTestedNames(styleClasses, ids, false);
+	}
+
 	/**
 	 * Returns true if this rule has the same selector match as the argument. Note for each type of selector
 	 * how the selector equality is tested.
@@ -125,6 +144,19 @@ public final class Rule implements Cloneable {
 		return graphCSS;
 	}
 
+	/**
+	 * Returns the position of this rule in its GCSS (rules added earlier have lower positions).
+	 * 
+	 * @return
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	Select.Selector getSelector() {
+		return selector;
+	}
+
 	public int getSpecificity() {
 		return selector.getSpecificity();
 	}
@@ -133,6 +165,20 @@ public final class Rule implements Cloneable {
 		return selector.matches(element);
 	}
 
+	/**
+	 * Returns true if the rule matches the element, rejecting it at once if the containers of the element do
+	 * not have the names the selector requires.
+	 * 
+	 * @param element
+	 * @param ancestors
+	 *            the names of the containers of the element, or null if they are not known
+	 * @return
+	 * @see Select.Selector#matches(IGraphElement, AncestorFilter)
+	 */
+	boolean matches(IGraphElement element, AncestorFilter ancestors) {
+		return selector.matches(element, ancestors);
+	}
+
 	/**
 	 * Sets the parent rule set of this rule.
 	 * DON'T CALL THIS METHOD UNLESS YOU KNOW WHAT YOU ARE DOING.
@@ -142,4 +188,8 @@ public final class Rule implements Cloneable {
 	public void setGraphCSS(GraphCSS ruleSet) {
 		graphCSS = ruleSet;
 	}
+
+	void setIndex(int index) {
+		this.index = index;
+	}
 }
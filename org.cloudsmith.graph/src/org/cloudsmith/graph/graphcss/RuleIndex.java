@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphcss;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudsmith.graph.ElementType;
+import org.cloudsmith.graph.IGraphElement;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * An index of the rules of a {@link GraphCSS}, that finds the rules that may match an element without
+ * testing all rules.
+ * 
+ * Each rule is put in one bucket, chosen from the subject of its selector (see
+ * {@link Select.Selector#getSubject()}): the bucket of the subject's id if it tests the id, otherwise the
+ * bucket of one of the subject's style classes if it tests style classes, otherwise the buckets of the
+ * subject's element types. Rules without a subject, or with a subject that matches all elements, are
+ * candidates for all elements. The candidates for an element are the rules in the buckets of its id, style
+ * classes and type, and they must still be matched against the element.
+ * 
+ * The rules in each bucket are kept in the order of {@link GraphCSS#RULE_COMPARATOR}, and the matching rules
+ * of the buckets are merged, so that the matching rules are found in that order without sorting them for
+ * each element.
+ * 
+ * If some rules require names of the containers of the elements they match (see {@link AncestorFilter}), the
+ * names of the containers of an element are collected once when its rules are matched, so that such rules can
+ * be rejected without walking the containers.
+ * 
+ * An index is immutable, and can be used by several threads.
+ * 
+ */
+class RuleIndex {
+	private static <K> void add(Map<K, List<Rule>> buckets, K key, Rule rule) {
+		List<Rule> bucket = buckets.get(key);
+		if(bucket == null)
+			buckets.put(key, bucket = Lists.<Rule> newArrayList());
+		bucket.add(rule);
+	}
+
+	/**
+	 * Merges the rules in a bucket that match the given element with the (ordered) rules matched so far.
+	 */
+	private static List<Rule> addMatches(List<Rule> bucket, IGraphElement element, AncestorFilter ancestors,
+			List<Rule> matches) {
+		if(bucket == null)
+			return matches;
+		List<Rule> bucketMatches = null;
+		for(Rule r : bucket)
+			if(r.matches(element, ancestors)) {
+				if(bucketMatches == null)
+					bucketMatches = Lists.newArrayList();
+				bucketMatches.add(r);
+			}
+		if(bucketMatches == null)
+			return matches;
+		if(matches.isEmpty())
+			return bucketMatches;
+
+		List<Rule> result = Lists.newArrayListWithCapacity(matches.size() + bucketMatches.size() + 1);
+		int i = 0;
+		int j = 0;
+		while(i < matches.size() && j < bucketMatches.size())
+			result.add(GraphCSS.RULE_COMPARATOR.compare(matches.get(i), bucketMatches.get(j)) < 0
+					? matches.get(i++)
+					: bucketMatches.get(j++));
+		result.addAll(matches.subList(i, matches.size()));
+		result.addAll(bucketMatches.subList(j, bucketMatches.size()));
+		return result;
+	}
+
+	private final Map<String, List<Rule>> byId = Maps.newHashMap();
+
+	private final Map<String, List<Rule>> byStyleClass = Maps.newHashMap();
+
+	private final Map<ElementType, List<Rule>> byType = new EnumMap<ElementType, List<Rule>>(ElementType.class);
+
+	private final List<Rule> universal = Lists.newArrayList();
+
+	/**
+	 * True if some rule requires names of the containers of the elements it matches.
+	 */
+	private final boolean testsAncestors;
+
+	RuleIndex(Collection<Rule> rules) {
+		boolean ancestors = false;
+		for(Rule r : rules) {
+			if(r.getSelector().getRequiredAncestors() != null)
+				ancestors = true;
+			Select.Element subject = r.getSelector().getSubject();
+			if(subject == null)
+				universal.add(r);
+			else if(subject.getId().length() > 0)
+				add(byId, subject.getId(), r);
+			else if(subject.getStyleClasses().size() > 0)
+				add(byStyleClass, subject.getStyleClasses().iterator().next(), r);
+			else if(subject.getTypes().size() < ElementType.NUM_TYPES)
+				for(ElementType t : subject.getTypes())
+					add(byType, t, r);
+			else
+				universal.add(r);
+		}
+		testsAncestors = ancestors;
+		Collections.sort(universal, GraphCSS.RULE_COMPARATOR);
+		for(List<Rule> bucket : byId.values())
+			Collections.sort(bucket, GraphCSS.RULE_COMPARATOR);
+		for(List<Rule> bucket : byStyleClass.values())
+			Collections.sort(bucket, GraphCSS.RULE_COMPARATOR);
+		for(List<Rule> bucket : byType.values())
+			Collections.sort(bucket, GraphCSS.RULE_COMPARATOR);
+	}
+
+	/**
+	 * Returns the rules that match the given element, in the order of {@link GraphCSS#RULE_COMPARATOR}.
+	 * 
+	 * @param element
+	 * @return a list that the caller may modify
+	 */
+	List<Rule> collectMatches(IGraphElement element) {
+		AncestorFilter ancestors = testsAncestors
+				? AncestorFilter.of(element)
+				: null;
+		List<Rule> matches = Lists.newArrayList();
+		matches = addMatches(universal, element, ancestors, matches);
+		matches = addMatches(byType.get(element.getElementType()), element, ancestors, matches);
+		if(!byId.isEmpty() && element.getId() != null)
+			matches = addMatches(byId.get(element.getId()), element, ancestors, matches);
+		if(!byStyleClass.isEmpty())
+			for(String styleClass : element.getStyleClasses())
+				matches = addMatches(byStyleClass.get(styleClass), element, ancestors, matches);
+		return matches;
+	}
+}
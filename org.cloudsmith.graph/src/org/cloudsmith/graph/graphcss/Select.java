@@ -21,7 +21,6 @@ import org.cloudsmith.graph.IEdge;
 import org.cloudsmith.graph.IGraphElement;
 import org.cloudsmith.graph.style.IStyle;
 
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Sets;
 
 /**
@@ -37,6 +36,11 @@ public class Select {
 			this.selector = selector;
 		}
 
+		@Override
+		public boolean collectTestedNames(Set<String> styleClasses, Set<String> ids, boolean context) {
+			return selector.collectTestedNames(styleClasses, ids, context);
+		}
+
 		@Override
 		public boolean equalMatch(Selector selector) {
 			if(!(selector instanceof Not))
@@ -55,6 +59,11 @@ public class Select {
 			return !this.selector.matches(element);
 		}
 
+		@Override
+		boolean matches(IGraphElement element, AncestorFilter ancestors) {
+			return !this.selector.matches(element, ancestors);
+		}
+
 	}
 
 	/**
@@ -70,6 +79,14 @@ public class Select {
 			this.selectors = selectors;
 		}
 
+		@Override
+		public boolean collectTestedNames(Set<String> styleClasses, Set<String> ids, boolean context) {
+			for(int i = 0; i < selectors.length; i++)
+				if(!selectors[i].collectTestedNames(styleClasses, ids, context))
+					return false;
+			return true;
+		}
+
 		/**
 		 * Important - two And selectors are considered equal only if they have the rules in the same order.
 		 * The correctness of this can be discussed.
@@ -87,6 +104,17 @@ public class Select {
 			return true;
 		}
 
+		/**
+		 * All selectors must match the element, so the containers must have the names required by each of them.
+		 */
+		@Override
+		AncestorFilter getRequiredAncestors() {
+			AncestorFilter result = null;
+			for(int i = 0; i < selectors.length; i++)
+				result = AncestorFilter.union(result, selectors[i].getRequiredAncestors());
+			return result;
+		}
+
 		@Override
 		public int getSpecificity() {
 			if(specificity != 0)
@@ -96,6 +124,21 @@ public class Select {
 			return specificity;
 		}
 
+		/**
+		 * All selectors must match the element, so the subject of any of them is a subject of the And. The
+		 * most selective one is returned.
+		 */
+		@Override
+		public Element getSubject() {
+			Element result = null;
+			for(int i = 0; i < selectors.length; i++) {
+				Element subject = selectors[i].getSubject();
+				if(subject != null && (result == null || subject.isMoreSelective(result)))
+					result = subject;
+			}
+			return result;
+		}
+
 		@Override
 		public boolean matches(IGraphElement element) {
 			for(int i = 0; i < selectors.length; i++)
@@ -103,6 +146,14 @@ public class Select {
 					return false;
 			return true;
 		}
+
+		@Override
+		boolean matches(IGraphElement element, AncestorFilter ancestors) {
+			for(int i = 0; i < selectors.length; i++)
+				if(!selectors[i].matches(element, ancestors))
+					return false;
+			return true;
+		}
 	}
 
 	/**
@@ -121,6 +172,16 @@ public class Select {
 			this.targetSelector = targetSelector;
 		}
 
+		/**
+		 * Only edges are between vertices, so the selector depends on more than the names of the elements in a
+		 * context. When testing an edge, it tests the source and target vertices (and their contexts).
+		 */
+		@Override
+		public boolean collectTestedNames(Set<String> styleClasses, Set<String> ids, boolean context) {
+			return !context && sourceSelector.collectTestedNames(styleClasses, ids, false) &&
+					targetSelector.collectTestedNames(styleClasses, ids, false);
+		}
+
 		@Override
 		public boolean equalMatch(Selector selector) {
 			if(!(selector instanceof Between))
@@ -163,12 +224,21 @@ public class Select {
 	 * The interpretation allows for "holes" - i.e. the rule (==A ==C) matches the containment
 	 * in the context (X Y A B C element) since element is contained in a C, that in turn is contained
 	 * in an A). This is similar to how the CSS containment rule works.
+	 * 
+	 * The containers are matched from the element outwards. When the rules are collected by a {@link GraphCSS},
+	 * a containment is first tested against a filter of the names in the context (see {@link AncestorFilter}),
+	 * and is rejected without walking the containers if a name that the selectors require is missing.
 	 */
 	public static class Containment extends Selector {
 		private int specificity = 0;
 
 		private Selector[] selectors;
 
+		/**
+		 * The names that the containers must have, or null if the selectors do not require any names.
+		 */
+		private final AncestorFilter requiredAncestors;
+
 		/**
 		 * Selectors for containers - the nearest container first
 		 * 
@@ -178,6 +248,15 @@ public class Select {
 			if(selectors == null || selectors.length < 1)
 				throw new IllegalArgumentException("no selectors specified");
 			this.selectors = selectors;
+			this.requiredAncestors = AncestorFilter.requiredBy(selectors);
+		}
+
+		@Override
+		public boolean collectTestedNames(Set<String> styleClasses, Set<String> ids, boolean context) {
+			for(int i = 0; i < selectors.length; i++)
+				if(!selectors[i].collectTestedNames(styleClasses, ids, true))
+					return false;
+			return true;
 		}
 
 		@Override
@@ -193,6 +272,11 @@ public class Select {
 			return true;
 		}
 
+		@Override
+		AncestorFilter getRequiredAncestors() {
+			return requiredAncestors;
+		}
+
 		@Override
 		public int getSpecificity() {
 			if(specificity != 0)
@@ -203,28 +287,29 @@ public class Select {
 		}
 
 		/**
-		 * context vector has nearest container first
+		 * selectors have nearest container first
 		 */
 		@Override
 		public boolean matches(IGraphElement element) {
-			IGraphElement[] context = Iterators.toArray(element.getContext(), IGraphElement.class);
-			int startIdx = 0;
-			int matchCount = 0;
+			IGraphElement container = element.getParentElement();
 			for(int si = 0; si < selectors.length; si++) {
-				for(int ci = startIdx; ci < context.length; ci++)
-					if(selectors[si].matches(context[ci])) {
-						// match
-						startIdx = ci + 1; // next rule must match context further away
-						matchCount++; // one match ok
-						break;
-					}
+				while(container != null && !selectors[si].matches(container))
+					container = container.getParentElement();
+				if(container == null)
+					return false;
+				// match - next selector must match a container further away
+				container = container.getParentElement();
 			}
 			// match if all containment rules where satisfied
-			return (matchCount == selectors.length)
-					? true
-					: false;
+			return true;
 		}
 
+		@Override
+		boolean matches(IGraphElement element, AncestorFilter ancestors) {
+			if(ancestors != null && requiredAncestors != null && !ancestors.mayContainAll(requiredAncestors))
+				return false;
+			return matches(element);
+		}
 	}
 
 	/**
@@ -276,6 +361,14 @@ public class Select {
 					: "";
 		}
 
+		@Override
+		public boolean collectTestedNames(Set<String> styleClasses, Set<String> ids, boolean context) {
+			styleClasses.addAll(matchClasses);
+			if(matchId != null && matchId.length() > 0)
+				ids.add(matchId);
+			return true;
+		}
+
 		@Override
 		public boolean equalMatch(Selector selector) {
 			if(!(selector instanceof Element))
@@ -320,6 +413,39 @@ public class Select {
 			return specificity;
 		}
 
+		/**
+		 * Returns the id, or "" if any id is matched.
+		 */
+		String getId() {
+			return matchId;
+		}
+
+		Set<String> getStyleClasses() {
+			return matchClasses;
+		}
+
+		@Override
+		public Element getSubject() {
+			return this;
+		}
+
+		Set<ElementType> getTypes() {
+			return matchElement;
+		}
+
+		/**
+		 * Returns true if this selector is likely to match fewer elements than the given one. A selector that
+		 * tests the id is more selective than one that tests style classes, which is more selective than one
+		 * that only tests the type.
+		 */
+		boolean isMoreSelective(Element e) {
+			if(matchId.length() > 0 || e.matchId.length() > 0)
+				return e.matchId.length() == 0;
+			if(matchClasses.size() > 0 || e.matchClasses.size() > 0)
+				return e.matchClasses.isEmpty();
+			return matchElement.size() < e.matchElement.size();
+		}
+
 		@Override
 		public boolean matches(IGraphElement element) {
 			if(!matchElement.contains(element.getElementType()))
@@ -352,6 +478,12 @@ public class Select {
 			this.element = element;
 		}
 
+		@Override
+		public boolean collectTestedNames(Set<String> styleClasses, Set<String> ids, boolean context) {
+			// tests the identity of the element, which elements with the same names do not share
+			return false;
+		}
+
 		@Override
 		public boolean equalMatch(Selector selector) {
 			if(!(selector instanceof Instance))
@@ -376,6 +508,11 @@ public class Select {
 	 */
 	public static class NullSelector extends Selector {
 
+		@Override
+		public boolean collectTestedNames(Set<String> styleClasses, Set<String> ids, boolean context) {
+			return true;
+		}
+
 		@Override
 		public boolean equalMatch(Selector selector) {
 			return false;
@@ -396,8 +533,19 @@ public class Select {
 	public static class ParentSelector extends Selector {
 		private Selector parentSelector;
 
+		/**
+		 * The names that the parent must have, or null if the selector does not require any names.
+		 */
+		private final AncestorFilter requiredAncestors;
+
 		public ParentSelector(Selector parentSelector) {
 			this.parentSelector = parentSelector;
+			this.requiredAncestors = AncestorFilter.requiredBy(parentSelector);
+		}
+
+		@Override
+		public boolean collectTestedNames(Set<String> styleClasses, Set<String> ids, boolean context) {
+			return parentSelector.collectTestedNames(styleClasses, ids, true);
 		}
 
 		@Override
@@ -407,6 +555,11 @@ public class Select {
 			return parentSelector.equalMatch(((ParentSelector) s).parentSelector);
 		}
 
+		@Override
+		AncestorFilter getRequiredAncestors() {
+			return requiredAncestors;
+		}
+
 		@Override
 		public int getSpecificity() {
 			return parentSelector.getSpecificity();
@@ -414,7 +567,15 @@ public class Select {
 
 		@Override
 		public boolean matches(IGraphElement element) {
-			return parentSelector.matches(element.getParentElement());
+			IGraphElement parent = element.getParentElement();
+			return parent != null && parentSelector.matches(parent);
+		}
+
+		@Override
+		boolean matches(IGraphElement element, AncestorFilter ancestors) {
+			if(ancestors != null && requiredAncestors != null && !ancestors.mayContainAll(requiredAncestors))
+				return false;
+			return matches(element);
 		}
 	}
 
@@ -425,6 +586,22 @@ public class Select {
 			return new And(this, selector);
 		}
 
+		/**
+		 * Adds the style classes and ids that the selector tests elements for to the given sets. Elements that
+		 * differ only in other style classes and ids are matched the same way by the selector.
+		 * 
+		 * @param styleClasses
+		 * @param ids
+		 * @param context
+		 *            true if the selector is tested on the context of an element (as part of a containment or
+		 *            parent selector), false if it is tested on the element
+		 * @return false if the selector tests more than the type, style classes, ids, and context of elements
+		 *         (e.g. the identity of an element)
+		 */
+		public boolean collectTestedNames(Set<String> styleClasses, Set<String> ids, boolean context) {
+			return false;
+		}
+
 		public abstract boolean equalMatch(Selector selector);
 
 		/**
@@ -435,8 +612,43 @@ public class Select {
 		 */
 		public abstract int getSpecificity();
 
+		/**
+		 * Returns the names that the containers of every element matched by this selector have (see
+		 * {@link AncestorFilter}).
+		 * 
+		 * @return the names, or null if the selector does not require any names of the containers
+		 */
+		AncestorFilter getRequiredAncestors() {
+			return null;
+		}
+
+		/**
+		 * Returns an element selector that every element matched by this selector also matches (the part of a
+		 * compound selector that tests the element itself rather than its context). The subject is used to
+		 * index rules by type, style class, and id.
+		 * 
+		 * @return the subject, or null if the selector may match elements of any type, style class, and id
+		 */
+		public Element getSubject() {
+			return null;
+		}
+
 		public abstract boolean matches(IGraphElement element);
 
+		/**
+		 * Returns true if the selector matches the element, like {@link #matches(IGraphElement)}, but may
+		 * reject the element at once if the containers of the element do not have the names required by the
+		 * selector.
+		 * 
+		 * @param element
+		 * @param ancestors
+		 *            the names of the containers of the element, or null if they are not known
+		 * @return
+		 */
+		boolean matches(IGraphElement element, AncestorFilter ancestors) {
+			return matches(element);
+		}
+
 		public Rule withStyle(IStyle<? extends Object> styles) {
 			return new Rule(this, StyleSet.withStyles(styles));
 		}
@@ -31,7 +31,9 @@ public class StyleSet {
 	public static class ImmutableStyleSet extends StyleSet {
 
 		public ImmutableStyleSet(StyleSet s) {
-			this.styleMap = ImmutableMap.copyOf(s.styleMap);
+			this.styleMap = s.styleMap == null
+					? ImmutableMap.<StyleType, IStyle<? extends Object>> of()
+					: ImmutableMap.copyOf(s.styleMap);
 		}
 
 	}
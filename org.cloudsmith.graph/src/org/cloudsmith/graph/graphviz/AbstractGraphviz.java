@@ -0,0 +1,494 @@
+/**
+ * Copyright (c) 2006-2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+import org.cloudsmith.graph.DeadlineCancel;
+import org.cloudsmith.graph.ICancel;
+import org.cloudsmith.graph.IRootGraph;
+import org.cloudsmith.graph.dot.CompactDotIds;
+import org.cloudsmith.graph.dot.DotRenderer;
+import org.cloudsmith.graph.graphcss.GraphCSS;
+import org.cloudsmith.graph.utils.BoundedBytePipe;
+import org.cloudsmith.graph.utils.ChannelOutputStream;
+import org.cloudsmith.graph.utils.ByteArrayOutputStream2;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Base class for graphviz runners. Implements all methods in {@link IGraphviz} by producing dot text
+ * and passing it to {@link #writeGraphvizOutputs(ICancel, Map, GraphvizRenderer, GraphvizLayout, InputStream)}.
+ * 
+ */
+public abstract class AbstractGraphviz implements IGraphviz {
+	/**
+	 * A cancel indicator for the two sides of a pipelined render. It is canceled when the caller's
+	 * indicator is canceled, or when one of the sides fails.
+	 */
+	private static class PipelineCancel implements ICancel {
+		private final ICancel cancel;
+
+		private volatile boolean canceled = false;
+
+		PipelineCancel(ICancel cancel) {
+			this.cancel = cancel;
+		}
+
+		@Override
+		public void assertContinue() throws CancellationException {
+			cancel.assertContinue();
+			if(canceled)
+				throw new CancellationException();
+		}
+
+		void cancel() {
+			canceled = true;
+		}
+
+		@Override
+		public boolean isCanceled() {
+			return canceled || cancel.isCanceled();
+		}
+	}
+
+	/**
+	 * Size of the buffer between dot production and graphviz in a pipelined render.
+	 */
+	private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Runs the dot producers of pipelined renders. A producer blocks on the pipe until its render has been
+	 * admitted by the {@link GraphvizRenderScheduler}, so producers must not take threads from the pump
+	 * executor that the admitted renders need.
+	 */
+	private static final ExecutorService producerExecutor = PumpExecutor.unbounded("graphviz dot producer");
+
+	/**
+	 * Returns true if the given formats can be rendered from compact dot text. Names and id values are
+	 * restored in SVG and cmapx output, and do not appear in images.
+	 */
+	private static boolean isCompactable(Set<GraphvizFormat> formats) {
+		for(GraphvizFormat format : formats)
+			switch(format) {
+				case png:
+				case jpg:
+				case svg:
+				case cmapx:
+					break;
+				default:
+					return false;
+			}
+		return true;
+	}
+
+	protected final IGraphvizConfig config;
+
+	protected final IGraphvizOptions options;
+
+	protected final DotRenderer dotRenderer;
+
+	protected AbstractGraphviz(IGraphvizConfig config, IGraphvizOptions options, DotRenderer dotRenderer) {
+		this.config = config;
+		this.options = options;
+		this.dotRenderer = dotRenderer;
+	}
+
+	/**
+	 * Returns the renderer to pass on the graphviz command line for a requested renderer.
+	 * 
+	 * @param renderer
+	 *            the requested renderer
+	 * @return the renderer to use, or null if no renderer should be given
+	 */
+	protected GraphvizRenderer getCommandRenderer(GraphvizRenderer renderer) {
+		// graphviz -T format:renderer is something like -T png:cairo
+		// Use a renderer (':renderer' after the format) only if renderer is specified - generally
+		// a bad idea as you need to know what renderers are available.
+		//
+		return (renderer == null || renderer == GraphvizRenderer.standard)
+				? null
+				: config.getRenderer();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getDotText(org.cloudsmith.graph.IGraph, org.cloudsmith.graph.impl.style.RuleSet)
+	 */
+	@Override
+	public String getDotText(final ICancel cancel, IRootGraph graph, GraphCSS defaultCSS, GraphCSS... gCSS) {
+		ByteArrayOutputStream bufferStream = new ByteArrayOutputStream();
+		dotRenderer.write(cancel, bufferStream, graph, defaultCSS, gCSS);
+		return bufferStream.toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getUsemap(org.cloudsmith.graph.IGraph, org.cloudsmith.graph.impl.style.RuleSet,
+	 * org.cloudsmith.graph.impl.dot.Graphviz.Layout)
+	 */
+	@Override
+	public String getUsemap(final ICancel cancel, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyle,
+			GraphCSS... styleSheets) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		if(writeGraphvizOutput(cancel, stream, GraphvizFormat.cmapx, null, layout, graph, defaultStyle, styleSheets) == null)
+			return "";
+		return stream.toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IGraphviz#toFormats(org.cloudsmith.graph.ICancel, java.util.Set,
+	 * org.cloudsmith.graph.graphviz.GraphvizLayout, org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS,
+	 * org.cloudsmith.graph.graphcss.GraphCSS[])
+	 */
+	@Override
+	public Map<GraphvizFormat, byte[]> toFormats(ICancel cancel, Set<GraphvizFormat> formats, GraphvizLayout layout,
+			IRootGraph graph, GraphCSS defaultStyle, GraphCSS... styleSheets) {
+		Map<GraphvizFormat, ByteArrayOutputStream> streams = new EnumMap<GraphvizFormat, ByteArrayOutputStream>(
+			GraphvizFormat.class);
+		for(GraphvizFormat format : formats)
+			streams.put(format, new ByteArrayOutputStream());
+		if(!writeGraphvizOutputs(cancel, streams, config.getRenderer(), layout, graph, defaultStyle, styleSheets))
+			return null;
+		Map<GraphvizFormat, byte[]> result = new EnumMap<GraphvizFormat, byte[]>(GraphvizFormat.class);
+		for(Map.Entry<GraphvizFormat, ByteArrayOutputStream> stream : streams.entrySet())
+			result.put(stream.getKey(), stream.getValue().toByteArray());
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getJpgImage(org.cloudsmith.graph.IGraph, org.cloudsmith.graph.impl.style.RuleSet,
+	 * org.cloudsmith.graph.impl.dot.Graphviz.Layout)
+	 */
+	@Override
+	public byte[] toJPG(final ICancel cancel, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyleSheet,
+			GraphCSS... styleSheets) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		if(writeGraphvizOutput(
+			cancel, stream, GraphvizFormat.jpg, config.getRenderer(), layout, graph, defaultStyleSheet, styleSheets) == null)
+			return null;
+		byte[] ret = stream.toByteArray();
+		return (ret == null || ret.length < 1)
+				? null
+				: ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getPngImage(org.cloudsmith.graph.IGraph, org.cloudsmith.graph.impl.style.RuleSet,
+	 * org.cloudsmith.graph.impl.dot.Graphviz.Layout)
+	 */
+	@Override
+	public byte[] toPNG(final ICancel cancel, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyle,
+			GraphCSS... styleSheets) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		if(writeGraphvizOutput(
+			cancel, stream, GraphvizFormat.png, config.getRenderer(), layout, graph, defaultStyle, styleSheets) == null)
+			return null;
+		byte[] ret = stream.toByteArray();
+		return (ret == null || ret.length < 1)
+				? null
+				: ret;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getSvgImage(org.cloudsmith.graph.IGraph, org.cloudsmith.graph.impl.style.RuleSet,
+	 * org.cloudsmith.graph.impl.dot.Graphviz.Layout)
+	 */
+	@Override
+	public String toSVG(final ICancel cancel, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyle,
+			GraphCSS... styleSheets) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		if(writeGraphvizOutput(
+			cancel, stream, GraphvizFormat.svg, config.getRenderer(), layout, graph, defaultStyle, styleSheets) == null)
+			return null;
+		return stream.toString();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getGraphvizOutput(java.io.OutputStream, org.cloudsmith.graph.impl.dot.Graphviz.Format,
+	 * org.cloudsmith.graph.impl.dot.Graphviz.Renderer, org.cloudsmith.graph.IGraph, org.cloudsmith.graph.impl.style.RuleSet,
+	 * org.cloudsmith.graph.impl.dot.Graphviz.Layout)
+	 */
+	@Override
+	public OutputStream writeGraphvizOutput(ICancel cancel, OutputStream output, GraphvizFormat format,
+			GraphvizRenderer renderer, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyleSheet,
+			GraphCSS... styleSheets) {
+		if(!writeGraphvizOutputs(
+			cancel, Collections.singletonMap(format, output), renderer, layout, graph, defaultStyleSheet, styleSheets))
+			return null;
+		return output;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IGraphviz#writeGraphvizOutput(org.cloudsmith.graph.ICancel,
+	 * java.nio.channels.WritableByteChannel, org.cloudsmith.graph.graphviz.GraphvizFormat,
+	 * org.cloudsmith.graph.graphviz.GraphvizRenderer, org.cloudsmith.graph.graphviz.GraphvizLayout,
+	 * org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS, org.cloudsmith.graph.graphcss.GraphCSS[])
+	 */
+	@Override
+	public boolean writeGraphvizOutput(ICancel cancel, WritableByteChannel output, GraphvizFormat format,
+			GraphvizRenderer renderer, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyleSheet,
+			GraphCSS... styleSheets) {
+		// not closed, as that would close the channel
+		OutputStream stream = new ChannelOutputStream(output);
+		return writeGraphvizOutputs(
+			cancel, Collections.singletonMap(format, stream), renderer, layout, graph, defaultStyleSheet, styleSheets);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IGraphviz#writeGraphvizOutput(org.cloudsmith.graph.ICancel, java.io.OutputStream,
+	 * org.cloudsmith.graph.graphviz.GraphvizFormat, org.cloudsmith.graph.graphviz.GraphvizRenderer,
+	 * org.cloudsmith.graph.graphviz.GraphvizLayout, java.io.InputStream)
+	 */
+	@Override
+	public OutputStream writeGraphvizOutput(ICancel cancel, OutputStream output, GraphvizFormat format,
+			GraphvizRenderer renderer, GraphvizLayout layout, InputStream dotData) {
+		if(!writeGraphvizOutputs(cancel, Collections.singletonMap(format, output), renderer, layout, dotData))
+			return null;
+		return output;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IGraphviz#writeGraphvizOutputs(org.cloudsmith.graph.ICancel, java.util.Map,
+	 * org.cloudsmith.graph.graphviz.GraphvizRenderer, org.cloudsmith.graph.graphviz.GraphvizLayout,
+	 * org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS, org.cloudsmith.graph.graphcss.GraphCSS[])
+	 */
+	@Override
+	public boolean writeGraphvizOutputs(ICancel cancel, Map<GraphvizFormat, ? extends OutputStream> outputs,
+			GraphvizRenderer renderer, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyleSheet,
+			GraphCSS... styleSheets) {
+		if(!options.isCompactDotIds() || !isCompactable(outputs.keySet()))
+			return writeGraphvizOutputs(cancel, outputs, renderer, layout, graph, null, defaultStyleSheet, styleSheets);
+
+		// the names and values in compact dot text are restored in the textual output
+		CompactDotIds compactIds = new CompactDotIds();
+		Map<GraphvizFormat, OutputStream> restoredOutputs = Maps.newEnumMap(GraphvizFormat.class);
+		List<CompactIdRestoringOutputStream> restorers = Lists.newArrayList();
+		for(Map.Entry<GraphvizFormat, ? extends OutputStream> output : outputs.entrySet()) {
+			OutputStream stream = output.getValue();
+			if(output.getKey() == GraphvizFormat.svg || output.getKey() == GraphvizFormat.cmapx) {
+				CompactIdRestoringOutputStream restorer = new CompactIdRestoringOutputStream(stream, compactIds);
+				restorers.add(restorer);
+				stream = restorer;
+			}
+			restoredOutputs.put(output.getKey(), stream);
+		}
+		if(!writeGraphvizOutputs(
+			cancel, restoredOutputs, renderer, layout, graph, compactIds, defaultStyleSheet, styleSheets))
+			return false;
+		try {
+			for(CompactIdRestoringOutputStream restorer : restorers)
+				restorer.finish();
+		}
+		catch(IOException e) {
+			Logger log = Logger.getLogger(Graphviz.class);
+			log.error("error restoring names in graphviz output", e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Produces the dot text, compact if compactIds is not null, and renders it.
+	 * 
+	 * @see #writeGraphvizOutputs(ICancel, Map, GraphvizRenderer, GraphvizLayout, IRootGraph, GraphCSS, GraphCSS...)
+	 */
+	private boolean writeGraphvizOutputs(ICancel cancel, Map<GraphvizFormat, ? extends OutputStream> outputs,
+			GraphvizRenderer renderer, GraphvizLayout layout, IRootGraph graph, CompactDotIds compactIds,
+			GraphCSS defaultStyleSheet, GraphCSS... styleSheets) {
+		try {
+			if(options.isPipelinedDotGeneration())
+				return writePipelinedGraphvizOutputs(
+					cancel, outputs, renderer, layout, graph, compactIds, defaultStyleSheet, styleSheets);
+
+			// Produce the dot output to a buffer (at one point we could not run this in a thread because JBoss
+			// Seam got confused over context - maybe possible to revisit
+			//
+			DeadlineCancel.enterPhase(cancel, DeadlineCancel.Phase.DOT);
+			final ByteArrayOutputStream2 dotOutput = new ByteArrayOutputStream2();
+			dotRenderer.write(cancel, dotOutput, graph, compactIds, defaultStyleSheet, styleSheets);
+			DeadlineCancel.enterPhase(cancel, DeadlineCancel.Phase.LAYOUT);
+			return writeGraphvizOutputs(cancel, outputs, renderer, layout, dotOutput.toInputStream(false));
+		}
+		finally {
+			// also when the dot producer entered a phase after graphviz had finished
+			DeadlineCancel.complete(cancel);
+		}
+	}
+
+	/**
+	 * Produces the dot text in a separate task that writes to the graphviz input through a
+	 * {@link BoundedBytePipe}, so that graphviz parses the dot text while it is being produced. The task runs
+	 * in a thread of its own, not in the pump executor.
+	 * A failure on either side cancels the other side.
+	 * 
+	 * @see #writeGraphvizOutputs(ICancel, Map, GraphvizRenderer, GraphvizLayout, IRootGraph, CompactDotIds,
+	 *      GraphCSS, GraphCSS...)
+	 */
+	private boolean writePipelinedGraphvizOutputs(final ICancel cancel,
+			Map<GraphvizFormat, ? extends OutputStream> outputs, GraphvizRenderer renderer, GraphvizLayout layout,
+			final IRootGraph graph, final CompactDotIds compactIds, final GraphCSS defaultStyleSheet,
+			final GraphCSS... styleSheets) {
+		final PipelineCancel pipelineCancel = new PipelineCancel(cancel);
+		final BoundedBytePipe pipe = new BoundedBytePipe(PIPE_BUFFER_SIZE);
+
+		DeadlineCancel.enterPhase(cancel, DeadlineCancel.Phase.DOT);
+		Future<?> producer = producerExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					OutputStream dotOutput = new BufferedOutputStream(pipe.getOutputStream());
+					dotRenderer.write(pipelineCancel, dotOutput, graph, compactIds, defaultStyleSheet, styleSheets);
+					dotOutput.close();
+					DeadlineCancel.enterPhase(cancel, DeadlineCancel.Phase.LAYOUT);
+				}
+				catch(Throwable e) {
+					// graphviz must not wait for the rest of the graph
+					pipelineCancel.cancel();
+					pipe.abort(e);
+					if(e instanceof RuntimeException)
+						throw (RuntimeException) e;
+					if(e instanceof Error)
+						throw (Error) e;
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		boolean result = false;
+		RuntimeException renderFailure = null;
+		try {
+			result = writeGraphvizOutputs(pipelineCancel, outputs, renderer, layout, pipe.getInputStream());
+		}
+		catch(RuntimeException e) {
+			renderFailure = e;
+		}
+		finally {
+			if(!result) {
+				// stop the producer
+				pipelineCancel.cancel();
+				pipe.abort(new CancellationException());
+			}
+		}
+		try {
+			producer.get();
+		}
+		catch(InterruptedException e) {
+			Logger log = Logger.getLogger(Graphviz.class);
+			log.error("Dot production interupted");
+			return false;
+		}
+		catch(ExecutionException e) {
+			// failures of the producer (e.g. invalid styles) are reported as if produced on this thread,
+			// a canceled producer is a consequence of a failed render, or of cancellation by the caller
+			Throwable cause = e.getCause();
+			if(cause instanceof CancellationException)
+				cancel.assertContinue();
+			else if(cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if(cause instanceof Error)
+				throw (Error) cause;
+			else
+				throw new RuntimeException(cause);
+		}
+		if(renderFailure != null)
+			throw renderFailure;
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IGraphviz#writePNG(java.io.OutputStream, org.cloudsmith.graph.graphviz.GraphvizLayout,
+	 * org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS, org.cloudsmith.graph.graphcss.GraphCSS[])
+	 */
+	@Override
+	public boolean writePNG(ICancel cancel, OutputStream output, GraphvizLayout layout, IRootGraph graph,
+			GraphCSS defaultStyle, GraphCSS... styleSheets) {
+		if(writeGraphvizOutput(
+			cancel, output, GraphvizFormat.png, config.getRenderer(), layout, graph, defaultStyle, styleSheets) == null)
+			return false;
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getSvgImage(java.io.OutputStream, org.cloudsmith.graph.IGraph,
+	 * org.cloudsmith.graph.impl.style.RuleSet, org.cloudsmith.graph.impl.dot.Graphviz.Layout)
+	 */
+	@Override
+	public boolean writeSVG(ICancel cancel, OutputStream output, GraphvizLayout layout, IRootGraph graph,
+			GraphCSS defaultStyle, GraphCSS... styleSheets) {
+		if(writeGraphvizOutput(
+			cancel, output, GraphvizFormat.svg, config.getRenderer(), layout, graph, defaultStyle, styleSheets) == null)
+			return false;
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getSvgzImage(java.io.OutputStream, org.cloudsmith.graph.IGraph,
+	 * org.cloudsmith.graph.impl.style.RuleSet, org.cloudsmith.graph.impl.dot.Graphviz.Layout)
+	 */
+	@Override
+	public boolean writeSVGZ(ICancel cancel, OutputStream output, GraphvizLayout layout, IRootGraph graph,
+			GraphCSS defaultStyle, GraphCSS... styleSheets) {
+		try {
+			GZIPOutputStream stream = new GZIPOutputStream(output);
+			if(writeGraphvizOutput(
+				cancel, stream, GraphvizFormat.svg, config.getRenderer(), layout, graph, defaultStyle, styleSheets) == null)
+				return false;
+			stream.finish();
+			stream.flush();
+		}
+		catch(IOException e) {
+			return false;
+		}
+		return true;
+	}
+}
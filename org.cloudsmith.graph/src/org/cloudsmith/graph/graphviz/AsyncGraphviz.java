@@ -0,0 +1,302 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.cloudsmith.graph.DeadlineCancel;
+import org.cloudsmith.graph.ICancel;
+import org.cloudsmith.graph.IRootGraph;
+import org.cloudsmith.graph.graphcss.GraphCSS;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.Inject;
+
+/**
+ * An asynchronous graphviz runner that performs the renders with the bound {@link IGraphviz} on the
+ * {@link IGraphvizOptions#getRenderExecutor() render executor}.
+ * 
+ */
+public class AsyncGraphviz implements IAsyncGraphviz {
+	/**
+	 * A render that is its own future, and the cancel indicator passed to the graphviz runner.
+	 */
+	private abstract static class Render<T> extends AbstractFuture<T> implements ICancel, Runnable {
+		private final ICancel cancel;
+
+		private final String tenant = GraphvizRenderScheduler.getTenant();
+
+		private final Runnable cancelListener = new Runnable() {
+			@Override
+			public void run() {
+				cancel(false);
+			}
+		};
+
+		Render(ICancel cancel) {
+			this.cancel = cancel;
+			// complete at once when a deadline expires, rather than when the render next checks
+			if(cancel instanceof DeadlineCancel)
+				((DeadlineCancel) cancel).addCancelListener(cancelListener);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.cloudsmith.graph.ICancel#assertContinue()
+		 */
+		@Override
+		public void assertContinue() throws CancellationException {
+			if(isCanceled())
+				throw new CancellationException();
+		}
+
+		void fail(Throwable e) {
+			setException(e);
+			removeCancelListener();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.cloudsmith.graph.ICancel#isCanceled()
+		 */
+		@Override
+		public boolean isCanceled() {
+			return isCancelled() || cancel.isCanceled();
+		}
+
+		private void removeCancelListener() {
+			if(cancel instanceof DeadlineCancel)
+				((DeadlineCancel) cancel).removeCancelListener(cancelListener);
+		}
+
+		protected abstract T render(ICancel cancel);
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			// renders are scheduled as the tenant that requested them
+			String previousTenant = GraphvizRenderScheduler.setTenant(tenant);
+			try {
+				if(!isCanceled())
+					set(render(this));
+				else
+					cancel(false);
+			}
+			catch(CancellationException e) {
+				cancel(false);
+			}
+			catch(Throwable e) {
+				setException(e);
+			}
+			finally {
+				GraphvizRenderScheduler.setTenant(previousTenant);
+				removeCancelListener();
+			}
+		}
+	}
+
+	private final IGraphviz graphviz;
+
+	private final IGraphvizOptions options;
+
+	@Inject
+	public AsyncGraphviz(IGraphviz graphviz, IGraphvizOptions options) {
+		this.graphviz = graphviz;
+		this.options = options;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IAsyncGraphviz#getUsemap(org.cloudsmith.graph.ICancel,
+	 * org.cloudsmith.graph.graphviz.GraphvizLayout, org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS,
+	 * org.cloudsmith.graph.graphcss.GraphCSS[])
+	 */
+	@Override
+	public ListenableFuture<String> getUsemap(ICancel cancel, final GraphvizLayout layout, final IRootGraph graph,
+			final GraphCSS defaultStyle, final GraphCSS... styleSheets) {
+		return submit(new Render<String>(cancel) {
+			@Override
+			protected String render(ICancel cancel) {
+				return graphviz.getUsemap(cancel, layout, graph, defaultStyle, styleSheets);
+			}
+		});
+	}
+
+	private <T> ListenableFuture<T> submit(Render<T> render) {
+		try {
+			options.getRenderExecutor().execute(render);
+		}
+		catch(RejectedExecutionException e) {
+			render.fail(e);
+		}
+		return render;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IAsyncGraphviz#toFormats(org.cloudsmith.graph.ICancel, java.util.Set,
+	 * org.cloudsmith.graph.graphviz.GraphvizLayout, org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS,
+	 * org.cloudsmith.graph.graphcss.GraphCSS[])
+	 */
+	@Override
+	public ListenableFuture<Map<GraphvizFormat, byte[]>> toFormats(ICancel cancel, final Set<GraphvizFormat> formats,
+			final GraphvizLayout layout, final IRootGraph graph, final GraphCSS defaultStyle,
+			final GraphCSS... styleSheets) {
+		return submit(new Render<Map<GraphvizFormat, byte[]>>(cancel) {
+			@Override
+			protected Map<GraphvizFormat, byte[]> render(ICancel cancel) {
+				return graphviz.toFormats(cancel, formats, layout, graph, defaultStyle, styleSheets);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IAsyncGraphviz#toJPG(org.cloudsmith.graph.ICancel,
+	 * org.cloudsmith.graph.graphviz.GraphvizLayout, org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS,
+	 * org.cloudsmith.graph.graphcss.GraphCSS[])
+	 */
+	@Override
+	public ListenableFuture<byte[]> toJPG(ICancel cancel, final GraphvizLayout layout, final IRootGraph graph,
+			final GraphCSS defaultStyleSheet, final GraphCSS... styleSheets) {
+		return submit(new Render<byte[]>(cancel) {
+			@Override
+			protected byte[] render(ICancel cancel) {
+				return graphviz.toJPG(cancel, layout, graph, defaultStyleSheet, styleSheets);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IAsyncGraphviz#toPNG(org.cloudsmith.graph.ICancel,
+	 * org.cloudsmith.graph.graphviz.GraphvizLayout, org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS,
+	 * org.cloudsmith.graph.graphcss.GraphCSS[])
+	 */
+	@Override
+	public ListenableFuture<byte[]> toPNG(ICancel cancel, final GraphvizLayout layout, final IRootGraph graph,
+			final GraphCSS defaultStyle, final GraphCSS... styleSheets) {
+		return submit(new Render<byte[]>(cancel) {
+			@Override
+			protected byte[] render(ICancel cancel) {
+				return graphviz.toPNG(cancel, layout, graph, defaultStyle, styleSheets);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IAsyncGraphviz#toSVG(org.cloudsmith.graph.ICancel,
+	 * org.cloudsmith.graph.graphviz.GraphvizLayout, org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS,
+	 * org.cloudsmith.graph.graphcss.GraphCSS[])
+	 */
+	@Override
+	public ListenableFuture<String> toSVG(ICancel cancel, final GraphvizLayout layout, final IRootGraph graph,
+			final GraphCSS defaultStyle, final GraphCSS... styleSheets) {
+		return submit(new Render<String>(cancel) {
+			@Override
+			protected String render(ICancel cancel) {
+				return graphviz.toSVG(cancel, layout, graph, defaultStyle, styleSheets);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IAsyncGraphviz#writeGraphvizOutput(org.cloudsmith.graph.ICancel,
+	 * java.io.OutputStream, org.cloudsmith.graph.graphviz.GraphvizFormat, org.cloudsmith.graph.graphviz.GraphvizRenderer,
+	 * org.cloudsmith.graph.graphviz.GraphvizLayout, java.io.InputStream)
+	 */
+	@Override
+	public ListenableFuture<OutputStream> writeGraphvizOutput(ICancel cancel, final OutputStream output,
+			final GraphvizFormat format, final GraphvizRenderer renderer, final GraphvizLayout layout,
+			final InputStream dotData) {
+		return submit(new Render<OutputStream>(cancel) {
+			@Override
+			protected OutputStream render(ICancel cancel) {
+				return graphviz.writeGraphvizOutput(cancel, output, format, renderer, layout, dotData);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IAsyncGraphviz#writePNG(org.cloudsmith.graph.ICancel, java.io.OutputStream,
+	 * org.cloudsmith.graph.graphviz.GraphvizLayout, org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS,
+	 * org.cloudsmith.graph.graphcss.GraphCSS[])
+	 */
+	@Override
+	public ListenableFuture<Boolean> writePNG(ICancel cancel, final OutputStream output, final GraphvizLayout layout,
+			final IRootGraph graph, final GraphCSS defaultStyle, final GraphCSS... styleSheets) {
+		return submit(new Render<Boolean>(cancel) {
+			@Override
+			protected Boolean render(ICancel cancel) {
+				return graphviz.writePNG(cancel, output, layout, graph, defaultStyle, styleSheets);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IAsyncGraphviz#writeSVG(org.cloudsmith.graph.ICancel, java.io.OutputStream,
+	 * org.cloudsmith.graph.graphviz.GraphvizLayout, org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS,
+	 * org.cloudsmith.graph.graphcss.GraphCSS[])
+	 */
+	@Override
+	public ListenableFuture<Boolean> writeSVG(ICancel cancel, final OutputStream output, final GraphvizLayout layout,
+			final IRootGraph graph, final GraphCSS defaultStyle, final GraphCSS... styleSheets) {
+		return submit(new Render<Boolean>(cancel) {
+			@Override
+			protected Boolean render(ICancel cancel) {
+				return graphviz.writeSVG(cancel, output, layout, graph, defaultStyle, styleSheets);
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IAsyncGraphviz#writeSVGZ(org.cloudsmith.graph.ICancel, java.io.OutputStream,
+	 * org.cloudsmith.graph.graphviz.GraphvizLayout, org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS,
+	 * org.cloudsmith.graph.graphcss.GraphCSS[])
+	 */
+	@Override
+	public ListenableFuture<Boolean> writeSVGZ(ICancel cancel, final OutputStream output, final GraphvizLayout layout,
+			final IRootGraph graph, final GraphCSS defaultStyle, final GraphCSS... styleSheets) {
+		return submit(new Render<Boolean>(cancel) {
+			@Override
+			protected Boolean render(ICancel cancel) {
+				return graphviz.writeSVGZ(cancel, output, layout, graph, defaultStyle, styleSheets);
+			}
+		});
+	}
+}
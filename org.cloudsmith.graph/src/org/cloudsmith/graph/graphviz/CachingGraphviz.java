@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.cloudsmith.graph.ICancel;
+import org.cloudsmith.graph.dot.DotRenderer;
+
+import com.google.common.collect.Maps;
+import com.google.inject.BindingAnnotation;
+import com.google.inject.Inject;
+
+/**
+ * A graphviz runner that returns cached output when the same dot text has already been rendered with the same
+ * layout, format and renderer. Graphs that are not in the {@link GraphvizResultCache}, or in the
+ * {@link GraphvizDiskCache}, are rendered by the graphviz runner bound with the {@link Delegate} annotation.
+ * 
+ */
+public class CachingGraphviz extends AbstractGraphviz {
+	/**
+	 * Annotation to use for the graphviz runner that renders results that are not cached.
+	 * 
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({ ElementType.FIELD, ElementType.PARAMETER })
+	@BindingAnnotation
+	public @interface Delegate {
+	}
+
+	private final IGraphviz delegate;
+
+	private final GraphvizResultCache cache;
+
+	private final GraphvizDiskCache diskCache;
+
+	@Inject
+	public CachingGraphviz(IGraphvizConfig config, IGraphvizOptions options, DotRenderer dotRenderer,
+			@Delegate IGraphviz delegate, GraphvizResultCache cache, GraphvizDiskCache diskCache) {
+		super(config, options, dotRenderer);
+		this.delegate = delegate;
+		this.cache = cache;
+		this.diskCache = diskCache;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IGraphviz#writeGraphvizOutputs(org.cloudsmith.graph.ICancel, java.util.Map,
+	 * org.cloudsmith.graph.graphviz.GraphvizRenderer, org.cloudsmith.graph.graphviz.GraphvizLayout, java.io.InputStream)
+	 */
+	@Override
+	public boolean writeGraphvizOutputs(ICancel cancel, Map<GraphvizFormat, ? extends OutputStream> outputs,
+			GraphvizRenderer renderer, GraphvizLayout layout, InputStream dotData) {
+		try {
+			ByteArrayOutputStream dotBuffer = new ByteArrayOutputStream();
+			byte[] buf = new byte[1024];
+			int length = 0;
+			while((length = dotData.read(buf)) != -1)
+				dotBuffer.write(buf, 0, length);
+			byte[] dotText = dotBuffer.toByteArray();
+			byte[] digest = GraphvizResultCache.canonicalDigest(dotText);
+			GraphvizRenderer commandRenderer = getCommandRenderer(renderer);
+
+			// results are cached per format, so that a format rendered together with others is found
+			// when rendered by itself (and vice versa)
+			Map<GraphvizFormat, GraphvizResultCache.Key> missingKeys = Maps.newEnumMap(GraphvizFormat.class);
+			Map<GraphvizFormat, ByteArrayOutputStream> missing = Maps.newEnumMap(GraphvizFormat.class);
+			for(Map.Entry<GraphvizFormat, ? extends OutputStream> output : outputs.entrySet()) {
+				GraphvizResultCache.Key key = new GraphvizResultCache.Key(digest, new GraphvizProcess.Key(
+					layout, output.getKey(), commandRenderer));
+				byte[] result = cache.get(key);
+				if(result != null)
+					output.getValue().write(result);
+				else if(!diskCache.transferTo(key, output.getValue())) {
+					missingKeys.put(output.getKey(), key);
+					missing.put(output.getKey(), new ByteArrayOutputStream());
+				}
+			}
+			if(missing.isEmpty())
+				return true;
+			if(!delegate.writeGraphvizOutputs(
+				cancel, missing, renderer, layout, new ByteArrayInputStream(dotText)))
+				return false;
+			for(Map.Entry<GraphvizFormat, ByteArrayOutputStream> rendered : missing.entrySet()) {
+				GraphvizResultCache.Key key = missingKeys.get(rendered.getKey());
+				byte[] result = rendered.getValue().toByteArray();
+				cache.put(key, result);
+				diskCache.put(key, result);
+				outputs.get(rendered.getKey()).write(result);
+			}
+			return true;
+		}
+		catch(IOException e) {
+			Logger log = Logger.getLogger(Graphviz.class);
+			log.error("error copying graphviz output", e);
+			return false;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.cloudsmith.graph.dot.CompactDotIds;
+import org.cloudsmith.graph.utils.RuleFilteredOutputStream;
+
+/**
+ * An SVG or cmapx stream that restores the output graphviz produced from compact dot text to what it
+ * would have produced from the real names and id values (see {@link CompactDotIds}).
+ * <ul>
+ * <li>Replaces short names in &lt;title&gt; elements and in comments with the real names</li>
+ * <li>Replaces short values in id="..." with the real values</li>
+ * <li>Replaces title="..." and alt="..." values that are a short name with the real name</li>
+ * </ul>
+ * 
+ * The stream must be finished (see {@link #finish()}) when all output has been written.
+ */
+public class CompactIdRestoringOutputStream extends RuleFilteredOutputStream {
+	/**
+	 * Rule that is triggered by a pattern, and that rewrites the text after the pattern up to (but not
+	 * including) a terminating byte.
+	 * 
+	 */
+	private abstract class RewriteRule extends RuleFilteredOutputStream.PatternRule {
+		private final byte terminator;
+
+		public RewriteRule(String pattern, char terminator) {
+			super(pattern.getBytes());
+			this.terminator = (byte) terminator;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.cloudsmith.graph.utils.RuleFilteredOutputStream.PatternRule#performAction()
+		 */
+		@Override
+		protected void performAction() throws IOException {
+			int endIdx = buffer.indexOf(terminator, pattern.length);
+			if(endIdx < 0) {
+				setPendingRule(this);
+				return; // not enough data
+			}
+			setPendingRule(null);
+			buffer.writeFlush(pattern.length, out);
+			String text = new String(buffer.remove(endIdx - pattern.length), "UTF8");
+			// the terminator is left in the buffer, and is output as any other data
+			out.write(rewrite(text).getBytes("UTF8"));
+		}
+
+		protected abstract String rewrite(String text);
+	}
+
+	private final CompactDotIds compactIds;
+
+	/**
+	 * @param out
+	 * @param compactIds
+	 *            the names and values used in the dot text
+	 */
+	public CompactIdRestoringOutputStream(OutputStream out, CompactDotIds compactIds) {
+		super(out);
+		this.compactIds = compactIds;
+
+		// titles and comments of nodes, edges and clusters contain their names (edges as "tail->head")
+		RewriteRule titleRule = new RewriteRule("<title>", '<') {
+			@Override
+			protected String rewrite(String text) {
+				return CompactIdRestoringOutputStream.this.compactIds.restoreNames(text);
+			}
+		};
+		RewriteRule commentRule = new RewriteRule("<!--", '>') {
+			@Override
+			protected String rewrite(String text) {
+				return CompactIdRestoringOutputStream.this.compactIds.restoreNames(text);
+			}
+		};
+
+		// id attributes, possibly with a prefix or suffix added by graphviz
+		RewriteRule idRule = new RewriteRule("id=\"", '"') {
+			@Override
+			protected String rewrite(String text) {
+				return CompactIdRestoringOutputStream.this.compactIds.restoreValues(text);
+			}
+		};
+
+		// titles and alternative texts in cmapx areas that default to the name
+		RewriteRule titleAttributeRule = new RewriteRule("title=\"", '"') {
+			@Override
+			protected String rewrite(String text) {
+				return restoreName(text);
+			}
+		};
+		RewriteRule altAttributeRule = new RewriteRule("alt=\"", '"') {
+			@Override
+			protected String rewrite(String text) {
+				return restoreName(text);
+			}
+		};
+
+		setRules(new PatternRule[] { //
+		titleRule, //
+				commentRule, //
+				idRule, //
+				titleAttributeRule, //
+				altAttributeRule //
+		});
+	}
+
+	/**
+	 * Returns the escaped real name if the given text is a short name, and otherwise the text.
+	 */
+	private String restoreName(String text) {
+		String original = compactIds.getOriginalName(text);
+		return original == null
+				? text
+				: CompactDotIds.xmlEscape(original);
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+
+import com.google.inject.Singleton;
+
+/**
+ * The default options for running graphviz. Subclasses override the options that should have other
+ * values.
+ * 
+ */
+@Singleton
+public class DefaultGraphvizOptions implements IGraphvizOptions {
+	private PumpExecutor pumpExecutor;
+
+	private ExecutorService renderExecutor;
+
+	/**
+	 * Creates the executor returned from {@link #getPumpExecutor()}.
+	 * 
+	 * @return
+	 */
+	protected PumpExecutor createPumpExecutor() {
+		return isUseVirtualThreads()
+				? PumpExecutor.virtual(getMaxPumpThreads())
+				: PumpExecutor.bounded(getMaxPumpThreads());
+	}
+
+	/**
+	 * Creates the executor returned from {@link #getRenderExecutor()}.
+	 * 
+	 * @return
+	 */
+	protected ExecutorService createRenderExecutor() {
+		return isUseVirtualThreads()
+				? PumpExecutor.virtual(getMaxRenderThreads(), "graphviz render")
+				: PumpExecutor.bounded(getMaxRenderThreads(), "graphviz render");
+	}
+
+	/**
+	 * Returns null, graphviz output is not cached on disk.
+	 */
+	@Override
+	public File getDiskCacheDirectory() {
+		return null;
+	}
+
+	/**
+	 * Returns 256MB.
+	 */
+	@Override
+	public long getDiskCacheSize() {
+		return 256 * 1024 * 1024;
+	}
+
+	/**
+	 * Returns 0, layouts are not cached.
+	 */
+	@Override
+	public long getLayoutCacheSize() {
+		return 0;
+	}
+
+	/**
+	 * Returns 0, renders are not limited. A limit of about the number of available processors keeps the
+	 * throughput up under overload, as graphviz layout is CPU bound.
+	 */
+	@Override
+	public int getMaxConcurrentRenders() {
+		return 0;
+	}
+
+	/**
+	 * Returns the max number of pump threads. This implementation returns 256.
+	 * 
+	 * @return
+	 */
+	public int getMaxPumpThreads() {
+		return 256;
+	}
+
+	/**
+	 * Returns 1000 renders.
+	 */
+	@Override
+	public int getMaxQueuedRenders() {
+		return 1000;
+	}
+
+	/**
+	 * Returns 0, queued renders wait until they are admitted.
+	 */
+	@Override
+	public long getMaxQueueWait() {
+		return 0;
+	}
+
+	/**
+	 * Returns the max number of threads running asynchronous renders. This implementation returns the number
+	 * of available processors, as graphviz layout is CPU bound.
+	 * 
+	 * @return
+	 */
+	public int getMaxRenderThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Returns 100 renders per process.
+	 */
+	@Override
+	public int getMaxRendersPerProcess() {
+		return 100;
+	}
+
+	/**
+	 * Returns 0, a new graphviz process is started for every render.
+	 */
+	@Override
+	public int getProcessPoolSize() {
+		return 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IGraphvizOptions#getPumpExecutor()
+	 */
+	@Override
+	public synchronized PumpExecutor getPumpExecutor() {
+		if(pumpExecutor == null)
+			pumpExecutor = createPumpExecutor();
+		return pumpExecutor;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.cloudsmith.graph.graphviz.IGraphvizOptions#getRenderExecutor()
+	 */
+	@Override
+	public synchronized ExecutorService getRenderExecutor() {
+		if(renderExecutor == null)
+			renderExecutor = createRenderExecutor();
+		return renderExecutor;
+	}
+
+	/**
+	 * Returns 32MB.
+	 */
+	@Override
+	public long getResultCacheSize() {
+		return 32 * 1024 * 1024;
+	}
+
+	/**
+	 * Returns 1, all tenants share renders equally.
+	 */
+	@Override
+	public int getTenantWeight(String tenant) {
+		return 1;
+	}
+
+	/**
+	 * Returns false.
+	 */
+	@Override
+	public boolean isCompactDotIds() {
+		return false;
+	}
+
+	/**
+	 * Returns false.
+	 */
+	@Override
+	public boolean isPipelinedDotGeneration() {
+		return false;
+	}
+
+	/**
+	 * Returns true if the pumps should run in virtual threads when the JVM supports it. This
+	 * implementation returns false.
+	 * 
+	 * @return
+	 */
+	public boolean isUseVirtualThreads() {
+		return false;
+	}
+
+}
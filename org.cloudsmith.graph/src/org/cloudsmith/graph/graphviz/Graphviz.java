@@ -11,20 +11,18 @@
  */
 package org.cloudsmith.graph.graphviz;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Collections;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
+import org.cloudsmith.graph.DeadlineCancel;
 import org.cloudsmith.graph.ICancel;
-import org.cloudsmith.graph.IRootGraph;
 import org.cloudsmith.graph.dot.DotRenderer;
-import org.cloudsmith.graph.graphcss.GraphCSS;
-import org.cloudsmith.graph.utils.ByteArrayOutputStream2;
 
 import com.google.inject.Inject;
 
@@ -43,339 +41,173 @@ import com.google.inject.Inject;
  * TODO: ideally, the set of available types:renderers should be discovered at runtime from
  * the environment, and then bound in the runtime guice module.
  * 
+ * When {@link IGraphvizOptions#getLayoutCacheSize()} is not 0, a render is done in two phases. The layout
+ * is run to produce a positioned graph which is kept in the {@link GraphvizLayoutCache}, and the
+ * positioned graph is then rendered with "neato -n2". Rendering the same dot text to another format
+ * only runs the second phase.
+ * 
+ * A runner keeps no state for a render outside of the call, and one instance can serve renders from several
+ * threads at the same time.
+ * 
  */
-public class Graphviz implements IGraphviz {
-	private IGraphvizConfig config;
+public class Graphviz extends AbstractGraphviz {
+	private final GraphvizProcessPool processPool;
 
-	private DotRenderer dotRenderer;
+	private final GraphvizLayoutCache layoutCache;
 
-	@Inject
-	public Graphviz(IGraphvizConfig config, DotRenderer dotRenderer) {
-		this.config = config;
-		this.dotRenderer = dotRenderer;
-	}
+	private final GraphvizRenderScheduler scheduler;
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getDotText(org.cloudsmith.graph.IGraph, org.cloudsmith.graph.impl.style.RuleSet)
-	 */
-	@Override
-	public String getDotText(final ICancel cancel, IRootGraph graph, GraphCSS defaultCSS, GraphCSS... gCSS) {
-		ByteArrayOutputStream bufferStream = new ByteArrayOutputStream();
-		dotRenderer.write(cancel, bufferStream, graph, defaultCSS, gCSS);
-		return bufferStream.toString();
-	}
-
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Creates a runner with the default options, and a process pool, layout cache and render scheduler of
+	 * its own.
 	 * 
-	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getUsemap(org.cloudsmith.graph.IGraph, org.cloudsmith.graph.impl.style.RuleSet,
-	 * org.cloudsmith.graph.impl.dot.Graphviz.Layout)
+	 * @param config
+	 * @param dotRenderer
 	 */
-	@Override
-	public String getUsemap(final ICancel cancel, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyle,
-			GraphCSS... styleSheets) {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		if(writeGraphvizOutput(cancel, stream, GraphvizFormat.cmapx, null, layout, graph, defaultStyle, styleSheets) == null)
-			return "";
-		return stream.toString();
+	public Graphviz(IGraphvizConfig config, DotRenderer dotRenderer) {
+		this(config, new DefaultGraphvizOptions(), dotRenderer);
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Creates a runner with a process pool, layout cache and render scheduler of its own.
 	 * 
-	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getJpgImage(org.cloudsmith.graph.IGraph, org.cloudsmith.graph.impl.style.RuleSet,
-	 * org.cloudsmith.graph.impl.dot.Graphviz.Layout)
+	 * @param config
+	 * @param options
+	 * @param dotRenderer
 	 */
-	@Override
-	public byte[] toJPG(final ICancel cancel, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyleSheet,
-			GraphCSS... styleSheets) {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		if(writeGraphvizOutput(
-			cancel, stream, GraphvizFormat.jpg, config.getRenderer(), layout, graph, defaultStyleSheet, styleSheets) == null)
-			return null;
-		byte[] ret = stream.toByteArray();
-		return (ret == null || ret.length < 1)
-				? null
-				: ret;
+	public Graphviz(IGraphvizConfig config, IGraphvizOptions options, DotRenderer dotRenderer) {
+		this(
+			config, options, dotRenderer, new GraphvizProcessPool(options), new GraphvizLayoutCache(options),
+			new GraphvizRenderScheduler(options));
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getPngImage(org.cloudsmith.graph.IGraph, org.cloudsmith.graph.impl.style.RuleSet,
-	 * org.cloudsmith.graph.impl.dot.Graphviz.Layout)
-	 */
-	@Override
-	public byte[] toPNG(final ICancel cancel, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyle,
-			GraphCSS... styleSheets) {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		if(writeGraphvizOutput(
-			cancel, stream, GraphvizFormat.png, config.getRenderer(), layout, graph, defaultStyle, styleSheets) == null)
-			return null;
-		byte[] ret = stream.toByteArray();
-		return (ret == null || ret.length < 1)
-				? null
-				: ret;
+	@Inject
+	public Graphviz(IGraphvizConfig config, IGraphvizOptions options, DotRenderer dotRenderer,
+			GraphvizProcessPool processPool, GraphvizLayoutCache layoutCache, GraphvizRenderScheduler scheduler) {
+		super(config, options, dotRenderer);
+		this.processPool = processPool;
+		this.layoutCache = layoutCache;
+		this.scheduler = scheduler;
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Returns the positioned graph for the given dot text from the layout cache, or runs the layout to
+	 * produce it.
 	 * 
-	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getSvgImage(org.cloudsmith.graph.IGraph, org.cloudsmith.graph.impl.style.RuleSet,
-	 * org.cloudsmith.graph.impl.dot.Graphviz.Layout)
+	 * @param cancel
+	 * @param layout
+	 * @param dotData
+	 * @return the positioned graph, or null if there was an error
 	 */
-	@Override
-	public String toSVG(final ICancel cancel, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyle,
-			GraphCSS... styleSheets) {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		if(writeGraphvizOutput(
-			cancel, stream, GraphvizFormat.svg, config.getRenderer(), layout, graph, defaultStyle, styleSheets) == null)
-			return null;
-		return stream.toString();
-	}
-
-	@Override
-	public OutputStream writeGraphvizOutput(final ICancel cancel, final OutputStream output, GraphvizFormat format,
-			GraphvizRenderer renderer, //
-			GraphvizLayout layout, //
-			final InputStream dotData
-	// final byte[] dotData //
-	) {
-		Process p;
-		// graphviz -T format:renderer is something like -T png:cairo
-		// Construct renderer string (':renderer' after the format) if renderer is specified - generally
-		// a bad idea as you need to know what renderers are available.
-		//
-		String r = (renderer == null || renderer == GraphvizRenderer.standard)
-				? ""
-				: ":" + config.getRenderer().toString();
+	private InputStream layout(ICancel cancel, GraphvizLayout layout, InputStream dotData) {
+		ByteArrayOutputStream dotBuffer = new ByteArrayOutputStream();
 		try {
-
-			p = Runtime.getRuntime().exec(layout.toString() + " -T" + format.toString() + r);
+			byte[] buf = new byte[1024];
+			int length = 0;
+			while((length = dotData.read(buf)) != -1)
+				dotBuffer.write(buf, 0, length);
 		}
-		catch(IOException e1) {
+		catch(IOException e) {
 			Logger log = Logger.getLogger(Graphviz.class);
-			log.error("Could not execute " + layout.toString() + " -T" + format.toString() + r);
-			// TODO: need to close the process streams or they may remain open
+			log.error("error reading dot text", e);
 			return null;
 		}
-		final OutputStream out = new BufferedOutputStream(p.getOutputStream());
-		final InputStream in = new BufferedInputStream(p.getInputStream());
-		final InputStream err = new BufferedInputStream(p.getErrorStream());
-
-		// use the stream connected to the command's stdin
-		/*
-		 * A thread is needed when producing output to graphviz. If there is something
-		 * wrong graphviz will not read the input and the writer will block.
-		 */
-		Thread writer = new Thread() {
-			@Override
-			public void run() {
-				// print the dot output on the stream
-				try {
-					byte[] buf = new byte[1024];
-					int length = 0;
-					while((length = dotData.read(buf)) != -1)
-						out.write(buf, 0, length); // dotOutput.toByteArray());
-
-					// close the stream, or graphviz will read for ever
-					out.close();
-				}
-				catch(IOException e) {
-					Logger log = Logger.getLogger(Graphviz.class);
-					log.error("error closing output stream to graphviz ", e);
-				}
-			}
-		};
-
-		writer.start();
-
-		class ReaderThread extends Thread {
-			public boolean done = false;
-
-			@Override
-			public void run() {
-				byte[] buffer = new byte[1024];
-
-				try {
-					int read = in.read(buffer);
-					while(read != -1) {
-						try {
-							output.write(buffer, 0, read);
-						}
-						catch(Throwable e) {
-							Logger log = Logger.getLogger(Graphviz.class);
-							log.error("Exception while writing result read from graphviz", e);
-						}
-						cancel.assertContinue();
-						read = in.read(buffer);
-					}
-					// close the input - we are finished
-					in.close();
-					// flag that we are done reading in a normal way.
-					done = true;
-				}
-				catch(IOException e) {
-					Logger log = Logger.getLogger(Graphviz.class);
-					log.error("error reading output from graphviz ", e);
-				}
-			}
+		byte[] dotText = dotBuffer.toByteArray();
+		GraphvizProcess.Key command = new GraphvizProcess.Key(layout, GraphvizFormat.xdot, null);
+		GraphvizResultCache.Key key = new GraphvizResultCache.Key(GraphvizResultCache.canonicalDigest(dotText), command);
+		byte[] positioned = layoutCache.get(key);
+		if(positioned == null) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			if(!render(
+				cancel, command, Collections.singletonMap(GraphvizFormat.xdot, output), new ByteArrayInputStream(dotText)))
+				return null;
+			positioned = output.toByteArray();
+			layoutCache.put(key, positioned);
 		}
-		;
-		ReaderThread reader = new ReaderThread();
-		// start reading the output from graphviz
-		reader.start();
-
-		final ByteArrayOutputStream eout = new ByteArrayOutputStream();
-		Thread errorHandler = new Thread() {
-			@Override
-			public void run() {
-				byte[] buffer = new byte[512];
-				try {
-					int read = err.read(buffer);
-					while(read != -1) {
-						eout.write(buffer, 0, read);
-						read = err.read(buffer);
-					}
+		return new ByteArrayInputStream(positioned);
+	}
 
-					Logger log = Logger.getLogger(Graphviz.class);
-					// if there was no output this could be because EOF was reached due to normal end.
-					String tmp = eout.toString();
-					if(tmp != null && tmp.length() > 0)
-						log.error("Graphviz error: " + tmp);
-				}
-				catch(IOException e) {
-					// an IO Exception here is the expected outcome
-					// we are reading stderr, and there should be no output to read
-					// so this thread should (in the normal case) just hang on the read,
-					// and then be interrupted when the stderr is closed as part of normal
-					// processing.
-				}
-			}
-		};
-		errorHandler.start();
+	/**
+	 * Runs the given command with a process from the pool, when admitted by the render scheduler.
+	 * 
+	 * @param cancel
+	 * @param key
+	 * @param outputs
+	 * @param dotData
+	 * @return false if there where errors, true on success
+	 * @throws GraphvizRejectedException
+	 *             if the render was rejected by the render scheduler
+	 */
+	private boolean render(ICancel cancel, GraphvizProcess.Key key, Map<GraphvizFormat, ? extends OutputStream> outputs,
+			InputStream dotData) {
+		GraphvizFormat[] formats = key.getFormats();
+		OutputStream[] streams = new OutputStream[formats.length];
+		for(int i = 0; i < formats.length; i++)
+			streams[i] = outputs.get(formats[i]);
 		try {
-			cancel.assertContinue();
-			// wait for process to finish
-			p.waitFor();
-			// wait until everything has been read from process
-			cancel.assertContinue();
-			reader.join();
-
-			cancel.assertContinue();
-
-			// TODO: it may be needed to check the error output, if it is an error or a warning
-			// warnings could be ignored - now they also terminate the output if the warning occurs before
-			// the writer is done.
-			if(p.exitValue() != 0) {
-				throw new GraphvizException(eout.toString());
-			}
-
+			scheduler.acquire(cancel);
 		}
 		catch(InterruptedException e) {
 			Logger log = Logger.getLogger(Graphviz.class);
-			log.error("Graphviz reading interupted");
-			return null;
+			log.error("Graphviz render interupted while queued");
+			return false;
 		}
-		finally {
-			// close ALL input
-			// This terminates the reader and writer as the pipe is forcefully
-			// closed on them - errors may occur after input has already been
-			// closed or after output has been closed - make sure all three
-			// are closed.
+		try {
+			GraphvizProcess p;
 			try {
-				in.close();
+				p = processPool.acquire(key);
 			}
-			catch(IOException ioe) {
+			catch(IOException e1) {
+				Logger log = Logger.getLogger(Graphviz.class);
+				log.error("Could not execute " + key);
+				return false;
 			}
+			boolean done = false;
 			try {
-				out.close();
-			}
-			catch(IOException ioe) {
+				done = p.render(cancel, dotData, streams);
 			}
-			try {
-				err.close();
+			catch(InterruptedException e) {
+				Logger log = Logger.getLogger(Graphviz.class);
+				log.error("Graphviz reading interupted");
+				return false;
 			}
-			catch(IOException ioe) {
+			finally {
+				// a process that did not complete the render is terminated by the pool
+				processPool.release(p);
 			}
-
+			return done;
+		}
+		finally {
+			scheduler.release();
 		}
-		if(!reader.done)
-			return null;
-		return output;
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getGraphvizOutput(java.io.OutputStream, org.cloudsmith.graph.impl.dot.Graphviz.Format,
-	 * org.cloudsmith.graph.impl.dot.Graphviz.Renderer, org.cloudsmith.graph.IGraph, org.cloudsmith.graph.impl.style.RuleSet,
-	 * org.cloudsmith.graph.impl.dot.Graphviz.Layout)
-	 */
-	@Override
-	public OutputStream writeGraphvizOutput(ICancel cancel, OutputStream output, GraphvizFormat format,
-			GraphvizRenderer renderer, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyleSheet,
-			GraphCSS... styleSheets) {
-		// Produce the dot output to a buffer (at one point we could not run this in a thread because JBoss Seam
-		// got confused over context - maybe possible to revisit
-		//
-		final ByteArrayOutputStream2 dotOutput = new ByteArrayOutputStream2();
-		dotRenderer.write(cancel, dotOutput, graph, defaultStyleSheet, styleSheets);
-		return writeGraphvizOutput(cancel, output, format, renderer, layout, dotOutput.toInputStream(false));
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.cloudsmith.graph.graphviz.IGraphviz#writePNG(java.io.OutputStream, org.cloudsmith.graph.graphviz.GraphvizLayout,
-	 * org.cloudsmith.graph.IRootGraph, org.cloudsmith.graph.graphcss.GraphCSS, org.cloudsmith.graph.graphcss.GraphCSS[])
-	 */
-	@Override
-	public boolean writePNG(ICancel cancel, OutputStream output, GraphvizLayout layout, IRootGraph graph,
-			GraphCSS defaultStyle, GraphCSS... styleSheets) {
-		if(writeGraphvizOutput(
-			cancel, output, GraphvizFormat.png, config.getRenderer(), layout, graph, defaultStyle, styleSheets) == null)
-			return false;
-		return true;
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getSvgImage(java.io.OutputStream, org.cloudsmith.graph.IGraph,
-	 * org.cloudsmith.graph.impl.style.RuleSet, org.cloudsmith.graph.impl.dot.Graphviz.Layout)
-	 */
-	@Override
-	public boolean writeSVG(ICancel cancel, OutputStream output, GraphvizLayout layout, IRootGraph graph,
-			GraphCSS defaultStyle, GraphCSS... styleSheets) {
-		if(writeGraphvizOutput(
-			cancel, output, GraphvizFormat.svg, config.getRenderer(), layout, graph, defaultStyle, styleSheets) == null)
-			return false;
-		return true;
 	}
 
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see org.cloudsmith.graph.impl.dot.IGraphviz#getSvgzImage(java.io.OutputStream, org.cloudsmith.graph.IGraph,
-	 * org.cloudsmith.graph.impl.style.RuleSet, org.cloudsmith.graph.impl.dot.Graphviz.Layout)
+	 * @see org.cloudsmith.graph.graphviz.IGraphviz#writeGraphvizOutputs(org.cloudsmith.graph.ICancel, java.util.Map,
+	 * org.cloudsmith.graph.graphviz.GraphvizRenderer, org.cloudsmith.graph.graphviz.GraphvizLayout, java.io.InputStream)
 	 */
 	@Override
-	public boolean writeSVGZ(ICancel cancel, OutputStream output, GraphvizLayout layout, IRootGraph graph,
-			GraphCSS defaultStyle, GraphCSS... styleSheets) {
+	public boolean writeGraphvizOutputs(ICancel cancel, Map<GraphvizFormat, ? extends OutputStream> outputs,
+			GraphvizRenderer renderer, //
+			GraphvizLayout layout, //
+			InputStream dotData
+	// final byte[] dotData //
+	) {
 		try {
-			GZIPOutputStream stream = new GZIPOutputStream(output);
-			if(writeGraphvizOutput(
-				cancel, stream, GraphvizFormat.svg, config.getRenderer(), layout, graph, defaultStyle, styleSheets) == null)
-				return false;
-			stream.finish();
-			stream.flush();
+			// all formats are produced from the same layout by one command
+			GraphvizRenderer r = getCommandRenderer(renderer);
+			if(options.getLayoutCacheSize() > 0) {
+				InputStream positioned = layout(cancel, layout, dotData);
+				if(positioned == null)
+					return false;
+				return render(cancel, GraphvizProcess.Key.positioned(outputs.keySet(), r), outputs, positioned);
+			}
+			return render(cancel, new GraphvizProcess.Key(layout, outputs.keySet(), r), outputs, dotData);
 		}
-		catch(IOException e) {
-			return false;
+		finally {
+			DeadlineCancel.complete(cancel);
 		}
-		return true;
 	}
 }
@@ -0,0 +1,687 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+import org.cloudsmith.graph.utils.ChannelOutputStream;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * A persistent cache of graphviz output in {@link IGraphvizOptions#getDiskCacheDirectory()}. The cache is
+ * not used if no directory is configured.
+ * 
+ * Output is appended to a data file. A memory mapped hash index maps the key of a result to its record
+ * in the data file. The record of a hit is copied to the output with {@link FileChannel#transferTo} after
+ * the lock of the cache has been released, so that a slow output does not hold up other users of the
+ * cache (the copy is zero-copy when the output is a file). When the data file would grow beyond
+ * {@link IGraphvizOptions#getDiskCacheSize()}, the most recently used results are copied to a new
+ * generation of files and the old generation is dropped. A dropped data file is closed and deleted when no
+ * hit is being copied from it.
+ * 
+ * The files of the current generation are named by the "current" file, which is replaced by renaming
+ * when compaction is complete. A crash during compaction thus leaves the previous generation in use,
+ * and files from other generations are removed when the cache is opened. Records are forced to disk before
+ * they are entered in the index. An index entry is only used if the key and lengths in the record it refers
+ * to match the entry, and entries that do not match are dropped when the cache is opened.
+ * 
+ */
+@Singleton
+public class GraphvizDiskCache {
+	private static final class Slot {
+		long hash;
+
+		long recordOffset;
+
+		int keyLength;
+
+		int dataLength;
+
+		long lastUsed;
+	}
+
+	private static final int INDEX_MAGIC = 0x47564331; // "GVC1"
+
+	private static final int INDEX_HEADER_SIZE = 16;
+
+	// hash, record offset, key length, data length, last used
+	private static final int SLOT_SIZE = 32;
+
+	private static final String CURRENT = "current";
+
+	private final IGraphvizOptions options;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private boolean opened = false;
+
+	private File directory;
+
+	private long generation;
+
+	private RandomAccessFile dataFile;
+
+	private FileChannel data;
+
+	private RandomAccessFile indexFile;
+
+	private MappedByteBuffer index;
+
+	private int slotCount;
+
+	private int entryCount;
+
+	private long useCounter;
+
+	private long hitCount = 0;
+
+	private long missCount = 0;
+
+	private long compactionCount = 0;
+
+	/**
+	 * The number of hits being copied outside the lock, guarded by this.
+	 */
+	private int transferCount = 0;
+
+	/**
+	 * Dropped data files that are closed (and deleted, if the file is known) when no hit is being copied,
+	 * guarded by this.
+	 */
+	private final List<RandomAccessFile> retiredFiles = Lists.newArrayList();
+
+	private final List<File> retiredPaths = Lists.newArrayList();
+
+	@Inject
+	public GraphvizDiskCache(IGraphvizOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Closes the files of the cache. The cache is reopened if it is used again.
+	 */
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			closeFiles();
+			opened = false;
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void closeFiles() {
+		closeFiles(null);
+	}
+
+	/**
+	 * Closes the files of the cache.
+	 * 
+	 * @param dataPath
+	 *            the data file to delete once it has been closed, or null
+	 */
+	private void closeFiles(File dataPath) {
+		index = null;
+		if(dataFile != null)
+			retire(dataFile, dataPath);
+		try {
+			if(indexFile != null)
+				indexFile.close();
+		}
+		catch(IOException e) {
+		}
+		data = null;
+		dataFile = null;
+		indexFile = null;
+	}
+
+	/**
+	 * Copies the most recently used records into a new generation, and makes it current.
+	 */
+	private void compact() throws IOException {
+		List<Slot> live = Lists.newArrayList();
+		for(int i = 0; i < slotCount; i++) {
+			Slot slot = readSlot(i);
+			if(slot.hash != 0)
+				live.add(slot);
+		}
+		Collections.sort(live, new Comparator<Slot>() {
+			@Override
+			public int compare(Slot a, Slot b) {
+				return a.lastUsed > b.lastUsed
+						? -1
+						: a.lastUsed < b.lastUsed
+								? 1
+								: 0;
+			}
+		});
+		long budget = options.getDiskCacheSize() / 2;
+		long newGeneration = generation + 1;
+		RandomAccessFile newDataFile = new RandomAccessFile(dataFile(newGeneration), "rw");
+		RandomAccessFile newIndexFile = new RandomAccessFile(indexFile(newGeneration), "rw");
+		try {
+			FileChannel newData = newDataFile.getChannel();
+			newData.truncate(0);
+			MappedByteBuffer newIndex = createIndex(newIndexFile);
+			long size = 0;
+			int count = 0;
+			for(Slot slot : live) {
+				long recordSize = recordSize(slot);
+				if(size + recordSize > budget || count >= slotCount / 2)
+					break;
+				transfer(data, slot.recordOffset, recordSize, newData);
+				slot.recordOffset = size;
+				insertSlot(newIndex, slot);
+				size += recordSize;
+				count++;
+			}
+			newIndex.putInt(8, count);
+			newData.force(true);
+			newIndex.force();
+
+			// switch generation
+			File tmp = new File(directory, CURRENT + ".tmp");
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(Long.toString(newGeneration).getBytes());
+				out.getFD().sync();
+			}
+			finally {
+				out.close();
+			}
+			File current = new File(directory, CURRENT);
+			if(!tmp.renameTo(current)) {
+				// platforms where rename does not replace
+				current.delete();
+				if(!tmp.renameTo(current))
+					throw new IOException("Could not rename " + tmp);
+			}
+			closeFiles(dataFile(generation));
+			indexFile(generation).delete();
+			generation = newGeneration;
+			dataFile = newDataFile;
+			data = newData;
+			indexFile = newIndexFile;
+			index = newIndex;
+			entryCount = count;
+			compactionCount++;
+		}
+		catch(IOException e) {
+			newDataFile.close();
+			newIndexFile.close();
+			dataFile(newGeneration).delete();
+			indexFile(newGeneration).delete();
+			throw e;
+		}
+	}
+
+	private MappedByteBuffer createIndex(RandomAccessFile file) throws IOException {
+		file.setLength(0);
+		file.setLength(INDEX_HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+		MappedByteBuffer buffer = file.getChannel().map(
+			FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+		buffer.putInt(0, INDEX_MAGIC);
+		buffer.putInt(4, slotCount);
+		buffer.putInt(8, 0);
+		return buffer;
+	}
+
+	private File dataFile(long gen) {
+		return new File(directory, "cache-" + gen + ".dat");
+	}
+
+	/**
+	 * Finds the slot for a key.
+	 * 
+	 * @param key
+	 * @param keyBytes
+	 * @return the slot number, or -1 if the key is not in the cache
+	 */
+	private int find(GraphvizResultCache.Key key, byte[] keyBytes) throws IOException {
+		long hash = key.longHash();
+		int mask = slotCount - 1;
+		for(int i = (int) (hash ^ (hash >>> 32)) & mask, probes = 0; probes < slotCount; i = (i + 1) & mask, probes++) {
+			long slotHash = index.getLong(slotPosition(i));
+			if(slotHash == 0)
+				return -1;
+			if(slotHash == hash && index.getInt(slotPosition(i) + 16) == keyBytes.length) {
+				// verify the key, the hash is not unique
+				Slot slot = readSlot(i);
+				ByteBuffer storedKey = ByteBuffer.allocate(keyBytes.length);
+				if(isValidRecord(slot, data.size()) && readFully(storedKey, slot.recordOffset + 4) &&
+						Arrays.equals(storedKey.array(), keyBytes))
+					return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of times the cache files have been compacted.
+	 * 
+	 * @return
+	 */
+	public synchronized long getCompactionCount() {
+		return compactionCount;
+	}
+
+	/**
+	 * Returns the number of lookups that found a result.
+	 * 
+	 * @return
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of lookups that did not find a result.
+	 * 
+	 * @return
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	private File indexFile(long gen) {
+		return new File(directory, "cache-" + gen + ".idx");
+	}
+
+	/**
+	 * Checks that the record an index entry refers to is in the data file, and has the lengths of the entry
+	 * (an entry may refer to garbage if the index was written in part when the system crashed).
+	 * 
+	 * @param slot
+	 * @param dataSize
+	 *            the size of the data file
+	 * @return true if the record matches the entry
+	 * @throws IOException
+	 */
+	private boolean isValidRecord(Slot slot, long dataSize) throws IOException {
+		if(slot.recordOffset < 0 || slot.keyLength < 0 || slot.dataLength < 0 ||
+				slot.recordOffset + recordSize(slot) > dataSize)
+			return false;
+		ByteBuffer length = ByteBuffer.allocate(4);
+		if(!readFully(length, slot.recordOffset) || length.getInt(0) != slot.keyLength)
+			return false;
+		length.clear();
+		return readFully(length, slot.recordOffset + 4 + slot.keyLength) && length.getInt(0) == slot.dataLength;
+	}
+
+	private void insertSlot(MappedByteBuffer target, Slot slot) {
+		int mask = slotCount - 1;
+		int i = (int) (slot.hash ^ (slot.hash >>> 32)) & mask;
+		while(target.getLong(slotPosition(i)) != 0)
+			i = (i + 1) & mask;
+		writeSlot(target, i, slot);
+	}
+
+	/**
+	 * Opens the cache files if that has not been done. Must be called with the write lock held.
+	 * 
+	 * @return true if the cache is available
+	 */
+	private boolean open() {
+		if(opened)
+			return data != null;
+		opened = true;
+		directory = options.getDiskCacheDirectory();
+		if(directory == null)
+			return false;
+		try {
+			if(!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Could not create " + directory);
+			generation = 0;
+			File current = new File(directory, CURRENT);
+			if(current.exists()) {
+				RandomAccessFile in = new RandomAccessFile(current, "r");
+				try {
+					String line = in.readLine();
+					generation = line == null
+							? 0
+							: Long.parseLong(line.trim());
+				}
+				catch(NumberFormatException e) {
+					throw new IOException("Invalid " + current);
+				}
+				finally {
+					in.close();
+				}
+			}
+			// remove files of other generations (left by a crash during compaction)
+			String keep = "cache-" + generation + ".";
+			for(File f : directory.listFiles())
+				if(f.getName().startsWith("cache-") && !f.getName().startsWith(keep) ||
+						f.getName().equals(CURRENT + ".tmp"))
+					f.delete();
+
+			dataFile = new RandomAccessFile(dataFile(generation), "rw");
+			data = dataFile.getChannel();
+			indexFile = new RandomAccessFile(indexFile(generation), "rw");
+			long wantedSlots = Math.max(1024, options.getDiskCacheSize() / 4096);
+			slotCount = Integer.highestOneBit((int) Math.min(wantedSlots, 1 << 24)) * 2;
+			if(indexFile.length() >= INDEX_HEADER_SIZE) {
+				indexFile.seek(0);
+				if(indexFile.readInt() == INDEX_MAGIC)
+					slotCount = indexFile.readInt();
+				else
+					indexFile.setLength(0);
+			}
+			if(indexFile.length() != INDEX_HEADER_SIZE + (long) slotCount * SLOT_SIZE) {
+				// new or broken index, the data can not be found without it
+				data.truncate(0);
+				index = createIndex(indexFile);
+			}
+			else
+				index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexFile.length());
+
+			// drop entries that refer to data that did not make it to disk, or to garbage
+			long dataSize = data.size();
+			entryCount = 0;
+			useCounter = 0;
+			for(int i = 0; i < slotCount; i++) {
+				Slot slot = readSlot(i);
+				if(slot.hash == 0)
+					continue;
+				if(!isValidRecord(slot, dataSize))
+					index.putLong(slotPosition(i), 0);
+				else {
+					entryCount++;
+					useCounter = Math.max(useCounter, slot.lastUsed);
+				}
+			}
+			if(entryCount != index.getInt(8)) {
+				// dropped entries may be in the middle of probe sequences, rebuild the table
+				rebuildIndex();
+			}
+			return true;
+		}
+		catch(IOException e) {
+			Logger log = Logger.getLogger(Graphviz.class);
+			log.error("Could not open graphviz disk cache in " + directory, e);
+			closeFiles();
+			return false;
+		}
+	}
+
+	/**
+	 * Adds a result to the cache. Results larger than the cache are not cached.
+	 * 
+	 * @param key
+	 * @param result
+	 */
+	void put(GraphvizResultCache.Key key, byte[] result) {
+		lock.writeLock().lock();
+		try {
+			if(!open())
+				return;
+			byte[] keyBytes = key.toBytes();
+			Slot slot = new Slot();
+			slot.hash = key.longHash();
+			slot.keyLength = keyBytes.length;
+			slot.dataLength = result.length;
+			slot.lastUsed = ++useCounter;
+			long recordSize = recordSize(slot);
+			if(recordSize > options.getDiskCacheSize() / 2)
+				return;
+			// a replaced record is appended as well, and counts against the size of the data file
+			int existing = find(key, keyBytes);
+			if(data.size() + recordSize > options.getDiskCacheSize() ||
+					existing < 0 && entryCount + 1 > slotCount * 3 / 4) {
+				compact();
+				existing = find(key, keyBytes);
+			}
+
+			ByteBuffer record = ByteBuffer.allocate((int) recordSize);
+			record.putInt(keyBytes.length);
+			record.put(keyBytes);
+			record.putInt(result.length);
+			record.put(result);
+			record.flip();
+			slot.recordOffset = data.size();
+			while(record.hasRemaining())
+				data.write(record, slot.recordOffset + record.position());
+			// the record must be on disk before the index refers to it
+			data.force(false);
+
+			if(existing >= 0)
+				writeSlot(index, existing, slot);
+			else {
+				insertSlot(index, slot);
+				index.putInt(8, ++entryCount);
+			}
+		}
+		catch(IOException e) {
+			Logger log = Logger.getLogger(Graphviz.class);
+			log.error("Could not write to graphviz disk cache in " + directory, e);
+			closeFiles();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads from the data file until the buffer is full.
+	 * 
+	 * @param buffer
+	 * @param position
+	 * @return false if the end of the data file was reached
+	 * @throws IOException
+	 */
+	private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining())
+			if(data.read(buffer, position + buffer.position()) < 0)
+				return false;
+		return true;
+	}
+
+	private Slot readSlot(int i) {
+		int position = slotPosition(i);
+		Slot slot = new Slot();
+		slot.hash = index.getLong(position);
+		slot.recordOffset = index.getLong(position + 8);
+		slot.keyLength = index.getInt(position + 16);
+		slot.dataLength = index.getInt(position + 20);
+		slot.lastUsed = index.getLong(position + 24);
+		return slot;
+	}
+
+	/**
+	 * Reinserts all entries in the index so that no probe sequence has gaps.
+	 */
+	private void rebuildIndex() {
+		List<Slot> live = Lists.newArrayList();
+		for(int i = 0; i < slotCount; i++) {
+			Slot slot = readSlot(i);
+			if(slot.hash != 0)
+				live.add(slot);
+			index.putLong(slotPosition(i), 0);
+		}
+		for(Slot slot : live)
+			insertSlot(index, slot);
+		index.putInt(8, live.size());
+	}
+
+	/**
+	 * Closes a dropped data file, or leaves that to the last hit that is being copied.
+	 * 
+	 * @param file
+	 * @param path
+	 *            the file to delete once it has been closed, or null
+	 */
+	private void retire(RandomAccessFile file, File path) {
+		synchronized(this) {
+			if(transferCount > 0) {
+				retiredFiles.add(file);
+				if(path != null)
+					retiredPaths.add(path);
+				return;
+			}
+		}
+		try {
+			file.close();
+		}
+		catch(IOException e) {
+		}
+		if(path != null)
+			path.delete();
+	}
+
+	private long recordSize(Slot slot) {
+		return 4 + slot.keyLength + 4 + (long) slot.dataLength;
+	}
+
+	private int slotPosition(int i) {
+		return INDEX_HEADER_SIZE + i * SLOT_SIZE;
+	}
+
+	/**
+	 * Copies a range of a data file to the target.
+	 * 
+	 * @param source
+	 * @param position
+	 * @param count
+	 * @param target
+	 * @throws IOException
+	 *             if the range could not be copied
+	 */
+	private static void transfer(FileChannel source, long position, long count, WritableByteChannel target)
+			throws IOException {
+		long transferred = 0;
+		while(transferred < count) {
+			long n = source.transferTo(position + transferred, count - transferred, target);
+			if(n <= 0)
+				throw new IOException("Graphviz disk cache data file is truncated");
+			transferred += n;
+		}
+	}
+
+	/**
+	 * Copies the cached result for the given key to the output.
+	 * 
+	 * @param key
+	 * @param output
+	 * @return true if the result was found and written, false if the result is not in the cache
+	 * @throws IOException
+	 *             if writing to the output failed
+	 */
+	boolean transferTo(GraphvizResultCache.Key key, OutputStream output) throws IOException {
+		FileChannel source;
+		Slot slot;
+		lock.readLock().lock();
+		try {
+			if(!opened) {
+				// the write lock is only needed to open the cache
+				lock.readLock().unlock();
+				lock.writeLock().lock();
+				try {
+					open();
+					lock.readLock().lock();
+				}
+				finally {
+					lock.writeLock().unlock();
+				}
+			}
+			if(data == null)
+				return false;
+			int i = find(key, key.toBytes());
+			if(i < 0) {
+				synchronized(this) {
+					missCount++;
+				}
+				return false;
+			}
+			slot = readSlot(i);
+			source = data;
+			synchronized(this) {
+				hitCount++;
+				index.putLong(slotPosition(i) + 24, ++useCounter);
+				// the data file is not closed by compaction until the copy is done
+				transferCount++;
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+		try {
+			if(output instanceof FileOutputStream)
+				output.flush();
+			WritableByteChannel target = output instanceof FileOutputStream
+					? ((FileOutputStream) output).getChannel()
+					: output instanceof ChannelOutputStream
+							? ((ChannelOutputStream) output).getChannel()
+							: Channels.newChannel(output);
+			transfer(source, slot.recordOffset + 4 + slot.keyLength + 4, slot.dataLength, target);
+		}
+		finally {
+			transferDone();
+		}
+		return true;
+	}
+
+	/**
+	 * Ends the copy of a hit, and closes the dropped data files if no other hit is being copied.
+	 */
+	private void transferDone() {
+		List<RandomAccessFile> files;
+		List<File> paths;
+		synchronized(this) {
+			if(--transferCount > 0 || retiredFiles.isEmpty())
+				return;
+			files = Lists.newArrayList(retiredFiles);
+			paths = Lists.newArrayList(retiredPaths);
+			retiredFiles.clear();
+			retiredPaths.clear();
+		}
+		// hits that started since use the current data file
+		for(RandomAccessFile file : files) {
+			try {
+				file.close();
+			}
+			catch(IOException e) {
+			}
+		}
+		for(File path : paths)
+			path.delete();
+	}
+
+	private void writeSlot(MappedByteBuffer target, int i, Slot slot) {
+		int position = slotPosition(i);
+		target.putLong(position + 8, slot.recordOffset);
+		target.putInt(position + 16, slot.keyLength);
+		target.putInt(position + 20, slot.dataLength);
+		target.putLong(position + 24, slot.lastUsed);
+		// the hash marks the slot as used, write it last
+		target.putLong(position, slot.hash);
+	}
+}
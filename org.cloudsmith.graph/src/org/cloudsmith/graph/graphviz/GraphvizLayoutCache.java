@@ -0,0 +1,37 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * A cache of positioned graphs, i.e. the {@link GraphvizFormat#xdot} output of a layout. The {@link Graphviz}
+ * runner uses the cache when {@link IGraphvizOptions#getLayoutCacheSize()} is not 0, and renders the cached
+ * positioned graph to the wanted formats without running the layout again.
+ * 
+ */
+@Singleton
+public class GraphvizLayoutCache extends GraphvizResultCache {
+	@Inject
+	public GraphvizLayoutCache(IGraphvizOptions options) {
+		super(options);
+	}
+
+	/**
+	 * Returns {@link IGraphvizOptions#getLayoutCacheSize()}.
+	 */
+	@Override
+	protected long getMaxSize() {
+		return options.getLayoutCacheSize();
+	}
+}
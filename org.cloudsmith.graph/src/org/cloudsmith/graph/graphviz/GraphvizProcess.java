@@ -0,0 +1,719 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.cloudsmith.graph.DeadlineCancel;
+import org.cloudsmith.graph.ICancel;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A running graphviz executable.
+ * 
+ * A reusable process renders one graph after another. Graphviz reads one graph at a time from stdin and
+ * writes the complete output for that graph before reading the next, so a process can be kept running
+ * for formats where the end of the output for a graph can be detected (see {@link OutputTerminator}).
+ * A process that is not reusable renders a single graph and is terminated by closing its stdin.
+ * 
+ * The error output is redirected to a temporary file when the JVM supports redirection (Java 7 and
+ * later), and is otherwise read by a task on the pump executor for as long as the process runs.
+ * 
+ */
+final class GraphvizProcess {
+	/**
+	 * Identifies a graphviz command line, i.e. the layout, the output formats and the renderer.
+	 */
+	static final class Key {
+		/**
+		 * Returns a key for a command that renders a graph that already has a layout (i.e. the output of
+		 * {@link GraphvizFormat#xdot}) without changing the positions of nodes and edges.
+		 * 
+		 * @param formats
+		 * @param renderer
+		 * @return
+		 * @see #Key(GraphvizLayout, Set, GraphvizRenderer)
+		 */
+		static Key positioned(Set<GraphvizFormat> formats, GraphvizRenderer renderer) {
+			return new Key(GraphvizLayout.neato, formats, renderer, true);
+		}
+
+		/**
+		 * Returns true if the given format is produced by a renderer (the renderer is otherwise not
+		 * given on the command line).
+		 * 
+		 * @param format
+		 * @return
+		 */
+		private static boolean isRendered(GraphvizFormat format) {
+			return format == GraphvizFormat.png || format == GraphvizFormat.jpg || format == GraphvizFormat.svg;
+		}
+
+		private final GraphvizLayout layout;
+
+		private final GraphvizFormat[] formats;
+
+		private final GraphvizRenderer renderer;
+
+		private final boolean positioned;
+
+		/**
+		 * @param layout
+		 * @param format
+		 * @param renderer
+		 *            the renderer, or null if the format should be used without a renderer
+		 */
+		Key(GraphvizLayout layout, GraphvizFormat format, GraphvizRenderer renderer) {
+			this(layout, EnumSet.of(format), renderer);
+		}
+
+		/**
+		 * Creates a key for a command producing several formats from one layout. Graphviz writes the
+		 * output of the formats one after the other, and the formats are ordered so that the output of
+		 * all but the last has a detectable end.
+		 * 
+		 * @param layout
+		 * @param formats
+		 *            a non empty set of formats, of which at most one may lack an {@link OutputTerminator}
+		 * @param renderer
+		 *            the renderer, or null if the formats should be used without a renderer. The renderer is
+		 *            only used for image formats.
+		 * @throws IllegalArgumentException
+		 *             if the output of the formats can not be separated
+		 */
+		Key(GraphvizLayout layout, Set<GraphvizFormat> formats, GraphvizRenderer renderer) {
+			this(layout, formats, renderer, false);
+		}
+
+		private Key(GraphvizLayout layout, Set<GraphvizFormat> formats, GraphvizRenderer renderer, boolean positioned) {
+			if(formats.isEmpty())
+				throw new IllegalArgumentException("No output format");
+			this.layout = layout;
+			this.formats = new GraphvizFormat[formats.size()];
+			int first = 0;
+			int last = this.formats.length;
+			for(GraphvizFormat format : EnumSet.copyOf(formats)) {
+				if(OutputTerminator.forFormat(format) != null)
+					this.formats[first++] = format;
+				else if(last == this.formats.length)
+					this.formats[--last] = format;
+				else
+					throw new IllegalArgumentException("The output of " + format + " and " + this.formats[last] +
+							" can not be produced by the same command");
+			}
+			GraphvizRenderer used = null;
+			for(GraphvizFormat format : this.formats)
+				if(isRendered(format))
+					used = renderer;
+			this.renderer = used;
+			this.positioned = positioned;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return layout == k.layout && Arrays.equals(formats, k.formats) && renderer == k.renderer &&
+					positioned == k.positioned;
+		}
+
+		/**
+		 * Returns the command line, e.g. "dot -Tpng:cairo -Tcmapx".
+		 * 
+		 * @return
+		 */
+		List<String> getCommand() {
+			List<String> command = Lists.newArrayList(layout.toString());
+			if(positioned)
+				command.add("-n2");
+			for(GraphvizFormat format : formats)
+				command.add("-T" + format.toString() + (renderer == null || !isRendered(format)
+						? ""
+						: ":" + renderer.toString()));
+			return command;
+		}
+
+		/**
+		 * Returns the formats in the order graphviz produces them. The array must not be modified.
+		 * 
+		 * @return
+		 */
+		GraphvizFormat[] getFormats() {
+			return formats;
+		}
+
+		/**
+		 * Returns the format that is produced last.
+		 * 
+		 * @return
+		 */
+		GraphvizFormat getLastFormat() {
+			return formats[formats.length - 1];
+		}
+
+		@Override
+		public int hashCode() {
+			return ((layout.hashCode() * 31 + Arrays.hashCode(formats)) * 31 + (renderer == null
+					? 0
+					: renderer.hashCode())) * 2 + (positioned
+					? 1
+					: 0);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			for(String arg : getCommand()) {
+				if(builder.length() > 0)
+					builder.append(' ');
+				builder.append(arg);
+			}
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * How often (in milliseconds) to check for cancellation while waiting for graphviz.
+	 */
+	private static final long CANCEL_POLL_INTERVAL = 100;
+
+	/**
+	 * Max amount of error output kept per render.
+	 */
+	private static final int MAX_ERROR_OUTPUT = 64 * 1024;
+
+	/**
+	 * Size of the buffers used to copy data to and from the process. Graphviz output is often large, and
+	 * reading it in large chunks reduces the number of reads and writes to the output streams.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Redirects the error output of the process to a temporary file, if the JVM supports it.
+	 * 
+	 * @param builder
+	 * @return the file, or null if the error output must be read from the process
+	 */
+	private static File redirectError(ProcessBuilder builder) {
+		Method redirectError;
+		try {
+			// looked up reflectively as redirection is not available in all supported JVMs
+			redirectError = ProcessBuilder.class.getMethod("redirectError", File.class);
+		}
+		catch(NoSuchMethodException e) {
+			return null;
+		}
+		File file = null;
+		try {
+			file = File.createTempFile("graphviz", ".err");
+			redirectError.invoke(builder, file);
+			return file;
+		}
+		catch(Exception e) {
+			Logger log = Logger.getLogger(Graphviz.class);
+			log.warn("Could not redirect graphviz error output", e);
+			if(file != null)
+				file.delete();
+			return null;
+		}
+	}
+
+	private final Key key;
+
+	private final Process process;
+
+	private final OutputStream out;
+
+	private final InputStream in;
+
+	private final InputStream err;
+
+	private final OutputTerminator terminator;
+
+	private final ByteArrayOutputStream errorOutput = new ByteArrayOutputStream();
+
+	private final ExecutorService pumps;
+
+	private final Future<?> errorHandler;
+
+	private final File errorFile;
+
+	private final RandomAccessFile errorInput;
+
+	private long errorFileOffset = 0;
+
+	private final byte[] readBuffer = new byte[BUFFER_SIZE];
+
+	private final byte[] writeBuffer = new byte[BUFFER_SIZE];
+
+	private int renderCount = 0;
+
+	private volatile boolean broken = false;
+
+	/**
+	 * Starts a graphviz process.
+	 * 
+	 * @param key
+	 *            what to run
+	 * @param reusable
+	 *            if the process should be kept running between renders. Ignored if the output
+	 *            format does not have a detectable end.
+	 * @param pumps
+	 *            the executor running the tasks that pump data to and from the process
+	 * @throws IOException
+	 *             if the process could not be started
+	 */
+	GraphvizProcess(Key key, boolean reusable, ExecutorService pumps) throws IOException {
+		this.key = key;
+		this.pumps = pumps;
+		this.terminator = reusable
+				? OutputTerminator.forFormat(key.getLastFormat())
+				: null;
+		ProcessBuilder builder = new ProcessBuilder(key.getCommand());
+		errorFile = redirectError(builder);
+		errorInput = errorFile == null
+				? null
+				: new RandomAccessFile(errorFile, "r");
+		try {
+			process = builder.start();
+		}
+		catch(IOException e) {
+			if(errorFile != null) {
+				errorInput.close();
+				errorFile.delete();
+			}
+			throw e;
+		}
+		out = new BufferedOutputStream(process.getOutputStream());
+		// the output is read in large chunks, a buffered stream would only add a copy
+		in = process.getInputStream();
+		if(errorFile != null) {
+			err = null;
+			errorHandler = null;
+			// the file is read through the open handle, and is deleted at once where the OS allows it so
+			// that it is not left behind by processes still running when the JVM exits
+			errorFile.delete();
+			return;
+		}
+		err = new BufferedInputStream(process.getErrorStream());
+
+		errorHandler = pumps.submit(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[512];
+				try {
+					int read = err.read(buffer);
+					while(read != -1) {
+						synchronized(errorOutput) {
+							if(errorOutput.size() < MAX_ERROR_OUTPUT)
+								errorOutput.write(buffer, 0, read);
+						}
+						read = err.read(buffer);
+					}
+				}
+				catch(IOException e) {
+					// an IO Exception here is the expected outcome when the process is destroyed
+					// while this thread is hanging on the read.
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for a pump task to finish. The pump tasks handle their own errors, except for cancellation.
+	 * The process is killed if cancellation is requested while waiting.
+	 * 
+	 * @param task
+	 * @param cancel
+	 * @throws InterruptedException
+	 * @throws CancellationException
+	 *             if cancellation was requested
+	 */
+	private void await(Future<?> task, ICancel cancel) throws InterruptedException {
+		for(;;) {
+			try {
+				task.get(CANCEL_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				return;
+			}
+			catch(ExecutionException e) {
+				Logger log = Logger.getLogger(Graphviz.class);
+				log.debug("graphviz pump ended with exception", e.getCause());
+				return;
+			}
+			catch(TimeoutException e) {
+				if(cancel.isCanceled()) {
+					kill();
+					cancel.assertContinue();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Terminates the process and closes all streams. The process can not be used after this.
+	 */
+	void destroy() {
+		// close ALL input
+		// This terminates the reader and writer as the pipe is forcefully
+		// closed on them - errors may occur after input has already been
+		// closed or after output has been closed - make sure all three
+		// are closed.
+		try {
+			in.close();
+		}
+		catch(IOException ioe) {
+		}
+		try {
+			out.close();
+		}
+		catch(IOException ioe) {
+		}
+		try {
+			if(err != null)
+				err.close();
+		}
+		catch(IOException ioe) {
+		}
+		process.destroy();
+		if(errorFile != null) {
+			synchronized(errorOutput) {
+				try {
+					errorInput.close();
+				}
+				catch(IOException ioe) {
+				}
+			}
+			errorFile.delete();
+		}
+	}
+
+	/**
+	 * Forcibly terminates the process and any processes it has started, and closes all streams. Used when a
+	 * render is canceled; graphviz may otherwise keep running for a long time on a large graph.
+	 */
+	void kill() {
+		broken = true;
+		try {
+			// looked up reflectively as process handles are not available in all supported JVMs
+			Object descendants = Process.class.getMethod("descendants").invoke(process);
+			Method destroyHandle = Class.forName("java.lang.ProcessHandle").getMethod("destroyForcibly");
+			for(Object handle : (Object[]) Class.forName("java.util.stream.Stream").getMethod("toArray").invoke(
+				descendants))
+				destroyHandle.invoke(handle);
+			Process.class.getMethod("destroyForcibly").invoke(process);
+		}
+		catch(Exception e) {
+			// the process is destroyed below
+		}
+		destroy();
+	}
+
+	Key getKey() {
+		return key;
+	}
+
+	int getRenderCount() {
+		return renderCount;
+	}
+
+	/**
+	 * Returns true if the process is still running.
+	 * 
+	 * @return
+	 */
+	boolean isAlive() {
+		try {
+			process.exitValue();
+			return false;
+		}
+		catch(IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Returns true if a render did not complete normally, and the state of the process (and its streams)
+	 * is unknown.
+	 * 
+	 * @return
+	 */
+	boolean isBroken() {
+		return broken;
+	}
+
+	/**
+	 * Returns true if the process can render more than one graph.
+	 * 
+	 * @return
+	 */
+	boolean isReusable() {
+		return terminator != null;
+	}
+
+	/**
+	 * Feeds the dot data to the process, and copies the resulting output to the given output stream.
+	 * 
+	 * @param cancel
+	 * @param dotData
+	 * @param output
+	 * @return true if all output was produced, false if there was an error
+	 * @throws InterruptedException
+	 *             if the calling thread was interrupted while waiting for graphviz
+	 * @throws GraphvizException
+	 *             if graphviz reported failure
+	 */
+	boolean render(ICancel cancel, InputStream dotData, OutputStream output) throws InterruptedException {
+		return render(cancel, dotData, new OutputStream[] { output });
+	}
+
+	/**
+	 * Feeds the dot data to the process, and copies the output of each format to the corresponding
+	 * output stream.
+	 * 
+	 * @param cancel
+	 * @param dotData
+	 * @param outputs
+	 *            one output stream per format, in the order of {@link Key#getFormats()}
+	 * @return true if all output was produced, false if there was an error
+	 * @throws InterruptedException
+	 *             if the calling thread was interrupted while waiting for graphviz
+	 * @throws GraphvizException
+	 *             if graphviz reported failure
+	 */
+	boolean render(final ICancel cancel, final InputStream dotData, final OutputStream[] outputs)
+			throws InterruptedException {
+		renderCount++;
+
+		// use the stream connected to the command's stdin
+		/*
+		 * A separate task is needed when producing output to graphviz. If there is something
+		 * wrong graphviz will not read the input and the writer will block.
+		 */
+		Future<?> writer = pumps.submit(new Runnable() {
+			@Override
+			public void run() {
+				// print the dot output on the stream
+				try {
+					byte[] buf = writeBuffer;
+					int length = 0;
+					while((length = dotData.read(buf)) != -1)
+						out.write(buf, 0, length); // dotOutput.toByteArray());
+
+					if(isReusable()) {
+						// graphviz reads the next graph when the current is complete, make sure
+						// the last line is terminated and not stuck in a buffer
+						out.write('\n');
+						out.flush();
+					}
+					else {
+						// close the stream, or graphviz will read for ever
+						out.close();
+					}
+				}
+				catch(IOException e) {
+					Logger log = Logger.getLogger(Graphviz.class);
+					log.error("error closing output stream to graphviz ", e);
+				}
+			}
+		});
+
+		class ReaderTask implements Runnable {
+			public volatile boolean done = false;
+
+			public volatile boolean eof = false;
+
+			/**
+			 * Returns a matcher for the end of the output of the format at the given index, or null if
+			 * the output ends when graphviz closes its output.
+			 */
+			private OutputTerminator.Matcher matcher(int index) {
+				if(index == outputs.length - 1)
+					return terminator == null
+							? null
+							: terminator.matcher();
+				return OutputTerminator.forFormat(key.getFormats()[index]).matcher();
+			}
+
+			@Override
+			public void run() {
+				byte[] buffer = readBuffer;
+				int index = 0;
+				OutputTerminator.Matcher matcher = matcher(index);
+				try {
+					int read = in.read(buffer);
+					while(read != -1) {
+						int offset = 0;
+						while(offset < read) {
+							int length = matcher == null
+									? read - offset
+									: matcher.scan(buffer, offset, read - offset);
+							try {
+								outputs[index].write(buffer, offset, length);
+							}
+							catch(Throwable e) {
+								Logger log = Logger.getLogger(Graphviz.class);
+								log.error("Exception while writing result read from graphviz", e);
+							}
+							offset += length;
+							if(matcher != null && matcher.isComplete()) {
+								if(index == outputs.length - 1) {
+									// the output of this graph is complete, the process stays alive
+									done = true;
+									return;
+								}
+								// the rest is output of the next format
+								matcher = matcher(++index);
+							}
+						}
+						cancel.assertContinue();
+						read = in.read(buffer);
+					}
+					eof = true;
+					// EOF of a reusable process means that it exited before producing all output
+					if(terminator == null) {
+						// close the input - we are finished
+						in.close();
+						// flag that we are done reading in a normal way (if output of all formats was seen).
+						done = index == outputs.length - 1;
+					}
+				}
+				catch(IOException e) {
+					Logger log = Logger.getLogger(Graphviz.class);
+					log.error("error reading output from graphviz ", e);
+				}
+			}
+		}
+		;
+		ReaderTask reader = new ReaderTask();
+		// start reading the output from graphviz
+		Future<?> readerTask = pumps.submit(reader);
+
+		// a deadline kills the process as soon as it expires
+		Runnable killer = new Runnable() {
+			@Override
+			public void run() {
+				kill();
+			}
+		};
+		if(cancel instanceof DeadlineCancel)
+			((DeadlineCancel) cancel).addCancelListener(killer);
+		try {
+			cancel.assertContinue();
+			if(isReusable()) {
+				// wait until everything for this graph has been read (or the process died)
+				await(readerTask, cancel);
+				cancel.assertContinue();
+				await(writer, cancel);
+				if(!reader.done) {
+					if(reader.eof) {
+						// the process exited, collect what it had to say about it
+						process.waitFor();
+						if(errorHandler != null)
+							await(errorHandler, cancel);
+						throw new GraphvizException(takeErrorOutput());
+					}
+					return false;
+				}
+			}
+			else {
+				// wait until everything has been read from process
+				await(readerTask, cancel);
+				cancel.assertContinue();
+
+				// wait for process to finish (its output is closed)
+				process.waitFor();
+
+				// all error output is available when stderr has been closed by the exiting process
+				if(errorHandler != null)
+					await(errorHandler, cancel);
+
+				// TODO: it may be needed to check the error output, if it is an error or a warning
+				// warnings could be ignored - now they also terminate the output if the warning occurs before
+				// the writer is done.
+				if(process.exitValue() != 0) {
+					throw new GraphvizException(takeErrorOutput());
+				}
+			}
+			// if there was no output this could be because EOF was reached due to normal end.
+			String tmp = takeErrorOutput();
+			if(tmp.length() > 0) {
+				Logger log = Logger.getLogger(Graphviz.class);
+				log.error("Graphviz error: " + tmp);
+			}
+			return reader.done;
+		}
+		finally {
+			if(cancel instanceof DeadlineCancel)
+				((DeadlineCancel) cancel).removeCancelListener(killer);
+			if(!reader.done)
+				broken = true;
+		}
+	}
+
+	/**
+	 * Reads the error output written to the error file since it was last read. Must be called with the
+	 * lock on the error output held.
+	 */
+	private void readErrorFile() {
+		try {
+			long length = errorInput.length();
+			int count = (int) Math.min(length - errorFileOffset, MAX_ERROR_OUTPUT - errorOutput.size());
+			if(count > 0) {
+				byte[] bytes = new byte[count];
+				errorInput.seek(errorFileOffset);
+				errorInput.readFully(bytes);
+				errorOutput.write(bytes, 0, count);
+			}
+			errorFileOffset = length;
+		}
+		catch(IOException e) {
+			Logger log = Logger.getLogger(Graphviz.class);
+			log.debug("error reading graphviz error output", e);
+		}
+	}
+
+	/**
+	 * Returns and clears the error output collected so far.
+	 * 
+	 * @return
+	 */
+	private String takeErrorOutput() {
+		synchronized(errorOutput) {
+			if(errorFile != null)
+				readErrorFile();
+			String result = errorOutput.toString();
+			errorOutput.reset();
+			return result;
+		}
+	}
+}
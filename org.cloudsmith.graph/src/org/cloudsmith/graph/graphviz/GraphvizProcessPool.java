@@ -0,0 +1,312 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * A pool of warm graphviz processes, keyed by layout, format and renderer.
+ * 
+ * Starting graphviz (fork, exec, and loading of plugins) is a large part of the cost of rendering a
+ * small graph. The pool keeps up to {@link IGraphvizOptions#getProcessPoolSize()} idle processes per key,
+ * and retires a process when it has performed {@link IGraphvizOptions#getMaxRendersPerProcess()} renders,
+ * or when a render failed. A retired process is replaced in the background.
+ * 
+ * Only formats where the end of output can be detected can be pooled - other formats (and all formats
+ * when the pool size is 0, or the pool has been shut down) get a new process for each render.
+ * 
+ */
+@Singleton
+public class GraphvizProcessPool {
+	private final IGraphvizOptions options;
+
+	/**
+	 * Idle processes per key, most recently used first.
+	 */
+	private final Map<GraphvizProcess.Key, LinkedList<GraphvizProcess>> idleProcesses = Maps.newHashMap();
+
+	private final ExecutorService spawner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "graphviz process pool");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong recycleCount = new AtomicLong();
+
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	/**
+	 * Set by {@link #shutdown()}, guarded by idleProcesses.
+	 */
+	private boolean shutdown;
+
+	@Inject
+	public GraphvizProcessPool(IGraphvizOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Obtains a process for the given command (layout, formats and renderer). The process must be returned
+	 * with {@link #release(GraphvizProcess)}.
+	 * 
+	 * @param key
+	 * @return a process ready to render a graph
+	 * @throws IOException
+	 *             if a new process was needed, and it could not be started
+	 */
+	GraphvizProcess acquire(GraphvizProcess.Key key) throws IOException {
+		long start = System.nanoTime();
+		try {
+			GraphvizProcess process = isPooled(key)
+					? pollIdle(key)
+					: null;
+			if(process != null) {
+				hitCount.incrementAndGet();
+				return process;
+			}
+			missCount.incrementAndGet();
+			return new GraphvizProcess(key, isPooled(key), options.getPumpExecutor());
+		}
+		finally {
+			long waited = System.nanoTime() - start;
+			totalWaitNanos.addAndGet(waited);
+			long max = maxWaitNanos.get();
+			while(waited > max && !maxWaitNanos.compareAndSet(max, waited))
+				max = maxWaitNanos.get();
+		}
+	}
+
+	/**
+	 * Returns the number of renders that got a warm process.
+	 * 
+	 * @return
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * Returns the longest time (in nanoseconds) a render has waited for a process.
+	 * 
+	 * @return
+	 */
+	public long getMaxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+
+	/**
+	 * Returns the number of renders that had to start a new process (including renders of formats that
+	 * can not be pooled).
+	 * 
+	 * @return
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * Returns the number of pooled processes that have been retired because they failed, died, or reached
+	 * the max number of renders.
+	 * 
+	 * @return
+	 */
+	public long getRecycleCount() {
+		return recycleCount.get();
+	}
+
+	/**
+	 * Returns the total time (in nanoseconds) renders have waited for a process.
+	 * 
+	 * @return
+	 */
+	public long getTotalWaitNanos() {
+		return totalWaitNanos.get();
+	}
+
+	private LinkedList<GraphvizProcess> idleList(GraphvizProcess.Key key) {
+		LinkedList<GraphvizProcess> idle = idleProcesses.get(key);
+		if(idle == null)
+			idleProcesses.put(key, idle = new LinkedList<GraphvizProcess>());
+		return idle;
+	}
+
+	private boolean isPooled(GraphvizProcess.Key key) {
+		return options.getProcessPoolSize() > 0 && OutputTerminator.forFormat(key.getLastFormat()) != null &&
+				!isShutdown();
+	}
+
+	private boolean isShutdown() {
+		synchronized(idleProcesses) {
+			return shutdown;
+		}
+	}
+
+	/**
+	 * Adds the process to the idle processes for its key unless there already are enough idle
+	 * processes.
+	 * 
+	 * @param process
+	 * @return true if the process was added
+	 */
+	private boolean offerIdle(GraphvizProcess process) {
+		synchronized(idleProcesses) {
+			if(shutdown)
+				return false;
+			LinkedList<GraphvizProcess> idle = idleList(process.getKey());
+			if(idle.size() >= options.getProcessPoolSize())
+				return false;
+			idle.addFirst(process);
+			return true;
+		}
+	}
+
+	/**
+	 * Takes a live idle process for the given key.
+	 * 
+	 * @param key
+	 * @return a process or null if there was no idle process
+	 */
+	private GraphvizProcess pollIdle(GraphvizProcess.Key key) {
+		for(;;) {
+			GraphvizProcess process;
+			synchronized(idleProcesses) {
+				process = idleList(key).pollFirst();
+			}
+			if(process == null || process.isAlive())
+				return process;
+			// died while idle
+			recycleCount.incrementAndGet();
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Starts processes for the given layout, format and renderer until the pool holds
+	 * {@link IGraphvizOptions#getProcessPoolSize()} idle processes for this combination. This can be
+	 * used to avoid the cost of starting processes when the first graphs are rendered. Nothing is started
+	 * once the pool has been shut down.
+	 * 
+	 * @param layout
+	 * @param format
+	 * @param renderer
+	 *            the renderer to use, or null for none
+	 * @throws IOException
+	 *             if a process could not be started
+	 */
+	public void prestart(GraphvizLayout layout, GraphvizFormat format, GraphvizRenderer renderer)
+			throws IOException {
+		GraphvizProcess.Key key = new GraphvizProcess.Key(layout, format, renderer);
+		if(!isPooled(key))
+			return;
+		for(;;) {
+			synchronized(idleProcesses) {
+				if(shutdown || idleList(key).size() >= options.getProcessPoolSize())
+					return;
+			}
+			GraphvizProcess process = new GraphvizProcess(key, true, options.getPumpExecutor());
+			if(!offerIdle(process)) {
+				process.destroy();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns a process obtained from {@link #acquire(GraphvizProcess.Key)}.
+	 * Processes that can not be reused, and all processes after {@link #shutdown()}, are terminated.
+	 * 
+	 * @param process
+	 */
+	void release(GraphvizProcess process) {
+		if(!process.isReusable() || isShutdown()) {
+			process.destroy();
+			return;
+		}
+		if(process.isBroken() || !process.isAlive() ||
+				process.getRenderCount() >= options.getMaxRendersPerProcess()) {
+			recycleCount.incrementAndGet();
+			process.destroy();
+			replace(process.getKey());
+			return;
+		}
+		if(!offerIdle(process))
+			process.destroy();
+	}
+
+	/**
+	 * Starts a replacement for a retired process in the background.
+	 * 
+	 * @param key
+	 */
+	private void replace(final GraphvizProcess.Key key) {
+		if(isShutdown())
+			return;
+		try {
+			spawner.execute(new Runnable() {
+				@Override
+				public void run() {
+					if(isShutdown())
+						return;
+					try {
+						GraphvizProcess process = new GraphvizProcess(key, true, options.getPumpExecutor());
+						if(!offerIdle(process))
+							process.destroy();
+					}
+					catch(IOException e) {
+						Logger log = Logger.getLogger(Graphviz.class);
+						log.error("Could not execute " + key);
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException e) {
+			// shut down while the process was retired
+		}
+	}
+
+	/**
+	 * Terminates all idle processes, and stops starting new ones. Processes in use are terminated when they
+	 * are released, and renders that are started after the shutdown get a process of their own.
+	 */
+	public void shutdown() {
+		synchronized(idleProcesses) {
+			shutdown = true;
+			for(LinkedList<GraphvizProcess> idle : idleProcesses.values())
+				for(GraphvizProcess process : idle)
+					process.destroy();
+			idleProcesses.clear();
+		}
+		spawner.shutdownNow();
+	}
+}
@@ -0,0 +1,25 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+/**
+ * An exception indicating that a render was not performed because graphviz was overloaded - the
+ * render queue of the {@link GraphvizRenderScheduler} was full, or the render waited too long in it.
+ */
+public class GraphvizRejectedException extends GraphvizException {
+
+	private static final long serialVersionUID = 1L;
+
+	public GraphvizRejectedException(String message) {
+		super(message);
+	}
+}
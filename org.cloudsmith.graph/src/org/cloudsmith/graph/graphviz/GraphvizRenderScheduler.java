@@ -0,0 +1,351 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudsmith.graph.ICancel;
+
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Admission control for graphviz renders. At most {@link IGraphvizOptions#getMaxConcurrentRenders()} renders
+ * run at the same time; other renders wait in a queue. A render is rejected with a
+ * {@link GraphvizRejectedException} when the queue is full, or when it has waited longer than
+ * {@link IGraphvizOptions#getMaxQueueWait()}. Renders are not limited by default. This keeps the throughput up under overload, as graphviz
+ * processes do not compete for the CPU, and callers learn early that they will not be served.
+ * 
+ * Waiting renders are served in weighted fair order per tenant (start time fair queuing). The tenant of a
+ * render is set per thread with {@link #setTenant(String)}, and the weight of a tenant is given by
+ * {@link IGraphvizOptions#getTenantWeight(String)}. A tenant with weight 2 gets twice the renders of a tenant
+ * with weight 1 when both have renders waiting.
+ * 
+ */
+@Singleton
+public class GraphvizRenderScheduler {
+	/**
+	 * A render waiting for its turn.
+	 */
+	private static class Waiter {
+		private final String tenant;
+
+		private boolean granted = false;
+
+		Waiter(String tenant) {
+			this.tenant = tenant;
+		}
+	}
+
+	/**
+	 * The tenant of renders performed by threads that have not set a tenant.
+	 */
+	public static final String DEFAULT_TENANT = "";
+
+	/**
+	 * How often (in milliseconds) to check for cancellation while waiting in the queue.
+	 */
+	private static final long CANCEL_POLL_INTERVAL = 100;
+
+	private static final ThreadLocal<String> currentTenant = new ThreadLocal<String>();
+
+	/**
+	 * Returns the tenant of renders performed by the calling thread.
+	 * 
+	 * @return the tenant, or {@link #DEFAULT_TENANT} if none has been set
+	 */
+	public static String getTenant() {
+		String tenant = currentTenant.get();
+		return tenant == null
+				? DEFAULT_TENANT
+				: tenant;
+	}
+
+	/**
+	 * Sets the tenant of renders performed by the calling thread. Callers should restore the previous
+	 * tenant when done, e.g. in a finally block.
+	 * 
+	 * @param tenant
+	 *            the tenant, or null for {@link #DEFAULT_TENANT}
+	 * @return the previous tenant
+	 */
+	public static String setTenant(String tenant) {
+		String previous = getTenant();
+		if(tenant == null)
+			currentTenant.remove();
+		else
+			currentTenant.set(tenant);
+		return previous;
+	}
+
+	private final IGraphvizOptions options;
+
+	/**
+	 * Waiting renders per tenant, only tenants with waiting renders are present.
+	 */
+	private final Map<String, LinkedList<Waiter>> queues = Maps.newHashMap();
+
+	/**
+	 * The virtual time at which each tenant's next render starts.
+	 */
+	private final Map<String, Double> startTags = Maps.newHashMap();
+
+	private double virtualTime = 0;
+
+	private int running = 0;
+
+	private int queued = 0;
+
+	private long grantedCount = 0;
+
+	private long rejectedCount = 0;
+
+	private long totalWaitNanos = 0;
+
+	private long maxWaitNanos = 0;
+
+	@Inject
+	public GraphvizRenderScheduler(IGraphvizOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Waits until the render of the calling thread's tenant may start. A render that is admitted must call
+	 * {@link #release()} when done.
+	 * 
+	 * @param cancel
+	 * @throws GraphvizRejectedException
+	 *             if the queue is full, or the render waited too long
+	 * @throws CancellationException
+	 *             if cancellation was requested while waiting
+	 * @throws InterruptedException
+	 *             if the calling thread was interrupted while waiting
+	 */
+	synchronized void acquire(ICancel cancel) throws InterruptedException {
+		long start = System.nanoTime();
+		Waiter waiter = new Waiter(getTenant());
+		if(queued == 0 && hasCapacity()) {
+			grant(waiter);
+			recordWait(0);
+			return;
+		}
+		if(queued >= options.getMaxQueuedRenders()) {
+			rejectedCount++;
+			throw new GraphvizRejectedException("Graphviz render queue is full (" + queued + " renders waiting)");
+		}
+		LinkedList<Waiter> queue = queues.get(waiter.tenant);
+		if(queue == null)
+			queues.put(waiter.tenant, queue = new LinkedList<Waiter>());
+		queue.addLast(waiter);
+		queued++;
+
+		long maxWait = options.getMaxQueueWait();
+		long timeout = TimeUnit.MILLISECONDS.toNanos(maxWait);
+		try {
+			while(!waiter.granted) {
+				long remaining = maxWait > 0
+						? start + timeout - System.nanoTime()
+						: TimeUnit.MILLISECONDS.toNanos(CANCEL_POLL_INTERVAL);
+				if(remaining <= 0) {
+					remove(waiter);
+					rejectedCount++;
+					throw new GraphvizRejectedException("Graphviz render waited more than " + maxWait +
+							"ms in the render queue");
+				}
+				if(cancel.isCanceled()) {
+					remove(waiter);
+					cancel.assertContinue();
+					throw new CancellationException();
+				}
+				wait(Math.min(CANCEL_POLL_INTERVAL, TimeUnit.NANOSECONDS.toMillis(remaining) + 1));
+			}
+		}
+		catch(InterruptedException e) {
+			if(waiter.granted)
+				release();
+			else
+				remove(waiter);
+			throw e;
+		}
+		recordWait(System.nanoTime() - start);
+	}
+
+	/**
+	 * Returns the number of renders that have been admitted.
+	 * 
+	 * @return
+	 */
+	public synchronized long getGrantedCount() {
+		return grantedCount;
+	}
+
+	/**
+	 * Returns the longest time a render has waited to be admitted.
+	 * 
+	 * @return
+	 */
+	public synchronized long getMaxWaitNanos() {
+		return maxWaitNanos;
+	}
+
+	/**
+	 * Returns the number of renders waiting to be admitted.
+	 * 
+	 * @return
+	 */
+	public synchronized int getQueueLength() {
+		return queued;
+	}
+
+	/**
+	 * Returns the number of renders of the given tenant that are waiting to be admitted.
+	 * 
+	 * @param tenant
+	 * @return
+	 */
+	public synchronized int getQueueLength(String tenant) {
+		LinkedList<Waiter> queue = queues.get(tenant);
+		return queue == null
+				? 0
+				: queue.size();
+	}
+
+	/**
+	 * Returns the number of renders that have been rejected because the queue was full, or because they
+	 * waited too long.
+	 * 
+	 * @return
+	 */
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * Returns the number of renders that are running.
+	 * 
+	 * @return
+	 */
+	public synchronized int getRunningCount() {
+		return running;
+	}
+
+	/**
+	 * Returns the total time renders have waited to be admitted.
+	 * 
+	 * @return
+	 */
+	public synchronized long getTotalWaitNanos() {
+		return totalWaitNanos;
+	}
+
+	private void grant(Waiter waiter) {
+		Double tag = startTags.get(waiter.tenant);
+		double startTag = tag == null
+				? virtualTime
+				: Math.max(tag.doubleValue(), virtualTime);
+		virtualTime = startTag;
+		startTags.put(waiter.tenant, startTag + 1.0 / Math.max(1, options.getTenantWeight(waiter.tenant)));
+		waiter.granted = true;
+		running++;
+		grantedCount++;
+	}
+
+	/**
+	 * Admits waiting renders while there is capacity, the tenant with the lowest start tag first.
+	 */
+	private void grantWaiting() {
+		while(queued > 0 && hasCapacity()) {
+			String next = null;
+			double nextTag = 0;
+			for(String tenant : queues.keySet()) {
+				Double tag = startTags.get(tenant);
+				double startTag = tag == null
+						? virtualTime
+						: Math.max(tag.doubleValue(), virtualTime);
+				if(next == null || startTag < nextTag) {
+					next = tenant;
+					nextTag = startTag;
+				}
+			}
+			LinkedList<Waiter> queue = queues.get(next);
+			Waiter waiter = queue.removeFirst();
+			queued--;
+			grant(waiter);
+			if(queue.isEmpty())
+				removeQueue(next);
+		}
+		notifyAll();
+	}
+
+	private boolean hasCapacity() {
+		int max = options.getMaxConcurrentRenders();
+		return max <= 0 || running < max;
+	}
+
+	private void recordWait(long waited) {
+		totalWaitNanos += waited;
+		if(waited > maxWaitNanos)
+			maxWaitNanos = waited;
+	}
+
+	/**
+	 * Drops the start tags of tenants that have no waiting renders, and are not ahead of the virtual time.
+	 */
+	private void pruneStartTags() {
+		Iterator<Map.Entry<String, Double>> tags = startTags.entrySet().iterator();
+		while(tags.hasNext()) {
+			Map.Entry<String, Double> tag = tags.next();
+			if(tag.getValue().doubleValue() <= virtualTime && !queues.containsKey(tag.getKey()))
+				tags.remove();
+		}
+	}
+
+	/**
+	 * Ends a render admitted by {@link #acquire(ICancel)}, and admits the next waiting render. When no renders
+	 * are waiting, the virtual time catches up with the start tags of all tenants (as in an idle fair queue),
+	 * and the tags are dropped. Tenants admitted without waiting thus do not leave tags behind.
+	 */
+	synchronized void release() {
+		running--;
+		grantWaiting();
+		if(queued == 0) {
+			for(Double tag : startTags.values())
+				virtualTime = Math.max(virtualTime, tag.doubleValue());
+			pruneStartTags();
+		}
+	}
+
+	private void remove(Waiter waiter) {
+		LinkedList<Waiter> queue = queues.get(waiter.tenant);
+		if(queue != null && queue.remove(waiter)) {
+			queued--;
+			if(queue.isEmpty())
+				removeQueue(waiter.tenant);
+		}
+	}
+
+	/**
+	 * Removes the queue of a tenant that has no more waiting renders. The start tags of tenants that are
+	 * not ahead of the virtual time are dropped, as they are no longer needed.
+	 * 
+	 * @param tenant
+	 */
+	private void removeQueue(String tenant) {
+		queues.remove(tenant);
+		pruneStartTags();
+	}
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * A cache of graphviz output, keyed on a digest of the dot text and the layout, format and renderer.
+ * 
+ * The dot text is canonicalized before it is digested; line endings, indentation and other white
+ * space outside of quoted and HTML strings does not affect the key, but line breaks do (they end comments). The cache holds at most
+ * {@link IGraphvizOptions#getResultCacheSize()} bytes of output, and evicts the least recently used
+ * results first.
+ * 
+ */
+@Singleton
+public class GraphvizResultCache {
+	/**
+	 * A digest of canonical dot text, and the graphviz command it is rendered with.
+	 */
+	static final class Key {
+		private final byte[] digest;
+
+		private final GraphvizProcess.Key command;
+
+		private final int hashCode;
+
+		Key(byte[] digest, GraphvizProcess.Key command) {
+			this.digest = digest;
+			this.command = command;
+			this.hashCode = Arrays.hashCode(digest) * 31 + command.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return hashCode == k.hashCode && Arrays.equals(digest, k.digest) && command.equals(k.command);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		/**
+		 * Returns a 64 bit hash of the key. Never returns 0.
+		 * 
+		 * @return
+		 */
+		long longHash() {
+			long h = 0;
+			for(int i = 0; i < 8; i++)
+				h = (h << 8) | (digest[i] & 0xFF);
+			h ^= command.hashCode() * 0x9E3779B97F4A7C15L;
+			return h == 0
+					? 1
+					: h;
+		}
+
+		/**
+		 * Returns the key as bytes (the digest followed by the command line).
+		 * 
+		 * @return
+		 */
+		byte[] toBytes() {
+			byte[] commandBytes;
+			try {
+				commandBytes = command.toString().getBytes("UTF-8");
+			}
+			catch(UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			byte[] result = new byte[digest.length + commandBytes.length];
+			System.arraycopy(digest, 0, result, 0, digest.length);
+			System.arraycopy(commandBytes, 0, result, digest.length, commandBytes.length);
+			return result;
+		}
+	}
+
+	/**
+	 * Computes a digest of the canonical form of the given dot text. Runs of white space outside of quoted
+	 * strings and HTML strings are treated as a single line break if they contain a line break, and as a
+	 * single space otherwise. Line breaks are kept, as they end // and # comments. White space at the start
+	 * and end of the text is ignored.
+	 * 
+	 * @param dot
+	 *            dot text (in an ASCII compatible encoding)
+	 * @return
+	 */
+	static byte[] canonicalDigest(byte[] dot) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+		boolean quoted = false;
+		boolean escaped = false;
+		int htmlDepth = 0;
+		boolean pendingSpace = false;
+		boolean pendingLineBreak = false;
+		boolean started = false;
+		for(int i = 0; i < dot.length; i++) {
+			byte b = dot[i];
+			if(!quoted && htmlDepth == 0 && (b == ' ' || b == '\t' || b == '\r' || b == '\n')) {
+				pendingSpace = started;
+				pendingLineBreak |= started && b == '\n';
+				continue;
+			}
+			if(pendingSpace) {
+				md.update(pendingLineBreak
+						? (byte) '\n'
+						: (byte) ' ');
+				pendingSpace = false;
+				pendingLineBreak = false;
+			}
+			started = true;
+			md.update(b);
+			if(quoted) {
+				if(escaped)
+					escaped = false;
+				else if(b == '\\')
+					escaped = true;
+				else if(b == '"')
+					quoted = false;
+			}
+			else if(b == '<')
+				htmlDepth++;
+			else if(htmlDepth > 0) {
+				if(b == '>')
+					htmlDepth--;
+			}
+			else if(b == '"')
+				quoted = true;
+		}
+		return md.digest();
+	}
+
+	protected final IGraphvizOptions options;
+
+	private final LinkedHashMap<Key, byte[]> results = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+
+	private long size = 0;
+
+	private long hitCount = 0;
+
+	private long missCount = 0;
+
+	private long evictionCount = 0;
+
+	@Inject
+	public GraphvizResultCache(IGraphvizOptions options) {
+		this.options = options;
+	}
+
+	/**
+	 * Removes all cached results.
+	 */
+	public synchronized void clear() {
+		results.clear();
+		size = 0;
+	}
+
+	/**
+	 * Returns the cached output for the given key, or null if there is none.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	synchronized byte[] get(Key key) {
+		byte[] result = results.get(key);
+		if(result == null)
+			missCount++;
+		else
+			hitCount++;
+		return result;
+	}
+
+	/**
+	 * Returns the number of results that have been evicted to make room for new results.
+	 * 
+	 * @return
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/**
+	 * Returns the number of lookups that found a result.
+	 * 
+	 * @return
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the fraction of lookups that found a result.
+	 * 
+	 * @return a value between 0 and 1, or 0 if there has been no lookups
+	 */
+	public synchronized double getHitRate() {
+		long lookups = hitCount + missCount;
+		return lookups == 0
+				? 0
+				: (double) hitCount / lookups;
+	}
+
+	/**
+	 * Returns the max number of bytes of results to keep. This implementation returns
+	 * {@link IGraphvizOptions#getResultCacheSize()}.
+	 * 
+	 * @return
+	 */
+	protected long getMaxSize() {
+		return options.getResultCacheSize();
+	}
+
+	/**
+	 * Returns the number of lookups that did not find a result.
+	 * 
+	 * @return
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns the number of cached results.
+	 * 
+	 * @return
+	 */
+	public synchronized int getResultCount() {
+		return results.size();
+	}
+
+	/**
+	 * Returns the number of bytes of cached output.
+	 * 
+	 * @return
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Caches a result. Results larger than the cache are not cached.
+	 * 
+	 * @param key
+	 * @param result
+	 */
+	synchronized void put(Key key, byte[] result) {
+		long maxSize = getMaxSize();
+		if(result.length > maxSize)
+			return;
+		byte[] old = results.put(key, result);
+		if(old != null)
+			size -= old.length;
+		size += result.length;
+		Iterator<Map.Entry<Key, byte[]>> lru = results.entrySet().iterator();
+		while(size > maxSize && lru.hasNext()) {
+			size -= lru.next().getValue().length;
+			lru.remove();
+			evictionCount++;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Set;
+
+import org.cloudsmith.graph.ICancel;
+import org.cloudsmith.graph.IRootGraph;
+import org.cloudsmith.graph.graphcss.GraphCSS;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Interface for a graphviz runner that renders asynchronously. The methods correspond to those in
+ * {@link IGraphviz}, but return at once with a future that completes when the render is done.
+ * 
+ * Canceling the future cancels the render (and terminates the graphviz process). A render is also canceled
+ * when the given cancel indicator is; the future then completes as canceled. A render that fails
+ * completes the future with the result the {@link IGraphviz} method returns on errors (e.g. null), or
+ * exceptionally if the method throws.
+ * 
+ * The graph and style sheets are read by the render thread, and must not be modified until the future
+ * has completed.
+ * 
+ */
+public interface IAsyncGraphviz {
+
+	/**
+	 * Renders an HTML fragment with a clickable map.
+	 * 
+	 * @see IGraphviz#getUsemap(ICancel, GraphvizLayout, IRootGraph, GraphCSS, GraphCSS...)
+	 */
+	public ListenableFuture<String> getUsemap(ICancel cancel, GraphvizLayout layout, IRootGraph graph,
+			GraphCSS defaultStyle, GraphCSS... styleSheets);
+
+	/**
+	 * Renders several formats from a single layout of the graph.
+	 * 
+	 * @see IGraphviz#toFormats(ICancel, Set, GraphvizLayout, IRootGraph, GraphCSS, GraphCSS...)
+	 */
+	public ListenableFuture<Map<GraphvizFormat, byte[]>> toFormats(ICancel cancel, Set<GraphvizFormat> formats,
+			GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyle, GraphCSS... styleSheets);
+
+	/**
+	 * Renders a JPG image.
+	 * 
+	 * @see IGraphviz#toJPG(ICancel, GraphvizLayout, IRootGraph, GraphCSS, GraphCSS...)
+	 */
+	public ListenableFuture<byte[]> toJPG(ICancel cancel, GraphvizLayout layout, IRootGraph graph,
+			GraphCSS defaultStyleSheet, GraphCSS... styleSheets);
+
+	/**
+	 * Renders a PNG image.
+	 * 
+	 * @see IGraphviz#toPNG(ICancel, GraphvizLayout, IRootGraph, GraphCSS, GraphCSS...)
+	 */
+	public ListenableFuture<byte[]> toPNG(ICancel cancel, GraphvizLayout layout, IRootGraph graph,
+			GraphCSS defaultStyle, GraphCSS... styleSheets);
+
+	/**
+	 * Renders SVG text.
+	 * 
+	 * @see IGraphviz#toSVG(ICancel, GraphvizLayout, IRootGraph, GraphCSS, GraphCSS...)
+	 */
+	public ListenableFuture<String> toSVG(ICancel cancel, GraphvizLayout layout, IRootGraph graph,
+			GraphCSS defaultStyle, GraphCSS... styleSheets);
+
+	/**
+	 * Renders dot text to the given output stream. The dot data is read by the render thread.
+	 * 
+	 * @see IGraphviz#writeGraphvizOutput(ICancel, OutputStream, GraphvizFormat, GraphvizRenderer, GraphvizLayout,
+	 *      InputStream)
+	 */
+	public ListenableFuture<OutputStream> writeGraphvizOutput(ICancel cancel, OutputStream output,
+			GraphvizFormat format, GraphvizRenderer renderer, GraphvizLayout layout, InputStream dotData);
+
+	/**
+	 * Renders PNG to the given output stream.
+	 * 
+	 * @see IGraphviz#writePNG(ICancel, OutputStream, GraphvizLayout, IRootGraph, GraphCSS, GraphCSS...)
+	 */
+	public ListenableFuture<Boolean> writePNG(ICancel cancel, OutputStream output, GraphvizLayout layout,
+			IRootGraph graph, GraphCSS defaultStyle, GraphCSS... styleSheets);
+
+	/**
+	 * Renders SVG text to the given output stream.
+	 * 
+	 * @see IGraphviz#writeSVG(ICancel, OutputStream, GraphvizLayout, IRootGraph, GraphCSS, GraphCSS...)
+	 */
+	public ListenableFuture<Boolean> writeSVG(ICancel cancel, OutputStream output, GraphvizLayout layout,
+			IRootGraph graph, GraphCSS defaultStyle, GraphCSS... styleSheets);
+
+	/**
+	 * Renders gzipped SVG text to the given output stream.
+	 * 
+	 * @see IGraphviz#writeSVGZ(ICancel, OutputStream, GraphvizLayout, IRootGraph, GraphCSS, GraphCSS...)
+	 */
+	public ListenableFuture<Boolean> writeSVGZ(ICancel cancel, OutputStream output, GraphvizLayout layout,
+			IRootGraph graph, GraphCSS defaultStyle, GraphCSS... styleSheets);
+}
@@ -17,6 +17,9 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.Set;
 
 import org.cloudsmith.graph.ICancel;
 import org.cloudsmith.graph.IRootGraph;
@@ -149,6 +152,31 @@ public interface IGraphviz {
 	public String toSVG(ICancel cancel, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyle,
 			GraphCSS... styleSheets);
 
+	/**
+	 * Returns the output of several formats, all produced from a single layout of the graph. This is
+	 * cheaper than rendering the graph once per format, as both the dot text and the layout are only
+	 * produced once.
+	 * 
+	 * @param cancel
+	 *            An indicator of cancellation requested by user. Should be periodically checked and {@link CancellationException}
+	 *            thrown on detection
+	 *            of cancellation.
+	 * @param formats
+	 *            The wanted output formats, e.g. SVG, PNG and CMAPX for a web page.
+	 * @param layout
+	 *            The graphviz layout algorithm to use.
+	 * @param graph
+	 *            The root graph to render.
+	 * @param defaultStyle
+	 *            The graph CSS used to compute the dot defaults.
+	 * @param styleSheets
+	 *            List of graph CSS to apply to dot instances - have no effect on the dot defaults.
+	 * 
+	 * @return the output of each format, or null if there where errors
+	 */
+	public Map<GraphvizFormat, byte[]> toFormats(ICancel cancel, Set<GraphvizFormat> formats, GraphvizLayout layout,
+			IRootGraph graph, GraphCSS defaultStyle, GraphCSS... styleSheets);
+
 	/**
 	 * Generic routine to produce output from Graphviz.
 	 * Input data (dot text notation) is passed in a buffer.
@@ -207,6 +235,87 @@ public interface IGraphviz {
 			GraphvizRenderer renderer, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyleSheet,
 			GraphCSS... styleSheets);
 
+	/**
+	 * Produces output from Graphviz to a channel, e.g. a {@link java.nio.channels.FileChannel} or a socket
+	 * channel. The output is written to the channel as it is read from graphviz without intermediate
+	 * copies, and cached output is transferred from the disk cache directly to a file channel.
+	 * 
+	 * @param cancel
+	 *            An indicator of cancellation requested by user. Should be periodically checked and {@link CancellationException}
+	 *            thrown on detection
+	 *            of cancellation.
+	 * @param output
+	 *            the channel to write the output to. The channel is not closed.
+	 * @param format
+	 *            the wanted output format (PNG, JPG, SVG, etc.)
+	 * @param renderer
+	 *            the renderer to use (or null for default and non raster formats) - e.g. {@link GraphvizRenderer#quartz}
+	 * @param layout
+	 *            the layout algorithm to use - e.g. {@link GraphvizLayout#dot}.
+	 * @param graph
+	 *            the graph to render
+	 * @param defaultStyleSheet
+	 *            - the CSS used to produce the prototype styles
+	 * @param styleSheets
+	 *            - additional style sheets
+	 * 
+	 * @return false if there where errors, true on success
+	 */
+	public boolean writeGraphvizOutput(ICancel cancel, WritableByteChannel output, GraphvizFormat format,
+			GraphvizRenderer renderer, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyleSheet,
+			GraphCSS... styleSheets);
+
+	/**
+	 * Produces the output of several formats from Graphviz with a single layout of the dot text. Graphviz
+	 * is run with one -T option per format, and the output of each format is written to its stream.
+	 * At most one of the formats may lack a detectable end of output (i.e. {@link GraphvizFormat#xdot}).
+	 * 
+	 * @param cancel
+	 *            An indicator of cancellation requested by user. Should be periodically checked and {@link CancellationException}
+	 *            thrown on detection
+	 *            of cancellation.
+	 * @param outputs
+	 *            the wanted output formats, and the stream to write each format to
+	 * @param renderer
+	 *            the renderer to use for raster formats (or null for default) - e.g. {@link GraphvizRenderer#quartz}
+	 * @param layout
+	 *            the layout algorithm to use - e.g. {@link GraphvizLayout#dot}.
+	 * @param dotData
+	 *            the dot text input
+	 * 
+	 * @return false if there where errors, true on success
+	 */
+	public boolean writeGraphvizOutputs(ICancel cancel, Map<GraphvizFormat, ? extends OutputStream> outputs,
+			GraphvizRenderer renderer, GraphvizLayout layout, InputStream dotData);
+
+	/**
+	 * Produces the output of several formats from Graphviz with a single dot generation and layout of the
+	 * graph.
+	 * 
+	 * @param cancel
+	 *            An indicator of cancellation requested by user. Should be periodically checked and {@link CancellationException}
+	 *            thrown on detection
+	 *            of cancellation.
+	 * @param outputs
+	 *            the wanted output formats, and the stream to write each format to
+	 * @param renderer
+	 *            the renderer to use for raster formats (or null for default) - e.g. {@link GraphvizRenderer#quartz}
+	 * @param layout
+	 *            the layout algorithm to use - e.g. {@link GraphvizLayout#dot}.
+	 * @param graph
+	 *            the graph to render
+	 * @param defaultStyleSheet
+	 *            - the CSS used to produce the prototype styles
+	 * @param styleSheets
+	 *            - additional style sheets
+	 * 
+	 * @return false if there where errors, true on success
+	 * @see #writeGraphvizOutputs(ICancel, Map, GraphvizRenderer, GraphvizLayout, InputStream)
+	 */
+	public boolean writeGraphvizOutputs(ICancel cancel, Map<GraphvizFormat, ? extends OutputStream> outputs,
+			GraphvizRenderer renderer, GraphvizLayout layout, IRootGraph graph, GraphCSS defaultStyleSheet,
+			GraphCSS... styleSheets);
+
 	/**
 	 * Writes output as PNG to given stream.
 	 * 
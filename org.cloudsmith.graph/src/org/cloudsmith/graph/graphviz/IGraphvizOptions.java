@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * Options for running graphviz: process pooling, caching, admission control, and the executors used for
+ * renders. The renderer to use is given by the {@link IGraphvizConfig}.
+ * 
+ * Implementations should extend {@link DefaultGraphvizOptions}, so that they get the default of options that
+ * are added later.
+ * 
+ */
+@ImplementedBy(DefaultGraphvizOptions.class)
+public interface IGraphvizOptions {
+
+	/**
+	 * Returns the directory where the {@link GraphvizDiskCache} keeps its files, or null if graphviz output
+	 * should not be cached on disk.
+	 * 
+	 * @return a directory or null
+	 */
+	public File getDiskCacheDirectory();
+
+	/**
+	 * Returns the max number of bytes the {@link GraphvizDiskCache} may use for its data file.
+	 * 
+	 * @return the cache size in bytes
+	 */
+	public long getDiskCacheSize();
+
+	/**
+	 * Returns the max number of bytes of positioned graphs kept by the {@link GraphvizLayoutCache}. A value
+	 * of 0 turns layout caching off. When layout caching is on, graphviz first produces a positioned graph
+	 * (the {@link GraphvizFormat#xdot} output of the layout), and then renders it with "neato -n2", so that a
+	 * graph that is rendered to another format is not laid out again.
+	 * 
+	 * @return the cache size in bytes
+	 */
+	public long getLayoutCacheSize();
+
+	/**
+	 * Returns the max number of graphviz renders that may run at the same time. Further renders wait in the
+	 * queue of the {@link GraphvizRenderScheduler}. A value of 0 or less means no limit, and renders are then
+	 * never queued or rejected.
+	 * 
+	 * @return
+	 */
+	public int getMaxConcurrentRenders();
+
+	/**
+	 * Returns the max number of renders that may wait in the queue of the {@link GraphvizRenderScheduler}.
+	 * Renders are rejected with a {@link GraphvizRejectedException} when the queue is full.
+	 * 
+	 * @return
+	 */
+	public int getMaxQueuedRenders();
+
+	/**
+	 * Returns the max time in milliseconds a render may wait in the queue of the
+	 * {@link GraphvizRenderScheduler} before it is rejected with a {@link GraphvizRejectedException}. A value of
+	 * 0 or less means no limit.
+	 * 
+	 * @return
+	 */
+	public long getMaxQueueWait();
+
+	/**
+	 * Returns the maximum number of renders a pooled graphviz process may perform before it is
+	 * retired and replaced by a fresh process.
+	 * 
+	 * @return a positive render count
+	 */
+	public int getMaxRendersPerProcess();
+
+	/**
+	 * Returns the number of idle graphviz processes to keep warm per combination of layout, format and
+	 * renderer. A value of 0 turns pooling off, and a new graphviz process is then started for every render.
+	 * 
+	 * A pooled process renders one graph after another from its input, and relies on graphviz writing all
+	 * output of a graph before it reads the next one. Pooling should only be turned on when the installed
+	 * graphviz has been verified to do so.
+	 * 
+	 * @return the number of pooled processes per key, or 0 if pooling should not be used
+	 */
+	public int getProcessPoolSize();
+
+	/**
+	 * Returns the executor that runs the tasks writing to graphviz stdin, and reading its stdout (and its
+	 * stderr when it can not be redirected to a file).
+	 * The same executor should be returned on every call. The executor reports the number of running and
+	 * waiting pump tasks.
+	 * 
+	 * @return
+	 */
+	public PumpExecutor getPumpExecutor();
+
+	/**
+	 * Returns the executor that runs the renders requested via {@link IAsyncGraphviz}. The same executor
+	 * should be returned on every call, and it must not be the pump executor (a render waits for its pumps).
+	 * 
+	 * @return
+	 */
+	public ExecutorService getRenderExecutor();
+
+	/**
+	 * Returns the max number of bytes of output kept by the {@link GraphvizResultCache}. A value of 0 turns
+	 * caching off.
+	 * 
+	 * @return the cache size in bytes
+	 */
+	public long getResultCacheSize();
+
+	/**
+	 * Returns the weight of a tenant in the fair sharing of graphviz renders done by the
+	 * {@link GraphvizRenderScheduler}. A tenant gets renders in proportion to its weight when renders of several
+	 * tenants are waiting.
+	 * 
+	 * @param tenant
+	 *            a tenant set with {@link GraphvizRenderScheduler#setTenant(String)}
+	 * @return a positive weight
+	 */
+	public int getTenantWeight(String tenant);
+
+	/**
+	 * Returns true if SVG, cmapx and image output should be rendered from compact dot text, where vertices
+	 * and subgraphs have short names, and id values are shortened (see
+	 * {@link org.cloudsmith.graph.dot.CompactDotIds}). The names and values are restored in the output
+	 * by a {@link CompactIdRestoringOutputStream}. Compact dot text is faster for graphviz to read, but names
+	 * that graphviz inserts in other text (e.g. for \N in a tooltip) are not restored.
+	 * 
+	 * @return
+	 */
+	public boolean isCompactDotIds();
+
+	/**
+	 * Returns true if dot text should be produced in a separate task while graphviz reads it. This
+	 * reduces latency and memory use for large graphs, but the dot renderer (and style functions) must
+	 * then be able to run on a thread other than the caller's.
+	 * 
+	 * @return
+	 */
+	public boolean isPipelinedDotGeneration();
+}
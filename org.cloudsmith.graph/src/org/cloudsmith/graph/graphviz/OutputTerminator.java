@@ -0,0 +1,124 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+/**
+ * Detects the end of one graph's output in a stream where graphviz writes the output of several graphs
+ * back to back. Only formats with an unambiguous trailer have a terminator - see {@link #forFormat(GraphvizFormat)}.
+ * 
+ * The matching is done with a precomputed (Knuth-Morris-Pratt) failure table so the state can be carried
+ * between buffers without buffering any output. When graphviz writes several formats for each graph, the
+ * terminators also separate the output of one format from the next.
+ */
+final class OutputTerminator {
+	/**
+	 * The state of matching a terminator against a stream of output. The state is carried between
+	 * calls to {@link #scan(byte[], int, int)}.
+	 */
+	final class Matcher {
+		private int state = 0;
+
+		/**
+		 * Returns true if the terminator ended at the last scanned byte.
+		 * 
+		 * @return
+		 */
+		boolean isComplete() {
+			return state == pattern.length;
+		}
+
+		/**
+		 * Advances the match over the given bytes. The scan stops at the end of a terminator, so that
+		 * output following it (e.g. the output of another format) is left for the caller.
+		 * 
+		 * @param data
+		 * @param offset
+		 * @param length
+		 * @return the number of bytes scanned
+		 */
+		int scan(byte[] data, int offset, int length) {
+			for(int i = offset; i < offset + length; i++) {
+				if(state == pattern.length)
+					state = failure[state - 1];
+				while(state > 0 && data[i] != pattern[state])
+					state = failure[state - 1];
+				if(data[i] == pattern[state])
+					state++;
+				if(state == pattern.length)
+					return i + 1 - offset;
+			}
+			return length;
+		}
+	}
+
+	/**
+	 * The PNG IEND chunk (zero length, type, and its constant CRC).
+	 */
+	private static final OutputTerminator PNG = new OutputTerminator(new byte[] {
+			0, 0, 0, 0, 'I', 'E', 'N', 'D', (byte) 0xAE, 0x42, 0x60, (byte) 0x82 });
+
+	/**
+	 * The JPEG end of image marker. (0xFF is always followed by a stuffed 0 in entropy coded data).
+	 */
+	private static final OutputTerminator JPG = new OutputTerminator(new byte[] { (byte) 0xFF, (byte) 0xD9 });
+
+	private static final OutputTerminator SVG = new OutputTerminator("</svg>\n".getBytes());
+
+	private static final OutputTerminator CMAPX = new OutputTerminator("</map>\n".getBytes());
+
+	/**
+	 * Returns the terminator for the given format, or null if the end of the output can only be detected
+	 * by the process closing its output.
+	 * 
+	 * @param format
+	 * @return terminator or null
+	 */
+	static OutputTerminator forFormat(GraphvizFormat format) {
+		switch(format) {
+			case png:
+				return PNG;
+			case jpg:
+				return JPG;
+			case svg:
+				return SVG;
+			case cmapx:
+				return CMAPX;
+			default:
+				return null;
+		}
+	}
+
+	private final byte[] pattern;
+
+	private final int[] failure;
+
+	private OutputTerminator(byte[] pattern) {
+		this.pattern = pattern;
+		this.failure = new int[pattern.length];
+		for(int i = 1, k = 0; i < pattern.length; i++) {
+			while(k > 0 && pattern[i] != pattern[k])
+				k = failure[k - 1];
+			if(pattern[i] == pattern[k])
+				k++;
+			failure[i] = k;
+		}
+	}
+
+	/**
+	 * Returns a matcher that looks for the terminator in a stream of output.
+	 * 
+	 * @return
+	 */
+	Matcher matcher() {
+		return new Matcher();
+	}
+}
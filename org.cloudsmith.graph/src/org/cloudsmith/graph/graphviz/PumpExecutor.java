@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.graphviz;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An executor for the tasks that pump data to and from graphviz processes (stdin, stdout, and the
+ * stderr drain). The executor counts tasks that are waiting for a thread and tasks that are running.
+ * 
+ * Note that a render uses two tasks while it is in progress, and that on JVMs that can not redirect the
+ * error output of a process to a file (before Java 7), a pooled graphviz process also keeps a stderr drain
+ * running for as long as the process is alive. A bounded executor must therefore have room for two tasks
+ * per concurrent render, plus the drains of all pooled processes on such JVMs.
+ * 
+ */
+public class PumpExecutor extends AbstractExecutorService {
+	/**
+	 * Creates an executor with at most maxThreads threads. Threads are daemon threads, and
+	 * idle threads time out after a minute.
+	 * 
+	 * @param maxThreads
+	 * @return
+	 */
+	public static PumpExecutor bounded(int maxThreads) {
+		return bounded(maxThreads, "graphviz pump");
+	}
+
+	/**
+	 * Creates an executor with at most maxThreads threads, named after the given thread name.
+	 * 
+	 * @param maxThreads
+	 * @param threadName
+	 * @return
+	 */
+	public static PumpExecutor bounded(int maxThreads, final String threadName) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(
+			maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, threadName + " " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		pool.allowCoreThreadTimeOut(true);
+		return new PumpExecutor(pool);
+	}
+
+	/**
+	 * Creates an executor that runs each task as soon as it is submitted, in an idle thread or in a new one.
+	 * Threads are daemon threads, named after the given thread name, and idle threads time out after a
+	 * minute.
+	 * 
+	 * @param threadName
+	 * @return
+	 */
+	public static PumpExecutor unbounded(final String threadName) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(
+			0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, threadName + " " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return new PumpExecutor(pool);
+	}
+
+	/**
+	 * Creates an executor that runs each task in a new virtual thread. If the running JVM does not
+	 * support virtual threads, a {@link #bounded(int)} executor is created instead.
+	 * 
+	 * @param maxThreads
+	 *            the size of the fallback executor
+	 * @return
+	 */
+	public static PumpExecutor virtual(int maxThreads) {
+		return virtual(maxThreads, "graphviz pump");
+	}
+
+	/**
+	 * Creates an executor that runs each task in a new virtual thread, or a {@link #bounded(int, String)}
+	 * executor with the given thread name if virtual threads are not supported.
+	 * 
+	 * @param maxThreads
+	 *            the size of the fallback executor
+	 * @param threadName
+	 *            the name of the fallback executor threads
+	 * @return
+	 */
+	public static PumpExecutor virtual(int maxThreads, String threadName) {
+		try {
+			// looked up reflectively as virtual threads are not available in all supported JVMs
+			return new PumpExecutor(
+				(ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+		}
+		catch(Exception e) {
+			Logger log = Logger.getLogger(Graphviz.class);
+			log.info("Virtual threads are not available, using " + maxThreads + " " + threadName + " threads");
+			return bounded(maxThreads, threadName);
+		}
+	}
+
+	private final ExecutorService delegate;
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	public PumpExecutor(ExecutorService delegate) {
+		this.delegate = delegate;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return delegate.awaitTermination(timeout, unit);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	@Override
+	public void execute(final Runnable command) {
+		queued.incrementAndGet();
+		try {
+			delegate.execute(new Runnable() {
+				@Override
+				public void run() {
+					queued.decrementAndGet();
+					active.incrementAndGet();
+					try {
+						command.run();
+					}
+					finally {
+						active.decrementAndGet();
+					}
+				}
+			});
+		}
+		catch(RuntimeException e) {
+			queued.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of tasks that are running.
+	 * 
+	 * @return
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * Returns the number of tasks that are waiting for a thread.
+	 * 
+	 * @return
+	 */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.ExecutorService#isShutdown()
+	 */
+	@Override
+	public boolean isShutdown() {
+		return delegate.isShutdown();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.ExecutorService#isTerminated()
+	 */
+	@Override
+	public boolean isTerminated() {
+		return delegate.isTerminated();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.ExecutorService#shutdown()
+	 */
+	@Override
+	public void shutdown() {
+		delegate.shutdown();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.ExecutorService#shutdownNow()
+	 */
+	@Override
+	public List<Runnable> shutdownNow() {
+		return delegate.shutdownNow();
+	}
+}
@@ -14,6 +14,7 @@ package org.cloudsmith.graph.style.labels;
 import java.util.Set;
 
 import org.cloudsmith.graph.IGraphElement;
+import org.cloudsmith.graph.graphcss.ILiteralFunction;
 import org.cloudsmith.graph.graphcss.StyleSet;
 import org.cloudsmith.graph.style.IStyle;
 import org.cloudsmith.graph.style.Span;
@@ -76,6 +77,24 @@ public class LabelCell {
 		return valueFunc.apply(ge);
 	}
 
+	/**
+	 * Returns true if the style classes are the same for all elements.
+	 * 
+	 * @return
+	 */
+	public boolean hasLiteralStyleClass() {
+		return styleClassFunc instanceof ILiteralFunction;
+	}
+
+	/**
+	 * Returns true if the value template is the same for all elements.
+	 * 
+	 * @return
+	 */
+	public boolean hasLiteralValue() {
+		return valueFunc instanceof ILiteralFunction;
+	}
+
 	public boolean isSeparator() {
 		return false;
 	}
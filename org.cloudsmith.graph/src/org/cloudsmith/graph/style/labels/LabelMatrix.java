@@ -12,6 +12,7 @@
 package org.cloudsmith.graph.style.labels;
 
 import org.cloudsmith.graph.IGraphElement;
+import org.cloudsmith.graph.graphcss.ILiteralFunction;
 
 import com.google.common.base.Function;
 
@@ -39,7 +40,7 @@ public class LabelMatrix implements ILabelTemplate {
 	}
 
 	public LabelMatrix(final String styleClass, int rows, int columns) {
-		this.styleClass = new Function<IGraphElement, String>() {
+		this.styleClass = new ILiteralFunction<String>() {
 			public String apply(IGraphElement ge) {
 				return styleClass;
 			}
@@ -68,6 +69,15 @@ public class LabelMatrix implements ILabelTemplate {
 		return styleClass.apply(ge);
 	}
 
+	/**
+	 * Returns true if the style class is the same for all elements.
+	 * 
+	 * @return
+	 */
+	public boolean hasLiteralStyleClass() {
+		return styleClass instanceof ILiteralFunction;
+	}
+
 	/**
 	 * Returns row:column, row, or column depending on dimensions.
 	 * 
@@ -15,6 +15,7 @@ import java.util.Collections;
 import java.util.Set;
 
 import org.cloudsmith.graph.IGraphElement;
+import org.cloudsmith.graph.graphcss.ILiteralFunction;
 
 import com.google.common.base.Function;
 
@@ -48,7 +49,7 @@ public class LabelRow {
 	}
 
 	public LabelRow(final String styleClass, LabelCell... cells) {
-		this.styleClass = new Function<IGraphElement, Set<String>>() {
+		this.styleClass = new ILiteralFunction<Set<String>>() {
 			public Set<String> apply(IGraphElement ge) {
 				return Collections.singleton(styleClass);
 			}
@@ -64,6 +65,15 @@ public class LabelRow {
 		return styleClass.apply(ge);
 	}
 
+	/**
+	 * Returns true if the style classes are the same for all elements.
+	 * 
+	 * @return
+	 */
+	public boolean hasLiteralStyleClasses() {
+		return styleClass instanceof ILiteralFunction;
+	}
+
 	public boolean isSeparator() {
 		return false;
 	}
@@ -12,6 +12,7 @@
 package org.cloudsmith.graph.style.labels;
 
 import org.cloudsmith.graph.IGraphElement;
+import org.cloudsmith.graph.graphcss.ILiteralFunction;
 
 import com.google.common.base.Function;
 
@@ -23,7 +24,7 @@ public class LabelStringTemplate implements ILabelTemplate {
 	}
 
 	public LabelStringTemplate(final String value) {
-		this.templateString = new Function<IGraphElement, String>() {
+		this.templateString = new ILiteralFunction<String>() {
 			public String apply(IGraphElement ge) {
 				return value;
 			}
@@ -33,4 +34,13 @@ public class LabelStringTemplate implements ILabelTemplate {
 	public String getTemplateString(IGraphElement ge) {
 		return templateString.apply(ge);
 	}
+
+	/**
+	 * Returns true if the string is the same for all elements.
+	 * 
+	 * @return
+	 */
+	public boolean isLiteral() {
+		return templateString instanceof ILiteralFunction;
+	}
 }
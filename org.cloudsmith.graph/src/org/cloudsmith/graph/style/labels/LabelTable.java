@@ -15,6 +15,7 @@ import java.util.Collections;
 import java.util.Set;
 
 import org.cloudsmith.graph.IGraphElement;
+import org.cloudsmith.graph.graphcss.ILiteralFunction;
 
 import com.google.common.base.Function;
 
@@ -34,7 +35,7 @@ public class LabelTable implements ILabelTemplate {
 
 	public LabelTable(final String styleClass, LabelRow... rows) {
 		this.rows = rows;
-		this.styleClass = new Function<IGraphElement, Set<String>>() {
+		this.styleClass = new ILiteralFunction<Set<String>>() {
 			public Set<String> apply(IGraphElement ge) {
 				return Collections.singleton(styleClass);
 			}
@@ -48,4 +49,13 @@ public class LabelTable implements ILabelTemplate {
 	public Set<String> getStyleClasses(IGraphElement ge) {
 		return styleClass.apply(ge);
 	}
+
+	/**
+	 * Returns true if the style classes are the same for all elements.
+	 * 
+	 * @return
+	 */
+	public boolean hasLiteralStyleClasses() {
+		return styleClass instanceof ILiteralFunction;
+	}
 }
@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A pipe with a fixed size buffer between a producer writing to {@link #getOutputStream()} and a
+ * consumer reading from {@link #getInputStream()}. The writer blocks while the buffer is full, and the
+ * reader blocks while it is empty.
+ * 
+ * Unlike {@link java.io.PipedInputStream} the pipe does not keep track of the threads using it, and can
+ * be used from pooled threads. Either end can close the pipe: when the reader closes, writes fail with an
+ * IOException, and when the writer closes, the reader gets EOF once the buffer has been read. A pipe that
+ * is {@link #abort(Throwable) aborted} fails on both ends.
+ * 
+ */
+public class BoundedBytePipe {
+	private final byte[] buffer;
+
+	private int head = 0;
+
+	private int size = 0;
+
+	private boolean writeClosed = false;
+
+	private boolean readClosed = false;
+
+	private Throwable failure;
+
+	private final InputStream inputStream = new InputStream() {
+		@Override
+		public int available() {
+			synchronized(BoundedBytePipe.this) {
+				return size;
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized(BoundedBytePipe.this) {
+				readClosed = true;
+				BoundedBytePipe.this.notifyAll();
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1
+					? -1
+					: b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0)
+				return 0;
+			synchronized(BoundedBytePipe.this) {
+				while(size == 0) {
+					checkFailure();
+					if(writeClosed)
+						return -1;
+					if(readClosed)
+						throw new IOException("Pipe closed");
+					await();
+				}
+				int count = Math.min(len, size);
+				int first = Math.min(count, buffer.length - head);
+				System.arraycopy(buffer, head, b, off, first);
+				System.arraycopy(buffer, 0, b, off + first, count - first);
+				head = (head + count) % buffer.length;
+				size -= count;
+				BoundedBytePipe.this.notifyAll();
+				return count;
+			}
+		}
+	};
+
+	private final OutputStream outputStream = new OutputStream() {
+		@Override
+		public void close() {
+			synchronized(BoundedBytePipe.this) {
+				writeClosed = true;
+				BoundedBytePipe.this.notifyAll();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			synchronized(BoundedBytePipe.this) {
+				while(len > 0) {
+					checkFailure();
+					if(readClosed || writeClosed)
+						throw new IOException("Pipe closed");
+					if(size == buffer.length) {
+						await();
+						continue;
+					}
+					int tail = (head + size) % buffer.length;
+					int count = Math.min(len, Math.min(buffer.length - size, buffer.length - tail));
+					System.arraycopy(b, off, buffer, tail, count);
+					size += count;
+					off += count;
+					len -= count;
+					BoundedBytePipe.this.notifyAll();
+				}
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+	};
+
+	/**
+	 * Creates a pipe with the given buffer size.
+	 * 
+	 * @param bufferSize
+	 */
+	public BoundedBytePipe(int bufferSize) {
+		buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Makes all current and future operations on both ends of the pipe fail with an IOException
+	 * caused by the given failure.
+	 * 
+	 * @param cause
+	 */
+	public synchronized void abort(Throwable cause) {
+		if(failure == null)
+			failure = cause;
+		notifyAll();
+	}
+
+	private void await() throws InterruptedIOException {
+		try {
+			wait();
+		}
+		catch(InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if(failure != null) {
+			IOException e = new IOException("Pipe aborted");
+			e.initCause(failure);
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the end of the pipe to read from.
+	 * 
+	 * @return
+	 */
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	/**
+	 * Returns the end of the pipe to write to.
+	 * 
+	 * @return
+	 */
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+}
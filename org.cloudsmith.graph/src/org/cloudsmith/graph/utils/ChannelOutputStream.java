@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2011 Cloudsmith Inc. and other contributors, as listed below.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ * 
+ * Contributors:
+ *   Cloudsmith
+ * 
+ */
+package org.cloudsmith.graph.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An output stream writing to a channel. The written arrays are wrapped, not copied, and the channel is
+ * available to writers that can transfer data to the channel directly (e.g. from a file channel).
+ * 
+ */
+public class ChannelOutputStream extends OutputStream {
+	private final WritableByteChannel channel;
+
+	public ChannelOutputStream(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Returns the channel written to.
+	 * 
+	 * @return
+	 */
+	public WritableByteChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+}